@@ -0,0 +1,189 @@
+package icecube.daq.io;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Adjust each channel's strand depth limit to match its share of the
+ * input while keeping the total within a fixed budget.
+ *
+ * Every update measures each channel's arrival rate (spliceables pushed
+ * to its strand tail) and the rate at which the splicer consumed them,
+ * both smoothed with an exponentially weighted moving average.  The
+ * splicer's backlog divided by its consumption rate gives the time it is
+ * currently running behind; each channel is allowed to buffer that much
+ * of its own input (but never less than <tt>MIN_HORIZON_SECONDS</tt>
+ * worth).  Every channel keeps at least a quarter of an even share of
+ * the budget so quiet channels are never starved, and the remainder is
+ * shared in proportion to what each channel asked for, so the limits
+ * never add up to more than the budget.
+ */
+class AdaptiveDepthController
+{
+    /** Weight given to the newest rate sample */
+    private static final double EWMA_WEIGHT = 0.3;
+    /** Minimum amount of input each channel may buffer */
+    private static final double MIN_HORIZON_SECONDS = 0.5;
+
+    /**
+     * Rate measurements for one channel.
+     */
+    private static class ChannelRates
+    {
+        /** Spliceables pushed at the last update */
+        private long lastPushed;
+        /** Spliceables consumed at the last update */
+        private long lastConsumed;
+        /** Smoothed arrival rate (spliceables per second) */
+        private double arrivalRate;
+        /** Smoothed consumption rate (spliceables per second) */
+        private double consumeRate;
+        /** Has this channel been sampled before? */
+        private boolean primed;
+    }
+
+    /** Total number of spliceables which may be buffered in strand tails */
+    private long budget;
+
+    /** Per-channel rates */
+    private HashMap<SpliceableInputChannel, ChannelRates> rates =
+        new HashMap<SpliceableInputChannel, ChannelRates>();
+    /** Time of the last update (from System.nanoTime()) */
+    private long lastUpdate;
+
+    /**
+     * Create a controller.
+     *
+     * @param budget total number of spliceables which may be buffered
+     */
+    AdaptiveDepthController(long budget)
+    {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Depth budget must be" +
+                                               " positive, not " + budget);
+        }
+
+        this.budget = budget;
+    }
+
+    /**
+     * Get the total depth budget.
+     *
+     * @return maximum number of buffered spliceables
+     */
+    long getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * Get the depth a channel needs beyond the floor.
+     *
+     * @param cr channel rates
+     * @param horizon number of seconds of input to buffer
+     * @param floor minimum depth
+     *
+     * @return extra depth
+     */
+    private static double getExtra(ChannelRates cr, double horizon,
+                                   long floor)
+    {
+        return Math.max(0.0, cr.arrivalRate * horizon - floor);
+    }
+
+    /**
+     * Get the time of the last update.
+     *
+     * @return time from System.nanoTime() (0 if never updated)
+     */
+    long getLastUpdate()
+    {
+        return lastUpdate;
+    }
+
+    /**
+     * Measure the current rates and set new depth limits.
+     *
+     * @param chans channels which feed the splicer
+     * @param now current time (from System.nanoTime())
+     */
+    void update(List<SpliceableInputChannel> chans, long now)
+    {
+        final double secs = (lastUpdate == 0 ? 0.0 :
+                             (now - lastUpdate) / 1000000000.0);
+        lastUpdate = now;
+
+        HashMap<SpliceableInputChannel, ChannelRates> newRates =
+            new HashMap<SpliceableInputChannel, ChannelRates>();
+
+        double totalConsume = 0.0;
+        long totalDepth = 0;
+
+        for (SpliceableInputChannel chan : chans) {
+            ChannelRates cr = rates.get(chan);
+            if (cr == null) {
+                cr = new ChannelRates();
+            }
+            newRates.put(chan, cr);
+
+            final int depth = chan.getStrandTailDepth();
+            final long pushed = chan.getSpliceablesPushed();
+            final long consumed = pushed - (depth < 0 ? 0 : depth);
+
+            if (cr.primed && secs > 0.0) {
+                final double arrival = (pushed - cr.lastPushed) / secs;
+                final double consume = (consumed - cr.lastConsumed) / secs;
+
+                cr.arrivalRate = EWMA_WEIGHT * arrival +
+                    (1.0 - EWMA_WEIGHT) * cr.arrivalRate;
+                cr.consumeRate = EWMA_WEIGHT * consume +
+                    (1.0 - EWMA_WEIGHT) * cr.consumeRate;
+            }
+
+            cr.lastPushed = pushed;
+            cr.lastConsumed = consumed;
+            cr.primed = true;
+
+            totalConsume += cr.consumeRate;
+            if (depth > 0) {
+                totalDepth += depth;
+            }
+        }
+
+        // forget channels which have gone away
+        rates = newRates;
+
+        if (chans.size() == 0) {
+            return;
+        }
+
+        // how far behind is the splicer running?
+        double horizon = MIN_HORIZON_SECONDS;
+        if (totalConsume > 0.0) {
+            horizon = Math.max(horizon, totalDepth / totalConsume);
+        }
+
+        final long floor = Math.max(1L, budget / (4L * chans.size()));
+
+        // every channel gets the floor; the rest is shared out by need
+        double totalExtra = 0.0;
+        for (SpliceableInputChannel chan : chans) {
+            totalExtra += getExtra(rates.get(chan), horizon, floor);
+        }
+
+        final double avail = budget - floor * chans.size();
+        final double scale = (totalExtra > avail ?
+                              Math.max(0.0, avail) / totalExtra : 1.0);
+
+        for (SpliceableInputChannel chan : chans) {
+            final double extra = getExtra(rates.get(chan), horizon, floor);
+
+            long limit = floor + (long) (extra * scale);
+            if (limit > Integer.MAX_VALUE) {
+                limit = Integer.MAX_VALUE;
+            }
+
+            chan.setMaxDepth((int) limit);
+        }
+    }
+}
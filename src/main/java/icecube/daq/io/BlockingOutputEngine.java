@@ -61,6 +61,10 @@ public class BlockingOutputEngine implements DAQComponentOutputProcess
     /**  Size of buffer. */
     private final int bufferSize;
 
+    /** Output rate limit (a rate of 0 means unlimited). */
+    private long rateLimitBytesPerSec;
+    private long rateLimitBurstBytes;
+
     /** defined states duplicated from SimpleOutputEngine*/
     private enum State { STOPPED, RUNNING, DESTROYED }
 
@@ -115,6 +119,11 @@ public class BlockingOutputEngine implements DAQComponentOutputProcess
         this.channel = new BufferedOutputChannel(this, bufMgr, channel,
                                                  bufferSize);
 
+        if (rateLimitBytesPerSec > 0) {
+            this.channel.delegate.setRateLimit(rateLimitBytesPerSec,
+                                               rateLimitBurstBytes);
+        }
+
         if (autoflush) {
             this.channel.enableAutoFlush(autoflushPeriod, autoflushPeriod);
         }
@@ -256,6 +265,29 @@ public class BlockingOutputEngine implements DAQComponentOutputProcess
         return channel;
     }
 
+    /**
+     * Limit the output rate.  Since this engine writes on the caller's
+     * thread, callers are delayed until the limit allows more output.
+     *
+     * @param bytesPerSecond sustained rate (0 to remove the limit)
+     * @param burstBytes maximum number of bytes written at full speed
+     */
+    public void setRateLimit(long bytesPerSecond, long burstBytes)
+    {
+        if (bytesPerSecond > 0 && burstBytes <= 0) {
+            throw new IllegalArgumentException("Burst size must be" +
+                                               " positive, not " +
+                                               burstBytes);
+        }
+
+        rateLimitBytesPerSec = bytesPerSecond;
+        rateLimitBurstBytes = burstBytes;
+
+        if (channel != null) {
+            channel.delegate.setRateLimit(bytesPerSecond, burstBytes);
+        }
+    }
+
     /**
      * Required for mbean compatibility with SimpleOutputEngine.
      * @return
@@ -26,12 +26,15 @@ public class BufferedWritableChannel implements WritableByteChannel
     private int msgsBuffered;
     private long numSent;
 
+    /** Output rate limit (<tt>null</tt> if unlimited) */
+    private volatile TokenBucket rateLimit;
+
     private boolean loggedAIOOBEx = false;
     private static Logger logger =
             Logger.getLogger(BufferedWritableChannel.class);
 
     // yuk!
-    private final int[] bufferSizes;
+    private final ByteBuffer[] bufferedMsgs;
 
 
     public BufferedWritableChannel(final IByteBufferCache bufferCache,
@@ -41,7 +44,7 @@ public class BufferedWritableChannel implements WritableByteChannel
         this.bufferCache = bufferCache;
         this.delegate = delegate;
         this.buffer = ByteBuffer.allocate(size);
-        this.bufferSizes = new int[size];
+        this.bufferedMsgs = new ByteBuffer[size];
     }
 
     @Override
@@ -60,7 +63,7 @@ public class BufferedWritableChannel implements WritableByteChannel
         {
             sendComplete(src);
             numSent++;
-            bufferCache.returnBuffer(msgSize);
+            bufferCache.returnBuffer(src);
         }
         else
         {
@@ -71,8 +74,9 @@ public class BufferedWritableChannel implements WritableByteChannel
             // issue 8263 is resolved
             try
             {
-                // track what is buffered on a per-message basis
-                bufferSizes[msgsBuffered] = msgSize;
+                // track what is buffered on a per-message basis so the
+                // cache gets back the actual buffers
+                bufferedMsgs[msgsBuffered] = src;
             }
             catch (ArrayIndexOutOfBoundsException e)
             {
@@ -80,11 +84,11 @@ public class BufferedWritableChannel implements WritableByteChannel
                 if(loggedAIOOBEx)
                 {
                     StringBuilder sb = new StringBuilder(4096);
-                    sb.append("bufferSizes[").append(bufferSizes.length).append("]={");
-                    for(int i=0; i<bufferSizes.length; i++)
+                    sb.append("bufferedMsgs[").append(bufferedMsgs.length).append("]={");
+                    for(int i=0; i<bufferedMsgs.length; i++)
                     {
-                        String comma = (i==bufferSizes.length-1) ? "" : ",";
-                        sb.append(bufferSizes[i]).append(comma);
+                        String comma = (i==bufferedMsgs.length-1) ? "" : ",";
+                        sb.append(bufferedMsgs[i].limit()).append(comma);
                     }
                     sb.append("}");
                     sb.append(", current buffer:").append(src).append(" was size ").append(msgSize);
@@ -150,13 +154,30 @@ public class BufferedWritableChannel implements WritableByteChannel
 
         for (int i = 0; i < msgsBuffered; i++)
         {
-            bufferCache.returnBuffer(bufferSizes[i]);
+            bufferCache.returnBuffer(bufferedMsgs[i]);
+            bufferedMsgs[i] = null;
         }
         numSent+=msgsBuffered;
         msgsBuffered=0;
         buffer.clear();
     }
 
+    /**
+     * Limit the rate at which data is written to the delegate.  Writers
+     * are delayed on the calling thread until the limit allows more output.
+     *
+     * @param bytesPerSecond sustained rate (0 to remove the limit)
+     * @param burstBytes maximum number of bytes written at full speed
+     */
+    public void setRateLimit(long bytesPerSecond, long burstBytes)
+    {
+        if (bytesPerSecond <= 0) {
+            rateLimit = null;
+        } else {
+            rateLimit = new TokenBucket(bytesPerSecond, burstBytes);
+        }
+    }
+
     /**
      * Shoehorn alert. This method is required to precisely match the
      * accounting practices in SimpleOutputEngine which utilizes a
@@ -179,11 +200,45 @@ public class BufferedWritableChannel implements WritableByteChannel
     private void sendComplete(final ByteBuffer buf) throws IOException
     {
         int count = buf.remaining();
+
+        final TokenBucket limit = rateLimit;
+        if (limit != null && count > 0)
+        {
+            waitForTokens(limit);
+        }
+
         int written = 0;
         while(written < count )
         {
             written+= delegate.write(buf);
         }
+
+        if (limit != null)
+        {
+            limit.consume(written);
+        }
+    }
+
+    /**
+     * Sleep until the rate limit allows more output.
+     * @param limit rate limit
+     */
+    private static void waitForTokens(final TokenBucket limit)
+    {
+        long delay;
+        while ((delay = limit.getDelay()) > 0)
+        {
+            try
+            {
+                Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+            }
+            catch (InterruptedException ie)
+            {
+                // don't hold up a thread which is being shut down
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
     }
 
 
@@ -0,0 +1,84 @@
+package icecube.daq.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Credit messages sent from a stream reader back to an output channel.
+ *
+ * When credit flow control is enabled, an output channel may only send
+ * as many records and bytes as the reader has granted.  Grants travel in
+ * the reverse direction of the data connection, so they need no framing
+ * beyond a fixed length:
+ * <PRE>
+ *    int length (always 12)
+ *    int number of records granted
+ *    int number of bytes granted
+ * </PRE>
+ */
+final class CreditGrant
+{
+    /** Length of a grant message */
+    static final int LENGTH = 12;
+
+    /** Offset of the number of records */
+    private static final int OFFSET_RECORDS = 4;
+    /** Offset of the number of bytes */
+    private static final int OFFSET_BYTES = 8;
+
+    private CreditGrant()
+    {
+    }
+
+    /**
+     * Get the number of bytes granted.
+     *
+     * @param buf buffer holding a grant
+     * @param pos starting position of the grant
+     *
+     * @return number of bytes
+     */
+    static int getBytes(ByteBuffer buf, int pos)
+    {
+        return buf.getInt(pos + OFFSET_BYTES);
+    }
+
+    /**
+     * Get the number of records granted.
+     *
+     * @param buf buffer holding a grant
+     * @param pos starting position of the grant
+     *
+     * @return number of records
+     */
+    static int getRecords(ByteBuffer buf, int pos)
+    {
+        return buf.getInt(pos + OFFSET_RECORDS);
+    }
+
+    /**
+     * Is this a valid grant?
+     *
+     * @param buf buffer holding a grant
+     * @param pos starting position of the grant
+     *
+     * @return <tt>true</tt> if the length field is correct
+     */
+    static boolean isValid(ByteBuffer buf, int pos)
+    {
+        return buf.getInt(pos) == LENGTH;
+    }
+
+    /**
+     * Append a grant to a buffer.
+     *
+     * @param buf buffer with at least <tt>LENGTH</tt> bytes remaining
+     * @param records number of records granted
+     * @param bytes number of bytes granted
+     */
+    static void put(ByteBuffer buf, int records, int bytes)
+    {
+        buf.putInt(LENGTH);
+        buf.putInt(records);
+        buf.putInt(bytes);
+    }
+}
@@ -9,6 +9,8 @@ package icecube.daq.io;
 import icecube.daq.payload.IByteBufferCache;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 /**
  * @author mcp
@@ -16,6 +18,18 @@ import java.io.IOException;
  */
 public interface DAQComponentInputProcessor extends DAQComponentIOProcess {
 
+    /**
+     * Return the endpoint on which the server is listening.
+     * This is a Unix domain socket address if the server was started on
+     * one, in which case <tt>getServerPort()</tt> is meaningless.
+     *
+     * @return server endpoint (<tt>null</tt> if unknown)
+     */
+    default SocketAddress getServerAddress()
+    {
+        return null;
+    }
+
     int getServerPort();
 
     boolean isDisposing();
@@ -24,4 +38,39 @@ public interface DAQComponentInputProcessor extends DAQComponentIOProcess {
 
     void startServer(IByteBufferCache cache)
         throws IOException;
+
+    /**
+     * Start a server listening on a TCP or Unix domain socket endpoint.
+     * Processors which only implement <tt>startServer(cache)</tt> accept
+     * <tt>null</tt> or a wildcard address with port 0, both of which mean
+     * an ephemeral TCP port on all interfaces.
+     *
+     * @param cache buffer cache for payloads from accepted connections
+     * @param addr server endpoint (<tt>null</tt> for an ephemeral TCP port)
+     *
+     * @throws IOException if the server cannot be started
+     * @throws UnsupportedOperationException if this processor cannot
+     *                                       listen on <tt>addr</tt>
+     */
+    default void startServer(IByteBufferCache cache, SocketAddress addr)
+        throws IOException
+    {
+        if (addr instanceof InetSocketAddress) {
+            InetSocketAddress iAddr = (InetSocketAddress) addr;
+            if (iAddr.getPort() == 0 && iAddr.getAddress() != null &&
+                iAddr.getAddress().isAnyLocalAddress())
+            {
+                addr = null;
+            }
+        }
+
+        if (addr != null) {
+            throw new UnsupportedOperationException(getClass().getName() +
+                                                    " can only listen on" +
+                                                    " an ephemeral TCP" +
+                                                    " port, not " + addr);
+        }
+
+        startServer(cache);
+    }
 }
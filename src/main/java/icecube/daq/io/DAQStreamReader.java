@@ -5,6 +5,9 @@ import icecube.daq.payload.IByteBufferCache;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectableChannel;
@@ -12,9 +15,14 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 
@@ -61,6 +69,13 @@ public abstract class DAQStreamReader
 
     /** selector timeout (in msec.) */
     private static final int SELECTOR_TIMEOUT = 1000;
+    /** selector timeout while credit is being withheld (in msec.) */
+    private static final int CREDIT_RETRY_TIMEOUT = 10;
+    /**
+     * maximum wait for reverse connections (in msec.); well past the
+     * time ReverseConnector needs to exhaust its retries
+     */
+    private static final long REVERSE_CONNECT_WAIT_MSEC = 120000;
 
     /** run states */
     private enum RunState {
@@ -75,7 +90,9 @@ public abstract class DAQStreamReader
     /** worker thread */
     private Thread thread;
     /** input socket selector */
-    private Selector selector;
+    private volatile Selector selector;
+    /** waits for selector events and coalesces wakeups */
+    private SelectSpinner spinner = new SelectSpinner();
     /** current state */
     private RunState state;
     /** new state */
@@ -96,6 +113,8 @@ public abstract class DAQStreamReader
 
     // server port
     private int port = Integer.MIN_VALUE;
+    // server endpoint
+    private SocketAddress serverAddress;
     // hack around a Linux bug -- see startServer() for explanation
     private Flag pauseThread = new Flag("pauseThread");
     // server byte buffer
@@ -113,6 +132,24 @@ public abstract class DAQStreamReader
     // total records received by channels which have been removed
     private int totalReceivedFromRemovedChannels;
 
+    // credit window for new channels (0 if credit flow control is disabled)
+    private long creditWindowBytes;
+    private int creditWindowRecords;
+    // <tt>true</tt> if some channel is still owed credit
+    private boolean creditPending;
+
+    // direct read threshold for new channels (-1 to use channel default)
+    private int directReadThreshold = -1;
+
+    // per-pass framing quota for new channels (0 for no limit)
+    private int quotaBytes;
+    private int quotaRecords;
+    // channels which stopped at their quota on the last pass
+    private ArrayList<InputChannel> pendingList =
+        new ArrayList<InputChannel>();
+    // index of the channel which is continued first on the next pass
+    private int nextPending;
+
     public DAQStreamReader(String name)
     {
         this(name, DEFAULT_BUFFER_SIZE);
@@ -148,12 +185,19 @@ if(DEBUG_ADD)System.err.println("AddChanTop");
 
 if(DEBUG_ADD)System.err.println("AddChanCre "+channel);
         InputChannel chanData = createChannel(channel, name, bufMgr, bufSize);
+        if (creditWindowBytes > 0 && channel instanceof WritableByteChannel) {
+            chanData.setCreditWindow(creditWindowBytes, creditWindowRecords);
+        }
+        if (directReadThreshold >= 0) {
+            chanData.setDirectReadThreshold(directReadThreshold);
+        }
+        if (quotaBytes > 0 || quotaRecords > 0) {
+            chanData.setFramingQuota(quotaBytes, quotaRecords);
+        }
 if(DEBUG_ADD)System.err.println("AddChan "+chanData);
         synchronized (newChanList) {
             newChanList.add(chanData);
-            if (selector != null) {
-                selector.wakeup();
-            }
+            spinner.wakeup(selector);
         }
 if(DEBUG_ADD)System.err.println("AddChanDone");
 
@@ -161,6 +205,36 @@ if(DEBUG_ADD)System.err.println("AddChanEnd");
         return chanData;
     }
 
+    /**
+     * Add an in-process channel.  Records sent through <tt>channel</tt>
+     * are queued and pushed on the reader thread without being framed or
+     * copied.
+     *
+     * @param channel in-process channel
+     * @param name channel name
+     * @param bufMgr buffer cache
+     *
+     * @return new input channel
+     *
+     * @throws IOException if the channel cannot be created
+     */
+    public InputChannel addDataChannel(LocalChannel channel, String name,
+                                       IByteBufferCache bufMgr)
+        throws IOException
+    {
+        InputChannel chanData =
+            addDataChannel(channel.source(), name, bufMgr, bufferSize);
+        chanData.enableLocalInput(new Runnable() {
+                @Override
+                public void run()
+                {
+                    spinner.wakeup(selector);
+                }
+            });
+        channel.setReceiver(chanData);
+        return chanData;
+    }
+
     private void addNewChannels(Selector sel)
     {
 final boolean DEBUG_NEW = false;
@@ -193,10 +267,27 @@ if(DEBUG_NEW)System.err.println("ANend");
     public void addReverseConnection(String hostName, int port,
                                      IByteBufferCache bufCache)
         throws IOException
+    {
+        addReverseConnection(InetSocketAddress.createUnresolved(hostName,
+                                                                port),
+                             bufCache);
+    }
+
+    /**
+     * Add a server endpoint (TCP or Unix domain socket) to which this
+     * reader will connect when processing is started.
+     *
+     * @param addr remote endpoint
+     * @param bufCache buffer cache for payloads from this connection
+     *
+     * @throws IOException if there is a problem
+     */
+    public void addReverseConnection(SocketAddress addr,
+                                     IByteBufferCache bufCache)
+        throws IOException
     {
         synchronized (reverseConnList) {
-            ReverseConnection rConn =
-                new ReverseConnection(hostName, port, bufCache);
+            ReverseConnection rConn = new ReverseConnection(addr, bufCache);
             reverseConnList.add(rConn);
         }
     }
@@ -239,9 +330,7 @@ if(DEBUG_NEW)System.err.println("ANend");
     public void channelStopped(IOChannel chan)
     {
         channelStopFlag.set();
-        if (selector != null) {
-            selector.wakeup();
-        }
+        spinner.wakeup(selector);
     }
 
     public abstract InputChannel createChannel(SelectableChannel channel,
@@ -263,6 +352,17 @@ if(DEBUG_NEW)System.err.println("ANend");
             }
 
             serverChannel = null;
+
+            if (serverAddress instanceof UnixDomainSocketAddress) {
+                UnixDomainSocketAddress uAddr =
+                    (UnixDomainSocketAddress) serverAddress;
+                try {
+                    Files.deleteIfExists(uAddr.getPath());
+                } catch (IOException ioe) {
+                    LOG.error("Cannot remove " + name + " socket " +
+                              uAddr.getPath(), ioe);
+                }
+            }
         }
 
         setState(RunState.DESTROYED);
@@ -282,6 +382,24 @@ if(DEBUG_NEW)System.err.println("ANend");
         notifyClient();
     }
 
+    /**
+     * Send any withheld credit.
+     *
+     * @return <tt>true</tt> if some channel is still owed credit
+     */
+    private boolean grantPendingCredit()
+    {
+        boolean pending = false;
+        synchronized (chanList) {
+            for (InputChannel cd : chanList) {
+                if (cd.grantCredit()) {
+                    pending = true;
+                }
+            }
+        }
+        return pending;
+    }
+
     public synchronized Boolean[] getAllocationStopped() {
         ArrayList allocationStatus = new ArrayList();
         synchronized (chanList) {
@@ -372,6 +490,22 @@ if(DEBUG_NEW)System.err.println("ANend");
         return state.toString();
     }
 
+    /**
+     * Get the longest time spent servicing each channel in a single pass.
+     *
+     * @return maximum service times in nanoseconds
+     */
+    public synchronized Long[] getMaxServiceNanos()
+    {
+        ArrayList<Long> times = new ArrayList<Long>();
+        synchronized (chanList) {
+            for (InputChannel cd : chanList) {
+                times.add(Long.valueOf(cd.getMaxServiceNanos()));
+            }
+        }
+        return times.toArray(new Long[0]);
+    }
+
     public synchronized Long[] getRecordsReceived() {
         ArrayList recordCount = new ArrayList();
         for (InputChannel cd : chanList) {
@@ -380,6 +514,37 @@ if(DEBUG_NEW)System.err.println("ANend");
         return (Long[]) recordCount.toArray(new Long[0]);
     }
 
+    /**
+     * Get the number of selects which had to block.
+     *
+     * @return number of blocking waits
+     */
+    public long getSelectorBlockingWaits()
+    {
+        return spinner.getBlockingWaits();
+    }
+
+    /**
+     * Get the number of selects satisfied while spinning.
+     *
+     * @return number of spin hits
+     */
+    public long getSelectorSpinHits()
+    {
+        return spinner.getSpinHits();
+    }
+
+    /**
+     * Return the endpoint on which the server is listening.
+     *
+     * @return server endpoint (<tt>null</tt> if the server is not started)
+     */
+    @Override
+    public SocketAddress getServerAddress()
+    {
+        return serverAddress;
+    }
+
     @Override
     public int getServerPort() {
         return port;
@@ -395,6 +560,22 @@ if(DEBUG_NEW)System.err.println("ANend");
         return (Long[]) recordCount.toArray(new Long[0]);
     }
 
+    /**
+     * Get the total time spent servicing each channel.
+     *
+     * @return total service times in nanoseconds
+     */
+    public synchronized Long[] getServiceNanos()
+    {
+        ArrayList<Long> times = new ArrayList<Long>();
+        synchronized (chanList) {
+            for (InputChannel cd : chanList) {
+                times.add(Long.valueOf(cd.getServiceNanos()));
+            }
+        }
+        return times.toArray(new Long[0]);
+    }
+
     public String getStringExtra()
     {
         return "";
@@ -459,51 +640,39 @@ if(DEBUG_NEW)System.err.println("ANend");
         throws IOException
     {
         if (!madeReverseConnections) {
-            final int MAX_RETRIES = 10;
-
-            ArrayList<ReverseConnection> retries =
-                new ArrayList<ReverseConnection>(reverseConnList);
-
-            int numRetries = 0;
-            IOException ex = null;
-
-            for ( ; numRetries < MAX_RETRIES; numRetries++) {
-                Iterator<ReverseConnection> iter = retries.iterator();
-                while (iter.hasNext()) {
-                    ReverseConnection rc = iter.next();
+            ArrayList<ReverseConnection> targets;
+            synchronized (reverseConnList) {
+                targets = new ArrayList<ReverseConnection>(reverseConnList);
+            }
 
-                    try {
-                        rc.connect();
-                        iter.remove();
-                    } catch (IOException ioe) {
-                        ex = ioe;
-                    }
-                }
+            ReverseConnector connector = new ReverseConnector(name, targets);
+            try {
+                connector.start().get(REVERSE_CONNECT_WAIT_MSEC,
+                                      TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ee) {
+                LOG.error("Could not make " + name + " reverse connections",
+                          ee.getCause());
+            } catch (InterruptedException ie) {
+                connector.stop();
+                LOG.error("Interrupted while making " + name +
+                          " reverse connections", ie);
+            } catch (TimeoutException te) {
+                connector.stop();
+                LOG.error("Timed out making " + name +
+                          " reverse connections", te);
+            }
+            madeReverseConnections = true;
 
-                if (retries.size() > 0) {
+            // wait for new connections to be noticed
+            synchronized (newChanList) {
+                while (newChanList.size() > 0) {
                     try {
-                        Thread.sleep(10);
+                        newChanList.wait();
                     } catch (InterruptedException ie) {
                         // ignore interrupts
                     }
                 }
             }
-            madeReverseConnections = true;
-
-            if (retries.size() > 0) {
-                LOG.error("Could not connect " + retries.get(0), ex);
-            } else {
-                // wait for new connections to be noticed
-                synchronized (newChanList) {
-                    while (newChanList.size() > 0) {
-                        try {
-                            newChanList.wait();
-                        } catch (InterruptedException ie) {
-                            // ignore interrupts
-                        }
-                    }
-                }
-            }
         }
     }
 
@@ -529,9 +698,7 @@ if(DEBUG_NEW)System.err.println("ANend");
             // make sure worker thread isn't stuck someplace
             synchronized (stateLock) {
                 stateLock.notify();
-                if (selector != null) {
-                    selector.wakeup();
-                }
+                spinner.wakeup(selector);
             }
 
             // wait for thread to notify us that it has paused
@@ -549,6 +716,76 @@ if(DEBUG_NEW)System.err.println("ANend");
         this.compObserver = compObserver;
     }
 
+    /**
+     * Continue channels which stopped at their quota on the last pass,
+     * starting with a different channel each time so none is always
+     * served first.
+     *
+     * @return <tt>true</tt> if any channel still has records to push
+     */
+    private boolean processPendingChannels()
+    {
+        if (state != RunState.RUNNING && state != RunState.DISPOSING) {
+            return false;
+        }
+
+        pendingList.clear();
+        synchronized (chanList) {
+            for (InputChannel cd : chanList) {
+                if (cd.isFramingPending()) {
+                    pendingList.add(cd);
+                }
+            }
+        }
+
+        final int num = pendingList.size();
+        if (num == 0) {
+            return false;
+        }
+
+        boolean stillPending = false;
+        for (int i = 0; i < num; i++) {
+            InputChannel chanData = pendingList.get((nextPending + i) % num);
+
+            final long startNanos = System.nanoTime();
+            try {
+                chanData.processPending();
+            } catch (IOException ioe) {
+                LOG.error("Couldn't push pending records for " + chanData,
+                          ioe);
+                chanData.cancelSelection();
+                try {
+                    chanData.close();
+                } catch (IOException cioe) {
+                    LOG.error("Couldn't close input channel " + chanData,
+                              cioe);
+                }
+                removeChannel(chanData);
+                continue;
+            }
+            chanData.addServiceTime(System.nanoTime() - startNanos);
+
+            if (chanData.isFramingPending()) {
+                stillPending = true;
+            }
+        }
+        nextPending = (nextPending + 1) % num;
+
+        return stillPending;
+    }
+
+    /**
+     * Called on the reader thread after a channel has been dropped
+     * because of an error, or because it was readable while the reader
+     * was not running.  The channel may not have seen a stop message.
+     *
+     * @param chanData removed channel
+     */
+    protected void channelRemoved(InputChannel chanData)
+    {
+        // subclasses may need to forget about this channel
+    }
+
     private void removeChannel(InputChannel chanData)
     {
         synchronized (chanList) {
@@ -562,6 +799,8 @@ if(DEBUG_NEW)System.err.println("ANend");
                 channelStopFlag.set();
             }
         }
+
+        channelRemoved(chanData);
     }
 
     @Override
@@ -598,7 +837,12 @@ if(DEBUG_RUN)System.err.println("Rstart "+cd);
                     // do nothing
                     break;
                 case DISPOSING:
-                    // do nothing
+                    // drain the backlog without framing it
+                    synchronized (chanList) {
+                        for (InputChannel cd : chanList) {
+                            cd.startDiscarding();
+                        }
+                    }
                     break;
                 case DESTROYED:
                     break;
@@ -639,10 +883,21 @@ if(DEBUG_RUN)System.err.println("RpauseAwake");
             // let subclasses do any special processing
             runSubprocess();
 
+            // give channels which used up their quota another turn
+            final boolean framingPending = processPendingChannels();
+
             int numSelected;
             try {
 if(DEBUG_RUN)System.err.println("Rsel");
-                numSelected = selector.select(SELECTOR_TIMEOUT);
+                if (framingPending) {
+                    // don't wait while records are waiting to be pushed
+                    numSelected = spinner.selectNow(selector);
+                } else {
+                    final int timeout = (creditPending ?
+                                         CREDIT_RETRY_TIMEOUT :
+                                         SELECTOR_TIMEOUT);
+                    numSelected = spinner.select(selector, timeout);
+                }
             } catch (IOException ioe) {
                 LOG.error("Error on selection: ", ioe);
                 numSelected = 0;
@@ -703,9 +958,12 @@ if(DEBUG_RUN)System.err.println("Rremove "+state);
                         removeChannel(chanData);
                         selKey.cancel();
                     } else {
+                        final long startNanos = System.nanoTime();
                         try {
 if(DEBUG_RUN)System.err.println("Rproc chanData "+chanData);
                             chanData.processSelect(selKey);
+                            chanData.addServiceTime(System.nanoTime() -
+                                                    startNanos);
                         } catch (ClosedChannelException cce) {
                             // channel went away
                             selKey.cancel();
@@ -718,6 +976,10 @@ if(DEBUG_RUN)System.err.println("Rproc chanData "+chanData);
                 }
             }
 
+            if (creditWindowBytes > 0) {
+                creditPending = grantPendingCredit();
+            }
+
             if (channelStopFlag.isSet()) {
                 channelStopFlag.clear();
 if(DEBUG_RUN)System.err.println("RchkStop "+chanList.size()+" chans "+chanList);
@@ -781,6 +1043,84 @@ if(DEBUG_RUN)System.err.println("Rexit");
     {
     }
 
+    /**
+     * Enable credit flow control for socket channels added after this
+     * call.  The sender may only have <tt>bytes</tt> bytes and
+     * <tt>records</tt> records in flight, and credit is only returned
+     * while the buffer cache is below its allocation limit.  The output
+     * engine must also have credit flow control enabled.
+     *
+     * @param bytes byte window (0 to disable credit flow control)
+     * @param records record window
+     */
+    public void setCreditWindow(long bytes, int records)
+    {
+        if (bytes < 0 || bytes > Integer.MAX_VALUE ||
+            (bytes > 0 && records <= 0))
+        {
+            throw new IllegalArgumentException("Bad credit window (" +
+                                               bytes + " bytes, " +
+                                               records + " records)");
+        }
+
+        creditWindowBytes = bytes;
+        creditWindowRecords = records;
+    }
+
+    /**
+     * Limit the records pushed for each channel on a single pass through
+     * the selector loop, so a busy channel with a large input buffer
+     * cannot hold up the others.  Records left over are pushed on later
+     * passes, taking turns with the other unfinished channels.  Only
+     * affects channels added after this call.
+     *
+     * @param bytes maximum bytes per pass (0 for no limit)
+     * @param records maximum records per pass (0 for no limit)
+     */
+    public void setFramingQuota(int bytes, int records)
+    {
+        if (bytes < 0 || records < 0) {
+            throw new IllegalArgumentException("Bad framing quota (" +
+                                               bytes + " bytes, " +
+                                               records + " records)");
+        }
+
+        quotaBytes = bytes;
+        quotaRecords = records;
+    }
+
+    /**
+     * Read records of at least <tt>length</tt> bytes from channels added
+     * after this call straight into their own buffer, rather than
+     * accumulating them in the channel's input buffer and copying them.
+     * By default, records which are at least as long as the input buffer
+     * are read directly.
+     *
+     * @param length minimum record length (0 to always stage records)
+     */
+    public void setDirectReadThreshold(int length)
+    {
+        if (length < 0) {
+            throw new IllegalArgumentException("Direct read threshold must" +
+                                               " not be negative, not " +
+                                               length);
+        }
+
+        directReadThreshold = length;
+    }
+
+    /**
+     * Poll the selector for up to <tt>usec</tt> microseconds before
+     * blocking.  This lowers per-record latency at the cost of a busy
+     * CPU core.
+     *
+     * @param usec spin budget in microseconds (0 to always block)
+     */
+    public void setSelectorSpinMicros(long usec)
+    {
+        spinner.setSpinMicros(usec);
+    }
+
     private void setState(RunState newState)
     {
 final boolean DEBUG_SET = false;
@@ -789,9 +1129,7 @@ if(DEBUG_SET)System.err.println("SSTtop");
             this.newState = newState;
 if(DEBUG_SET)System.err.println("SSTnewState="+newState);
             stateLock.notify();
-            if (selector != null) {
-                selector.wakeup();
-            }
+            spinner.wakeup(selector);
         }
 if(DEBUG_SET)System.err.println("SSTend");
     }
@@ -847,6 +1185,22 @@ if(DEBUG_SET)System.err.println("SSTend");
     public void startServer(IByteBufferCache serverCache)
         throws IOException
     {
+        startServer(serverCache, null);
+    }
+
+    /**
+     * Start a server listening on the specified endpoint.
+     *
+     * @param serverCache buffer cache for payloads from accepted connections
+     * @param addr TCP or Unix domain socket endpoint
+     *             (if <tt>null</tt>, an ephemeral TCP port is used)
+     *
+     * @throws IOException if the server cannot be started
+     */
+    @Override
+    public void startServer(IByteBufferCache serverCache, SocketAddress addr)
+        throws IOException
+    {
 final boolean DEBUG_SS = false;
 if(DEBUG_SS)System.err.println("SStop");
         // hack around Linux kernel bug:
@@ -858,16 +1212,26 @@ if(DEBUG_SS)System.err.println("SSpause");
         pause();
 if(DEBUG_SS)System.err.println("SSwork");
 
-        serverChannel = ServerSocketChannel.open();
-        serverChannel.configureBlocking(false);
-
-        serverChannel.socket().bind(null);
-        port = serverChannel.socket().getLocalPort();
+        try {
+            if (addr instanceof UnixDomainSocketAddress) {
+                serverChannel =
+                    ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            } else {
+                serverChannel = ServerSocketChannel.open();
+            }
+            serverChannel.configureBlocking(false);
 
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            serverChannel.bind(addr);
+            serverAddress = serverChannel.getLocalAddress();
+            if (serverAddress instanceof InetSocketAddress) {
+                port = ((InetSocketAddress) serverAddress).getPort();
+            }
 
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } finally {
 if(DEBUG_SS)System.err.println("SSready");
-        unpause();
+            unpause();
+        }
 if(DEBUG_SS)System.err.println("SSdone");
 
         this.serverCache = serverCache;
@@ -896,54 +1260,43 @@ if(DEBUG_SS)System.err.println("SSdone");
     }
 
     /**
-     * An internet port which input engine needs to connect to in order to
-     * receive data.
+     * A TCP or Unix domain endpoint which input engine needs to connect to
+     * in order to receive data.
      */
     class ReverseConnection
+        implements ReverseConnector.Target
     {
-        private String hostName;
-        private int port;
+        private SocketAddress addr;
         private IByteBufferCache bufCache;
 
-        ReverseConnection(String hostName, int port, IByteBufferCache bufCache)
+        ReverseConnection(SocketAddress addr, IByteBufferCache bufCache)
         {
-            this.hostName = hostName;
-            this.port = port;
+            this.addr = addr;
             this.bufCache = bufCache;
         }
 
-        void connect()
+        @Override
+        public void connected(SocketChannel chan)
             throws IOException
         {
-            SocketChannel sock =
-                SocketChannel.open(new InetSocketAddress(hostName, port));
-
-            boolean finished = false;
-            for (int i = 0; i < 10; i++) {
-                if (sock.finishConnect()) {
-                    finished = true;
-                    break;
-                }
-
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ie) {
-                    // ignore interrupts
-                }
-            }
-
-            if (!finished) {
-                throw new IOException("Could not finish connection to " +
-                                      hostName + ":" + port);
-            }
+            addSocketChannel(chan, bufCache);
+        }
 
-            addSocketChannel(sock, bufCache);
+        @Override
+        public SocketAddress getAddress()
+        {
+            return addr;
         }
 
         @Override
         public String toString()
         {
-            return hostName + ":" + port;
+            if (addr instanceof InetSocketAddress) {
+                InetSocketAddress iAddr = (InetSocketAddress) addr;
+                return iAddr.getHostString() + ":" + iAddr.getPort();
+            }
+
+            return addr.toString();
         }
     }
 }
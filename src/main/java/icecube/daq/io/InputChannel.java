@@ -9,6 +9,8 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.log4j.Logger;
 
@@ -33,13 +35,51 @@ public abstract class InputChannel
     private ByteBuffer inputBuf;
     private int bufPos;
 
-    private boolean stopped;
+    // records at least this long are read straight into their own buffer
+    // (disabled if 0)
+    private int directThreshold;
+    private ByteBuffer directBuf;
+
+    // skips input while the reader is disposing (null while framing)
+    private RecordDiscarder discarder;
+
+    // maximum bytes and records pushed per pass (0 for no limit)
+    private int quotaBytes;
+    private int quotaRecords;
+    // <tt>true</tt> if the last pass stopped at the quota
+    private boolean framingPending;
+
+    // time spent servicing this channel
+    private long serviceNanos;
+    private long maxServiceNanos;
+    private long servicePasses;
+
+    private volatile boolean stopped;
+
+    // records from an in-process sender waiting to be pushed on the
+    // reader thread (null unless this is an in-process channel)
+    private volatile ConcurrentLinkedQueue<LocalRecord> localQueue;
+    // wakes the reader thread after a record is queued
+    private Runnable localWaker;
+    // <tt>true</tt> if the in-process sender closed its end while records
+    // were still queued
+    private boolean localClosed;
+
+    // selector registration
+    private volatile SelectionKey selKey;
 
     // buffer manager limits
     private long limitToStopAllocation = 0;
     private long limitToRestartAllocation = 0;
     private boolean allocationStopped = false;
 
+    // credit flow control (disabled if the window is 0)
+    private long creditWindowBytes;
+    private int creditWindowRecords;
+    private long owedBytes;
+    private int owedRecords;
+    private ByteBuffer grantBuf;
+
     // input statistics
     private long bytesReceived;
     private long recordsReceived;
@@ -57,6 +97,7 @@ public abstract class InputChannel
         this.name = name + ":" + id;
         this.bufMgr = bufMgr;
         this.inputBuf = ByteBuffer.allocate(bufSize);
+        this.directThreshold = bufSize;
 
         stopped = true;
 
@@ -93,6 +134,114 @@ public abstract class InputChannel
         channel.close();
     }
 
+    /**
+     * Throw away everything read since the last call, watching only for
+     * the stop message.
+     */
+    private void discardInput()
+    {
+        final long prevBytes = discarder.getBytesDiscarded();
+        final long prevRecords = discarder.getRecordsDiscarded();
+
+        inputBuf.flip();
+        final boolean gotStop = discarder.discard(inputBuf);
+        inputBuf.compact();
+
+        if (creditWindowBytes > 0) {
+            // keep the sender going so it can reach its stop message
+            owedBytes += discarder.getBytesDiscarded() - prevBytes;
+            owedRecords +=
+                (int) (discarder.getRecordsDiscarded() - prevRecords);
+        }
+
+        if (gotStop) {
+            stopped = true;
+            stopsReceived++;
+            notifyOnStop();
+            inputBuf.clear();
+        }
+    }
+
+    /**
+     * Finish reading a large record into its own buffer and push it.
+     *
+     * @return <tt>false</tt> if the record is not yet complete
+     *
+     * @throws IOException if the record could not be pushed
+     */
+    private boolean finishDirectRead()
+        throws IOException
+    {
+        if (directBuf.hasRemaining()) {
+            return false;
+        }
+
+        ByteBuffer payBuf = directBuf;
+        directBuf = null;
+
+        final int length = payBuf.limit();
+
+        bytesReceived += length;
+        recordsReceived++;
+
+        payBuf.flip();
+        pushPayload(payBuf);
+
+        if (creditWindowBytes > 0) {
+            owedBytes += length;
+            owedRecords++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Send any credit owed to the output channel.  Credit is sent once
+     * half of either window has been used, and is withheld while the
+     * buffer cache is above its allocation limit.
+     *
+     * @return <tt>true</tt> if credit is still owed and this method should
+     *         be called again
+     */
+    boolean grantCredit()
+    {
+        if (creditWindowBytes == 0 || stopped) {
+            return false;
+        }
+
+        try {
+            // finish sending any partially written grant
+            if (grantBuf.hasRemaining()) {
+                ((WritableByteChannel) channel).write(grantBuf);
+                if (grantBuf.hasRemaining()) {
+                    return true;
+                }
+            }
+
+            if (owedRecords == 0 ||
+                (owedBytes < creditWindowBytes / 2 &&
+                 owedRecords < creditWindowRecords / 2))
+            {
+                // the sender still has plenty of credit
+                return false;
+            }
+
+            if (discarder == null &&
+                bufMgr.getCurrentAcquiredBytes() >= limitToStopAllocation)
+            {
+                // wait for the buffer cache to drain
+                return true;
+            }
+
+            sendGrant();
+            return grantBuf.hasRemaining();
+        } catch (IOException ioe) {
+            LOG.error("Cannot send credit for " + name, ioe);
+            creditWindowBytes = 0;
+            return false;
+        }
+    }
+
     private ByteBuffer fillBuffer(int length)
     {
 final boolean DEBUG_FILL = false;
@@ -138,6 +287,21 @@ if(DEBUG_FILL)System.err.println("FillEnd "+inputBuf+" bufPos "+bufPos+" payBuf
         return payloadBuf;
     }
 
+    /**
+     * Record the time spent in one call to processSelect() or
+     * processPending().
+     *
+     * @param nanos elapsed time in nanoseconds
+     */
+    void addServiceTime(long nanos)
+    {
+        serviceNanos += nanos;
+        servicePasses++;
+        if (nanos > maxServiceNanos) {
+            maxServiceNanos = nanos;
+        }
+    }
+
     long getBufferCurrentAcquiredBuffers()
     {
         return bufMgr.getCurrentAcquiredBuffers();
@@ -153,6 +317,11 @@ if(DEBUG_FILL)System.err.println("FillEnd "+inputBuf+" bufPos "+bufPos+" payBuf
         return bytesReceived;
     }
 
+    int getDirectReadThreshold()
+    {
+        return directThreshold;
+    }
+
     long getLimitToStopAllocation()
     {
         return limitToStopAllocation;
@@ -168,11 +337,26 @@ if(DEBUG_FILL)System.err.println("FillEnd "+inputBuf+" bufPos "+bufPos+" payBuf
         return parent;
     }
 
+    long getMaxServiceNanos()
+    {
+        return maxServiceNanos;
+    }
+
     long getRecordsReceived()
     {
         return recordsReceived;
     }
 
+    long getServiceNanos()
+    {
+        return serviceNanos;
+    }
+
+    long getServicePasses()
+    {
+        return servicePasses;
+    }
+
     long getStopMessagesReceived()
     {
         return stopsReceived;
@@ -183,6 +367,18 @@ if(DEBUG_FILL)System.err.println("FillEnd "+inputBuf+" bufPos "+bufPos+" payBuf
         return allocationStopped;
     }
 
+    /**
+     * Did the last pass stop at the quota with records left to push, or
+     * is an in-process sender waiting for its records to be pushed?
+     *
+     * @return <tt>true</tt> if processPending() should be called
+     */
+    boolean isFramingPending()
+    {
+        return framingPending ||
+            (localQueue != null && !localQueue.isEmpty());
+    }
+
     public boolean isOpen()
     {
         return channel.isOpen();
@@ -200,14 +396,54 @@ if(DEBUG_FILL)System.err.println("FillEnd "+inputBuf+" bufPos "+bufPos+" payBuf
         }
     }
 
+    /**
+     * Cancel this channel's selector registration.
+     */
+    void cancelSelection()
+    {
+        final SelectionKey key = selKey;
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    /**
+     * Stop watching this channel for input until resumeReading() is called.
+     * Records which have already been read are still pushed.
+     */
+    void pauseReading()
+    {
+        final SelectionKey key = selKey;
+        if (key != null && key.isValid()) {
+            key.interestOps(0);
+        }
+    }
+
     public void processSelect(SelectionKey selKey)
         throws IOException
     {
 final boolean DEBUG_SELECT = false;
 if(DEBUG_SELECT)System.err.println("SelTop "+inputBuf);
-        int numBytes = ((ReadableByteChannel) channel).read(inputBuf);
+        final ByteBuffer readBuf = (directBuf != null ? directBuf : inputBuf);
+        int numBytes = ((ReadableByteChannel) channel).read(readBuf);
         if (numBytes < 0) {
             channel.close();
+            if (directBuf != null) {
+                // drop the partial record
+                bufMgr.returnBuffer(directBuf);
+                directBuf = null;
+            }
+            if (stopped) {
+                // sender closed the channel after its stop message
+                selKey.cancel();
+                return;
+            }
+            if (localQueue != null && !localQueue.isEmpty()) {
+                // push what the in-process sender queued before it closed
+                selKey.cancel();
+                localClosed = true;
+                return;
+            }
             notifyOnStop();
             throw new ClosedChannelException();
         }
@@ -224,8 +460,50 @@ if(DEBUG_SELECT)System.err.println("SelStopping");
             return;
         }
 
+        if (discarder != null) {
+            discardInput();
+            if (creditWindowBytes > 0) {
+                grantCredit();
+            }
+            return;
+        }
+
+        if (directBuf != null && !finishDirectRead()) {
+            // wait for the rest of the large record
+            if (creditWindowBytes > 0) {
+                grantCredit();
+            }
+            return;
+        }
+
+        frameInput();
+    }
+
+    /**
+     * Push the complete records in the input buffer, stopping early once
+     * this pass's quota has been used so other channels get a turn.
+     *
+     * @throws IOException if a record could not be pushed
+     */
+    private void frameInput()
+        throws IOException
+    {
+final boolean DEBUG_SELECT = false;
+        framingPending = false;
+
+        int numRecs = 0;
+        long numBytes = 0;
+
         while (true) {
 if(DEBUG_SELECT)System.err.println("SelLoop");
+            if ((quotaRecords > 0 && numRecs >= quotaRecords) ||
+                (quotaBytes > 0 && numBytes >= quotaBytes))
+            {
+                // finish the rest on the next pass
+                framingPending = true;
+                break;
+            }
+
             // if buffer does not contain enough bytes for the payload length...
             if (inputBuf.position() < bufPos + INT_SIZE) {
 if(DEBUG_SELECT)System.err.println("  NotSize "+inputBuf+" bufPos "+bufPos);
@@ -267,45 +545,21 @@ if(DEBUG_SELECT)System.err.println("  GotStop");
                 break;
             }
 
-            // check for allocation limits
-            if (bufMgr.getCurrentAcquiredBytes() >= limitToStopAllocation) {
-                if (!allocationStopped) {
-                    LOG.error(name + " channel#" + id +
-                              " stopped: AcqBytes " +
-                              bufMgr.getCurrentAcquiredBytes() +
-                              " >= limit " + limitToStopAllocation);
+            // check for allocation limits (credit limits the sender instead)
+            if (creditWindowBytes == 0 && isAllocationBlocked()) {
 if(DEBUG_SELECT)System.err.println("  AllocStopped");
-                    allocationStopped = true;
-                }
-
                 break;
             }
 
-            // if byte buffer allocation was stopped...
-            if (allocationStopped) {
-                if (bufMgr.getCurrentAcquiredBytes() >
-                    limitToRestartAllocation)
-                {
-                    // give buffer cache a chance to clear out
-                    try {
-                        Thread.sleep(1000);
-                    } catch (Exception ie) {
-                        // ignore interrupts
-                    }
+            // if buffer does not contain enough bytes for the payload length...
+            if (inputBuf.position() < bufPos + length) {
+                if (directThreshold > 0 && length >= directThreshold) {
+if(DEBUG_SELECT)System.err.println("  Direct");
+                    // read the rest of this record straight into its buffer
+                    startDirectRead(length);
                     break;
                 }
 
-if(DEBUG_SELECT)System.err.println("  RestartAlloc");
-                // restart allocation
-                allocationStopped = false;
-                LOG.error(name + " channel#" + id +
-                          " restarted: AcqBytes " +
-                          bufMgr.getCurrentAcquiredBytes() + " <= limit " +
-                          limitToRestartAllocation);
-            }
-
-            // if buffer does not contain enough bytes for the payload length...
-            if (inputBuf.position() < bufPos + length) {
 if(DEBUG_SELECT)System.err.println("  SmallBuf");
                 // if buffer cannot hold the payload length...
                 if (inputBuf.limit() < bufPos + length) {
@@ -333,16 +587,309 @@ if(DEBUG_SELECT)System.err.println("  NullBuf");
             payBuf.flip();
 if(DEBUG_SELECT)System.err.println("  Got "+payBuf);
             pushPayload(payBuf);
+
+            numRecs++;
+            numBytes += length;
+
+            if (creditWindowBytes > 0) {
+                owedBytes += length;
+                owedRecords++;
+            }
+        }
+
+        flushPayloads();
+
+        if (creditWindowBytes > 0) {
+            grantCredit();
+        }
+    }
+
+    /**
+     * Check the buffer cache against the allocation limits, stopping
+     * allocation when the upper limit is reached and restarting it once
+     * usage drops below the lower limit.
+     *
+     * @return <tt>true</tt> if no more records should be pushed for now
+     */
+    private boolean isAllocationBlocked()
+    {
+        if (bufMgr.getCurrentAcquiredBytes() >= limitToStopAllocation) {
+            if (!allocationStopped) {
+                LOG.error(name + " channel#" + id +
+                          " stopped: AcqBytes " +
+                          bufMgr.getCurrentAcquiredBytes() +
+                          " >= limit " + limitToStopAllocation);
+                allocationStopped = true;
+            }
+
+            return true;
+        }
+
+        // if byte buffer allocation was stopped...
+        if (allocationStopped) {
+            if (bufMgr.getCurrentAcquiredBytes() > limitToRestartAllocation) {
+                // give buffer cache a chance to clear out
+                try {
+                    Thread.sleep(1000);
+                } catch (Exception ie) {
+                    // ignore interrupts
+                }
+                return true;
+            }
+
+            // restart allocation
+            allocationStopped = false;
+            LOG.error(name + " channel#" + id +
+                      " restarted: AcqBytes " +
+                      bufMgr.getCurrentAcquiredBytes() + " <= limit " +
+                      limitToRestartAllocation);
+        }
+
+        return false;
+    }
+
+    /**
+     * Called after all the payloads framed from a single read (or a
+     * batch of local records) have been passed to pushPayload(), so
+     * subclasses which collect payloads can hand them off as a batch.
+     *
+     * @throws IOException if the payloads could not be pushed
+     */
+    protected void flushPayloads()
+        throws IOException
+    {
+        // by default, payloads are handled as they are pushed
+    }
+
+    /**
+     * Continue pushing records left in the input buffer when the last
+     * pass stopped at the quota.
+     *
+     * @throws IOException if a record could not be pushed
+     */
+    void processPending()
+        throws IOException
+    {
+        if (localQueue != null) {
+            pushLocal();
+            return;
+        }
+
+        if (!framingPending) {
+            return;
+        }
+
+        if (stopped || discarder != null || directBuf != null) {
+            // nothing left to frame
+            framingPending = false;
+            return;
+        }
+
+        frameInput();
+    }
+
+    /**
+     * Accept records from an in-process sender through
+     * <tt>receiveLocal()</tt>.  Must be called before the channel is
+     * handed to the sender.
+     *
+     * @param waker wakes the reader thread after a record is queued
+     */
+    void enableLocalInput(Runnable waker)
+    {
+        localWaker = waker;
+        localQueue = new ConcurrentLinkedQueue<LocalRecord>();
+    }
+
+    /**
+     * Push the records queued by an in-process sender, stopping early
+     * once this pass's quota has been used.  Records are dropped while
+     * the reader is disposing or after the stop message.  Called on the
+     * reader thread.
+     *
+     * @throws IOException if a record could not be pushed
+     */
+    private void pushLocal()
+        throws IOException
+    {
+        int numRecs = 0;
+        long numBytes = 0;
+
+        while (true) {
+            if ((quotaRecords > 0 && numRecs >= quotaRecords) ||
+                (quotaBytes > 0 && numBytes >= quotaBytes))
+            {
+                // finish the rest on the next pass
+                break;
+            }
+
+            LocalRecord rec = localQueue.peek();
+            if (rec == null) {
+                break;
+            }
+
+            final ByteBuffer buf = rec.buf;
+            final int length = (buf.limit() < INT_SIZE ? 0 : buf.getInt(0));
+
+            // if this is a stop message...
+            if (length == INT_SIZE) {
+                localQueue.poll();
+                if (!stopped) {
+                    stopped = true;
+                    stopsReceived++;
+                    notifyOnStop();
+                }
+                continue;
+            }
+
+            if (stopped || discarder != null || length < INT_SIZE ||
+                length > buf.limit())
+            {
+                localQueue.poll();
+                if (stopped) {
+                    LOG.error("Dropping " + length + "-byte payload sent" +
+                              " to stopped " + name);
+                } else if (discarder == null) {
+                    LOG.error("Huh?  Saw " + length + "-byte payload for " +
+                              name);
+                }
+
+                if (rec.srcMgr != null) {
+                    rec.srcMgr.returnBuffer(buf);
+                }
+                continue;
+            }
+
+            if (isAllocationBlocked()) {
+                // leave the rest queued until the cache drains
+                break;
+            }
+
+            localQueue.poll();
+
+            ByteBuffer payBuf;
+            if (rec.srcMgr == bufMgr) {
+                payBuf = buf;
+            } else {
+                payBuf = bufMgr.acquireBuffer(length);
+                if (payBuf == null) {
+                    LOG.error("Cannot acquire " + name + " " + length +
+                              "-byte buffer");
+                    if (rec.srcMgr != null) {
+                        rec.srcMgr.returnBuffer(buf);
+                    }
+                    continue;
+                }
+
+                buf.position(0);
+                buf.limit(length);
+
+                payBuf.clear();
+                payBuf.put(buf);
+
+                if (rec.srcMgr != null) {
+                    rec.srcMgr.returnBuffer(buf);
+                }
+            }
+
+            payBuf.position(0);
+            payBuf.limit(length);
+
+            bytesReceived += length;
+            recordsReceived++;
+
+            pushPayload(payBuf);
+
+            numRecs++;
+            numBytes += length;
+        }
+
+        if (numRecs > 0) {
+            flushPayloads();
+        }
+
+        if (localClosed && !stopped && localQueue.isEmpty()) {
+            // sender went away without sending a stop message
+            notifyOnStop();
+            throw new ClosedChannelException();
         }
     }
 
     public abstract void pushPayload(ByteBuffer payBuf)
         throws IOException;
 
+    /**
+     * Receive a record from an in-process output channel.  The record is
+     * queued and pushed later on the reader thread, once the reader is
+     * running.  If the sender and this channel share a buffer cache, the
+     * buffer itself is pushed, otherwise the record is copied into a
+     * buffer from this channel's cache and the original is returned to
+     * <tt>srcMgr</tt>.
+     *
+     * @param buf record
+     * @param srcMgr buffer cache which owns <tt>buf</tt>
+     */
+    void receiveLocal(ByteBuffer buf, IByteBufferCache srcMgr)
+    {
+        if (localQueue == null) {
+            throw new Error(name + " is not an in-process channel");
+        }
+
+        if (!channel.isOpen()) {
+            // the reader has already dropped this channel
+            final int length =
+                (buf.limit() < INT_SIZE ? 0 : buf.getInt(0));
+            if (length != INT_SIZE) {
+                LOG.error("Dropping " + length + "-byte payload sent to" +
+                          " closed " + name);
+                if (srcMgr != null) {
+                    srcMgr.returnBuffer(buf);
+                }
+            }
+            return;
+        }
+
+        localQueue.add(new LocalRecord(buf, srcMgr));
+        localWaker.run();
+    }
+
     public void register(Selector sel)
         throws ClosedChannelException
     {
-        channel.register(sel, SelectionKey.OP_READ, this);
+        selKey = channel.register(sel, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Start watching this channel for input again after pauseReading().
+     * May be called from any thread.
+     */
+    void resumeReading()
+    {
+        final SelectionKey key = selKey;
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ);
+            key.selector().wakeup();
+        }
+    }
+
+    /**
+     * Send a grant for all owed credit.
+     *
+     * @throws IOException if the grant could not be written
+     */
+    private void sendGrant()
+        throws IOException
+    {
+        final int bytes = (int) Math.min(owedBytes, Integer.MAX_VALUE);
+
+        grantBuf.clear();
+        CreditGrant.put(grantBuf, owedRecords, bytes);
+        grantBuf.flip();
+
+        owedBytes -= bytes;
+        owedRecords = 0;
+
+        ((WritableByteChannel) channel).write(grantBuf);
     }
 
     private void setAllocationLimits()
@@ -364,9 +911,148 @@ if(DEBUG_SELECT)System.err.println("  Got "+payBuf);
             (((maxAllocation % 100L) * PERCENT_RESTART_ALLOCATION) / 100L);
     }
 
+    /**
+     * Enable credit flow control.  The sender may only have
+     * <tt>bytes</tt> bytes and <tt>records</tt> records in flight; credit
+     * is returned over the same channel as records are received.
+     *
+     * @param bytes byte window
+     * @param records record window
+     */
+    void setCreditWindow(long bytes, int records)
+    {
+        if (!(channel instanceof WritableByteChannel)) {
+            throw new IllegalArgumentException("Cannot send credit on " +
+                                               name);
+        }
+        if (bytes <= 0 || bytes > Integer.MAX_VALUE || records <= 0) {
+            throw new IllegalArgumentException("Bad credit window (" +
+                                               bytes + " bytes, " +
+                                               records + " records)");
+        }
+
+        creditWindowBytes = bytes;
+        creditWindowRecords = records;
+
+        grantBuf = ByteBuffer.allocate(CreditGrant.LENGTH);
+        grantBuf.limit(0);
+    }
+
+    /**
+     * Limit the work done for this channel on each pass through the
+     * selector loop.  Records left over are pushed on later passes.
+     *
+     * @param bytes maximum bytes per pass (0 for no limit)
+     * @param records maximum records per pass (0 for no limit)
+     */
+    void setFramingQuota(int bytes, int records)
+    {
+        if (bytes < 0 || records < 0) {
+            throw new IllegalArgumentException("Bad framing quota (" +
+                                               bytes + " bytes, " +
+                                               records + " records)");
+        }
+
+        quotaBytes = bytes;
+        quotaRecords = records;
+    }
+
+    /**
+     * Read records of at least <tt>length</tt> bytes straight into
+     * their own buffer rather than staging them in the input buffer.
+     *
+     * @param length minimum record length (0 to always stage records)
+     */
+    void setDirectReadThreshold(int length)
+    {
+        if (length < 0) {
+            throw new IllegalArgumentException("Direct read threshold must" +
+                                               " not be negative, not " +
+                                               length);
+        }
+
+        directThreshold = length;
+    }
+
+    /**
+     * Move the start of a large record from the input buffer into a
+     * newly acquired buffer.  The rest of the record will be read
+     * directly into that buffer.
+     *
+     * @param length record length
+     */
+    private void startDirectRead(int length)
+    {
+        ByteBuffer payBuf = bufMgr.acquireBuffer(length);
+        if (payBuf == null) {
+            LOG.error("Cannot acquire " + name + " " + length +
+                      "-byte buffer");
+            return;
+        }
+
+        payBuf.clear();
+        payBuf.limit(length);
+
+        // everything after bufPos belongs to this record
+        inputBuf.limit(inputBuf.position());
+        inputBuf.position(bufPos);
+        payBuf.put(inputBuf);
+
+        inputBuf.clear();
+        bufPos = 0;
+
+        directBuf = payBuf;
+    }
+
+    /**
+     * Stop framing input and throw it away as cheaply as possible until
+     * the stop message arrives.  Only the length of each record is
+     * examined; no buffers are acquired and nothing is pushed or counted
+     * as received.  Must be called from the selector thread.
+     */
+    void startDiscarding()
+    {
+        if (discarder != null) {
+            return;
+        }
+
+        discarder = new RecordDiscarder();
+        framingPending = false;
+
+        if (directBuf != null) {
+            // skip the rest of the partially read large record
+            discarder.skip(directBuf.remaining());
+            bufMgr.returnBuffer(directBuf);
+            directBuf = null;
+        }
+
+        // move unframed input to the front of the buffer
+        inputBuf.limit(inputBuf.position());
+        inputBuf.position(bufPos);
+        inputBuf.compact();
+        bufPos = 0;
+
+        if (inputBuf.position() > 0 && !stopped) {
+            discardInput();
+        }
+    }
+
     public void startReading()
     {
+        final boolean wasStopped = stopped;
         stopped = false;
+        discarder = null;
+
+        if (creditWindowBytes > 0 && wasStopped) {
+            // grant the initial window
+            owedBytes = creditWindowBytes;
+            owedRecords = creditWindowRecords;
+            try {
+                sendGrant();
+            } catch (IOException ioe) {
+                LOG.error("Cannot send initial credit for " + name, ioe);
+            }
+        }
     }
 
     @Override
@@ -374,4 +1060,21 @@ if(DEBUG_SELECT)System.err.println("  Got "+payBuf);
     {
         return parent.toString() + "=>InputChannel#" + id;
     }
+
+    /**
+     * Record queued by an in-process sender.
+     */
+    private static class LocalRecord
+    {
+        /** record */
+        final ByteBuffer buf;
+        /** buffer cache which owns the record */
+        final IByteBufferCache srcMgr;
+
+        LocalRecord(ByteBuffer buf, IByteBufferCache srcMgr)
+        {
+            this.buf = buf;
+            this.srcMgr = srcMgr;
+        }
+    }
 }
@@ -10,6 +10,16 @@ public interface LimitedChannelParent
      */
     String getName();
 
+    /**
+     * Add the limited channel to a watchlist without waiting.  The
+     * channel will be notified (via <tt>LimitedChannel.wakeChannel()</tt>)
+     * when it's no longer limited.  Used by channels which are fed from
+     * shared workers, which must not be tied up by a limited channel.
+     *
+     * @param chan limited channel
+     */
+    void pauseLimitedChannel(LimitedChannel chan);
+
     /**
      * Add the limited channel to a watchlist and put the calling thread in
      * a WAIT state.  The channel should be notified (via
@@ -0,0 +1,101 @@
+package icecube.daq.io;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+
+/**
+ * In-process connection between an output engine and a stream reader
+ * running in the same JVM.
+ *
+ * Records are queued by the output channel and handed to the input
+ * channel's <tt>pushPayload()</tt> on the reader thread, without being
+ * framed, copied or written through the kernel.  The underlying pipe
+ * carries no data; it only gives both ends a selectable channel so they
+ * can be opened, closed and tracked like any other connection.
+ */
+public class LocalChannel
+{
+    /** Next channel number */
+    private static int nextNum = 1;
+
+    /** Channel number */
+    private final int num;
+    /** Placeholder pipe */
+    private Pipe pipe;
+    /** Input channel which receives records */
+    private volatile InputChannel receiver;
+
+    /**
+     * Create an in-process connection.
+     *
+     * @throws IOException if the placeholder pipe cannot be created
+     */
+    public LocalChannel()
+        throws IOException
+    {
+        synchronized (LocalChannel.class) {
+            num = nextNum++;
+        }
+
+        pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        pipe.source().configureBlocking(false);
+    }
+
+    /**
+     * Get the input channel which receives records.
+     *
+     * @return input channel (<tt>null</tt> if no reader has been attached)
+     */
+    InputChannel getReceiver()
+    {
+        return receiver;
+    }
+
+    /**
+     * Get the output end of the placeholder pipe.
+     *
+     * @return sink channel
+     */
+    Pipe.SinkChannel sink()
+    {
+        return pipe.sink();
+    }
+
+    /**
+     * Get the input end of the placeholder pipe.
+     *
+     * @return source channel
+     */
+    Pipe.SourceChannel source()
+    {
+        return pipe.source();
+    }
+
+    /**
+     * Set the input channel which receives records.
+     *
+     * @param chan input channel
+     */
+    void setReceiver(InputChannel chan)
+    {
+        if (receiver != null) {
+            throw new Error("Local channel #" + num +
+                            " is already attached to " + receiver);
+        }
+
+        receiver = chan;
+    }
+
+    /**
+     * Debugging string.
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return "LocalChannel#" + num +
+            (receiver == null ? "" : "=>" + receiver);
+    }
+}
@@ -0,0 +1,546 @@
+package icecube.daq.io;
+
+import icecube.daq.payload.IByteBufferCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffer cache front-end which keeps recently returned buffers in small
+ * per-thread magazines so the per-record acquire/return path does not
+ * contend on the underlying cache.
+ *
+ * Buffers are grouped into power-of-two size classes and always acquired
+ * from the underlying cache at the full class size, so any buffer in a
+ * magazine can satisfy any request in its class.  When a thread's
+ * magazine is full it is traded, whole, to a shared depot for an empty
+ * one; when it is empty it is traded for a full one.  This lets a reader
+ * thread which only acquires and a consumer thread which only returns
+ * exchange buffers a magazine at a time.  The underlying cache is used in
+ * batches when the depot is empty or full, and directly for requests
+ * larger than the biggest size class.
+ *
+ * The acquired buffer and byte counts describe buffers held by callers,
+ * not buffers parked in magazines, and count each buffer at its full
+ * size class rather than the number of bytes requested.  Parked buffers
+ * stay acquired from the underlying cache, so the total parked in
+ * magazines and the depot is capped at <tt>maxParkedBytes</tt>; past
+ * that, returned buffers go straight back to the underlying cache.  By
+ * default the cap is a tenth of the underlying cache's limit (or
+ * {@link #DEFAULT_MAX_PARKED_BYTES} if it is unbounded), which keeps the
+ * underlying cache below its limit while readers see acquired bytes
+ * under their stop-allocation threshold.  {@link #flush()} returns every
+ * parked buffer.
+ */
+public class MagazineBufferCache
+    implements IByteBufferCache
+{
+    /** Default number of buffers in a magazine */
+    public static final int DEFAULT_MAGAZINE_SIZE = 32;
+    /** Default limit on parked bytes when the underlying cache is unbounded */
+    public static final long DEFAULT_MAX_PARKED_BYTES = 16L * 1024L * 1024L;
+
+    /** Size of the smallest size class */
+    private static final int MIN_CLASS_BYTES = 64;
+    /** Size of the largest size class */
+    private static final int MAX_CLASS_BYTES = 65536;
+    /** Number of size classes */
+    private static final int NUM_CLASSES =
+        Integer.numberOfTrailingZeros(MAX_CLASS_BYTES) -
+        Integer.numberOfTrailingZeros(MIN_CLASS_BYTES) + 1;
+    /** Maximum number of full magazines per size class in the depot */
+    private static final int MAX_DEPOT_MAGAZINES = 16;
+
+    /**
+     * Stack of buffers from a single size class.
+     */
+    private static class Magazine
+    {
+        /** Buffers */
+        private ByteBuffer[] bufs;
+        /** Number of buffers */
+        private int count;
+
+        Magazine(int size)
+        {
+            bufs = new ByteBuffer[size];
+        }
+
+        boolean isEmpty()
+        {
+            return count == 0;
+        }
+
+        boolean isFull()
+        {
+            return count == bufs.length;
+        }
+
+        ByteBuffer pop()
+        {
+            ByteBuffer buf = bufs[--count];
+            bufs[count] = null;
+            return buf;
+        }
+
+        void push(ByteBuffer buf)
+        {
+            bufs[count++] = buf;
+        }
+    }
+
+    /**
+     * One thread's magazines.  The lock is only contended while
+     * <tt>flush()</tt> is running.
+     */
+    private class ThreadCache
+    {
+        /** Thread which owns these magazines */
+        private Thread owner;
+        /** Loaded magazine for each size class */
+        private Magazine[] loaded = new Magazine[NUM_CLASSES];
+
+        ThreadCache(Thread owner)
+        {
+            this.owner = owner;
+
+            for (int i = 0; i < NUM_CLASSES; i++) {
+                loaded[i] = new Magazine(magazineSize);
+            }
+        }
+
+        synchronized ByteBuffer acquire(int cls)
+        {
+            Magazine mag = loaded[cls];
+            if (mag.isEmpty()) {
+                Magazine full = depot[cls].poll();
+                if (full != null) {
+                    depotCount[cls].decrementAndGet();
+                    empties[cls].add(mag);
+                    loaded[cls] = mag = full;
+                } else {
+                    refill(cls, mag);
+                    if (mag.isEmpty()) {
+                        return null;
+                    }
+                }
+            }
+
+            return mag.pop();
+        }
+
+        synchronized void release(int cls, ByteBuffer buf)
+        {
+            Magazine mag = loaded[cls];
+            if (mag.isFull()) {
+                if (depotCount[cls].incrementAndGet() <= MAX_DEPOT_MAGAZINES) {
+                    depot[cls].add(mag);
+
+                    mag = empties[cls].poll();
+                    if (mag == null) {
+                        mag = new Magazine(magazineSize);
+                    }
+                    loaded[cls] = mag;
+                } else {
+                    depotCount[cls].decrementAndGet();
+                    spill(mag, magazineSize / 2);
+                }
+            }
+
+            mag.push(buf);
+        }
+
+        synchronized void releaseAll()
+        {
+            for (int i = 0; i < NUM_CLASSES; i++) {
+                spill(loaded[i], magazineSize);
+            }
+        }
+    }
+
+    /** Underlying cache */
+    private IByteBufferCache delegate;
+    /** Number of buffers in a magazine */
+    private int magazineSize;
+    /** Approximate limit on the number of bytes parked in magazines */
+    private long maxParkedBytes;
+
+    /** Per-thread magazines */
+    private ThreadLocal<ThreadCache> threadCache =
+        new ThreadLocal<ThreadCache>() {
+            @Override
+            protected ThreadCache initialValue()
+            {
+                ThreadCache tc = new ThreadCache(Thread.currentThread());
+                threadCaches.add(tc);
+                return tc;
+            }
+        };
+    /** All per-thread magazines, used by <tt>flush()</tt> */
+    private CopyOnWriteArrayList<ThreadCache> threadCaches =
+        new CopyOnWriteArrayList<ThreadCache>();
+
+    /** Full magazines shared between threads */
+    private ConcurrentLinkedQueue<Magazine>[] depot;
+    /** Number of magazines in each depot list */
+    private AtomicInteger[] depotCount;
+    /** Empty magazines shared between threads */
+    private ConcurrentLinkedQueue<Magazine>[] empties;
+
+    /** Number of buffers held by callers */
+    private LongAdder curBufs = new LongAdder();
+    /** Number of bytes held by callers */
+    private LongAdder curBytes = new LongAdder();
+    /** Number of bytes parked in magazines */
+    private LongAdder parkedBytes = new LongAdder();
+    /** Total number of buffers acquired */
+    private LongAdder totAcquired = new LongAdder();
+    /** Total number of buffers returned */
+    private LongAdder totReturned = new LongAdder();
+
+    /**
+     * Create a magazine cache with the default magazine size.
+     *
+     * @param delegate underlying cache
+     */
+    public MagazineBufferCache(IByteBufferCache delegate)
+    {
+        this(delegate, DEFAULT_MAGAZINE_SIZE);
+    }
+
+    /**
+     * Create a magazine cache.
+     *
+     * @param delegate underlying cache
+     * @param magazineSize number of buffers in each magazine
+     */
+    public MagazineBufferCache(IByteBufferCache delegate, int magazineSize)
+    {
+        this(delegate, magazineSize, getDefaultMaxParked(delegate));
+    }
+
+    /**
+     * Create a magazine cache.
+     *
+     * @param delegate underlying cache
+     * @param magazineSize number of buffers in each magazine
+     * @param maxParkedBytes limit on the number of bytes parked in
+     *                       magazines
+     */
+    public MagazineBufferCache(IByteBufferCache delegate, int magazineSize,
+                               long maxParkedBytes)
+    {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Underlying cache is null");
+        }
+        if (magazineSize < 2) {
+            throw new IllegalArgumentException("Magazine size must be at" +
+                                               " least 2, not " +
+                                               magazineSize);
+        }
+        if (maxParkedBytes < 0) {
+            throw new IllegalArgumentException("Parked byte limit must not" +
+                                               " be negative, not " +
+                                               maxParkedBytes);
+        }
+
+        this.delegate = delegate;
+        this.magazineSize = magazineSize;
+        this.maxParkedBytes = maxParkedBytes;
+
+        depot = newQueueArray();
+        depotCount = new AtomicInteger[NUM_CLASSES];
+        empties = newQueueArray();
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            depot[i] = new ConcurrentLinkedQueue<Magazine>();
+            depotCount[i] = new AtomicInteger();
+            empties[i] = new ConcurrentLinkedQueue<Magazine>();
+        }
+    }
+
+    /**
+     * Create an array with one (empty) slot per size class.  Generic
+     * arrays can't be created directly.
+     *
+     * @return new array
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static ConcurrentLinkedQueue<Magazine>[] newQueueArray()
+    {
+        return new ConcurrentLinkedQueue[NUM_CLASSES];
+    }
+
+    @Override
+    public ByteBuffer acquireBuffer(int bytes)
+    {
+        final int cls = getSizeClass(bytes);
+
+        ByteBuffer buf;
+        if (cls < 0) {
+            buf = delegate.acquireBuffer(bytes);
+            if (buf == null) {
+                return null;
+            }
+        } else {
+            buf = threadCache.get().acquire(cls);
+            if (buf == null) {
+                return null;
+            }
+            parkedBytes.add(-buf.capacity());
+        }
+
+        curBufs.increment();
+        curBytes.add(buf.capacity());
+        totAcquired.increment();
+
+        buf.clear();
+        buf.limit(bytes);
+        return buf;
+    }
+
+    /**
+     * Get the default limit on parked bytes for an underlying cache.
+     *
+     * @param delegate underlying cache
+     *
+     * @return number of bytes
+     */
+    private static long getDefaultMaxParked(IByteBufferCache delegate)
+    {
+        if (delegate == null || !delegate.isCacheBounded()) {
+            return DEFAULT_MAX_PARKED_BYTES;
+        }
+
+        return delegate.getMaxAcquiredBytes() / 10;
+    }
+
+    /**
+     * Get the number of bytes currently parked in magazines.
+     *
+     * @return number of bytes
+     */
+    public long getParkedBytes()
+    {
+        return parkedBytes.sum();
+    }
+
+    /**
+     * Get the size class index for a number of bytes.
+     *
+     * @param bytes number of bytes
+     *
+     * @return size class index (-1 if too large for any class)
+     */
+    private static int getSizeClass(int bytes)
+    {
+        if (bytes <= MIN_CLASS_BYTES) {
+            return 0;
+        } else if (bytes > MAX_CLASS_BYTES) {
+            return -1;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(bytes - 1) -
+            Integer.numberOfTrailingZeros(MIN_CLASS_BYTES);
+    }
+
+    /**
+     * Get the size of every buffer in a size class.
+     *
+     * @param cls size class index
+     *
+     * @return number of bytes
+     */
+    private static int getClassBytes(int cls)
+    {
+        return MIN_CLASS_BYTES << cls;
+    }
+
+    /**
+     * Return all buffers parked in magazines to the underlying cache.
+     * Magazines belonging to threads which have exited are forgotten.
+     */
+    public void flush()
+    {
+        for (ThreadCache tc : threadCaches) {
+            tc.releaseAll();
+            if (!tc.owner.isAlive()) {
+                threadCaches.remove(tc);
+            }
+        }
+
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            Magazine mag;
+            while ((mag = depot[i].poll()) != null) {
+                depotCount[i].decrementAndGet();
+                spill(mag, magazineSize);
+                empties[i].add(mag);
+            }
+        }
+    }
+
+    @Override
+    public int getCurrentAcquiredBuffers()
+    {
+        return curBufs.intValue();
+    }
+
+    @Override
+    public long getCurrentAcquiredBytes()
+    {
+        return curBytes.sum();
+    }
+
+    @Override
+    public long getMaxAcquiredBytes()
+    {
+        return delegate.getMaxAcquiredBytes();
+    }
+
+    @Override
+    public String getName()
+    {
+        return delegate.getName();
+    }
+
+    @Override
+    public int getTotalBuffersAcquired()
+    {
+        return totAcquired.intValue();
+    }
+
+    @Override
+    public int getTotalBuffersCreated()
+    {
+        return delegate.getTotalBuffersCreated();
+    }
+
+    @Override
+    public int getTotalBuffersReturned()
+    {
+        return totReturned.intValue();
+    }
+
+    /**
+     * Get the number of bytes parked in magazines plus the number of free
+     * bytes held by the underlying cache.
+     *
+     * @return number of free bytes
+     */
+    @Override
+    public long getTotalBytesInCache()
+    {
+        return parkedBytes.sum() + delegate.getTotalBytesInCache();
+    }
+
+    @Override
+    public boolean isBalanced()
+    {
+        return curBufs.sum() == 0;
+    }
+
+    @Override
+    public boolean isCacheBounded()
+    {
+        return delegate.isCacheBounded();
+    }
+
+    /**
+     * Load an empty magazine with up to half a magazine of new buffers
+     * from the underlying cache.  Only one buffer is loaded if the rest
+     * would push the parked bytes past the limit.
+     *
+     * @param cls size class index
+     * @param mag empty magazine
+     */
+    private void refill(int cls, Magazine mag)
+    {
+        final int size = getClassBytes(cls);
+
+        int num = magazineSize / 2;
+        if (parkedBytes.sum() + (long) num * size > maxParkedBytes) {
+            num = 1;
+        }
+
+        for (int i = 0; i < num; i++) {
+            ByteBuffer buf = delegate.acquireBuffer(size);
+            if (buf == null) {
+                break;
+            }
+
+            mag.push(buf);
+            parkedBytes.add(buf.capacity());
+        }
+    }
+
+    @Override
+    public void returnBuffer(ByteBuffer buf)
+    {
+        if (buf == null) {
+            return;
+        }
+
+        final int cap = buf.capacity();
+
+        curBufs.decrement();
+        curBytes.add(-cap);
+        totReturned.increment();
+
+        final int cls = getSizeClass(cap);
+        if (cls < 0 || getClassBytes(cls) != cap) {
+            // not one of ours
+            delegate.returnBuffer(buf);
+        } else if (parkedBytes.sum() + cap > maxParkedBytes) {
+            // enough buffers are parked already
+            delegate.returnBuffer(buf);
+        } else {
+            parkedBytes.add(cap);
+            threadCache.get().release(cls, buf);
+        }
+    }
+
+    /**
+     * Update the counters for a returned buffer.  The buffer itself is
+     * lost, since it cannot be parked without the buffer.
+     *
+     * @param bytes number of bytes originally requested
+     */
+    @Override
+    public void returnBuffer(int bytes)
+    {
+        final int cls = getSizeClass(bytes);
+        final int cap = (cls < 0 ? bytes : getClassBytes(cls));
+
+        // let the delegate refuse before the counters change
+        delegate.returnBuffer(cap);
+
+        curBufs.decrement();
+        curBytes.add(-cap);
+        totReturned.increment();
+    }
+
+    /**
+     * Return buffers from a magazine to the underlying cache.
+     *
+     * @param mag magazine
+     * @param num maximum number of buffers to return
+     */
+    private void spill(Magazine mag, int num)
+    {
+        for (int i = 0; i < num && !mag.isEmpty(); i++) {
+            ByteBuffer buf = mag.pop();
+            parkedBytes.add(-buf.capacity());
+            delegate.returnBuffer(buf);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MagazineBufferCache[bufs " + curBufs.sum() + " bytes " +
+            curBytes.sum() + " parked " + parkedBytes.sum() + "/" +
+            maxParkedBytes + "]->" + delegate;
+    }
+}
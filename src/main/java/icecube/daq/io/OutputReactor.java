@@ -0,0 +1,311 @@
+package icecube.daq.io;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Single selector thread which writes the channels of several
+ * SimpleOutputEngines.
+ *
+ * Each engine keeps its own state, observer, channels and counters; the
+ * reactor only replaces the engine's private selector and thread.
+ */
+public class OutputReactor
+    implements Runnable
+{
+    /** selector timeout in msec. */
+    private static final int DEFAULT_SELECTOR_TIMEOUT_MSEC = 250;
+
+    /** Error logger. */
+    private static final Logger LOG = Logger.getLogger(OutputReactor.class);
+
+    /** Reactor name */
+    private String name;
+    /** Shared selector */
+    private volatile Selector selector;
+    /** Waits for selector events and coalesces wakeups */
+    private SelectSpinner spinner = new SelectSpinner();
+
+    /** Engines being serviced (replaced, never modified, when changed) */
+    private volatile SimpleOutputEngine[] engines =
+        new SimpleOutputEngine[0];
+
+    /** Reactor thread (cleared by <tt>close()</tt>) */
+    private volatile Thread thread;
+
+    /**
+     * Create a reactor.
+     *
+     * @param name reactor name (used for the thread name)
+     */
+    public OutputReactor(String name)
+    {
+        this.name = name;
+
+        try {
+            selector = Selector.open();
+        } catch (IOException ioe) {
+            throw new Error("Cannot create Selector", ioe);
+        }
+    }
+
+    /**
+     * Start servicing an engine.
+     *
+     * @param engine running engine
+     */
+    synchronized void attach(SimpleOutputEngine engine)
+    {
+        if (selector == null) {
+            throw new Error("Reactor " + name + " has been closed");
+        }
+
+        for (SimpleOutputEngine eng : engines) {
+            if (eng == engine) {
+                return;
+            }
+        }
+
+        SimpleOutputEngine[] newList =
+            new SimpleOutputEngine[engines.length + 1];
+        System.arraycopy(engines, 0, newList, 0, engines.length);
+        newList[engines.length] = engine;
+        engines = newList;
+
+        if (thread == null) {
+            thread = new Thread(this);
+            thread.setName(name);
+            thread.start();
+        }
+
+        wakeup();
+    }
+
+    /**
+     * Stop the reactor thread and close the shared selector.
+     */
+    public void close()
+    {
+        Selector tmpSel;
+        synchronized (this) {
+            tmpSel = selector;
+            selector = null;
+            thread = null;
+            engines = new SimpleOutputEngine[0];
+        }
+
+        if (tmpSel != null) {
+            tmpSel.wakeup();
+
+            try {
+                tmpSel.close();
+            } catch (IOException ioe) {
+                LOG.error("Cannot close selector", ioe);
+            }
+        }
+    }
+
+    /**
+     * Stop servicing an engine.
+     *
+     * @param engine engine
+     */
+    synchronized void detach(SimpleOutputEngine engine)
+    {
+        int idx = -1;
+        for (int i = 0; i < engines.length; i++) {
+            if (engines[i] == engine) {
+                idx = i;
+                break;
+            }
+        }
+
+        if (idx >= 0) {
+            SimpleOutputEngine[] newList =
+                new SimpleOutputEngine[engines.length - 1];
+            System.arraycopy(engines, 0, newList, 0, idx);
+            System.arraycopy(engines, idx + 1, newList, idx,
+                             newList.length - idx);
+            engines = newList;
+        }
+    }
+
+    /**
+     * Get the number of engines currently being serviced.
+     *
+     * @return number of engines
+     */
+    public int getNumberOfEngines()
+    {
+        return engines.length;
+    }
+
+    /**
+     * Get the number of selects which had to block.
+     *
+     * @return number of blocking waits
+     */
+    public long getSelectorBlockingWaits()
+    {
+        return spinner.getBlockingWaits();
+    }
+
+    /**
+     * Get the number of selects satisfied while spinning.
+     *
+     * @return number of spin hits
+     */
+    public long getSelectorSpinHits()
+    {
+        return spinner.getSpinHits();
+    }
+
+    /**
+     * Get the shared selector.
+     *
+     * @return selector
+     */
+    Selector getSelector()
+    {
+        if (selector == null) {
+            throw new Error("Reactor " + name + " has been closed");
+        }
+
+        return selector;
+    }
+
+    /**
+     * Is the reactor thread running?
+     *
+     * @return <tt>true</tt> if the thread is running
+     */
+    public boolean isRunning()
+    {
+        return thread != null;
+    }
+
+    /**
+     * Main thread loop.
+     */
+    @Override
+    public void run()
+    {
+        final Selector sel = selector;
+        if (sel == null) {
+            // closed before the thread started
+            return;
+        }
+
+        try {
+            service(sel);
+        } catch (ClosedSelectorException cse) {
+            // close() shut the selector down under the loop
+        }
+    }
+
+    /**
+     * Service the attached engines until the reactor is closed.
+     *
+     * @param sel shared selector
+     */
+    private void service(Selector sel)
+    {
+        long nextSweep = 0;
+        while (thread != null) {
+            // wake up in time to release any rate-limited channels
+            long throttleNanos = Long.MAX_VALUE;
+            for (SimpleOutputEngine eng : engines) {
+                final long nanos = eng.releaseThrottled();
+                if (nanos < throttleNanos) {
+                    throttleNanos = nanos;
+                }
+            }
+
+            final long timeout =
+                SimpleOutputEngine.getSelectTimeout(throttleNanos);
+
+            int numSelected;
+            try {
+                numSelected = spinner.select(sel, timeout);
+            } catch (IOException ioe) {
+                LOG.error("select() failed", ioe);
+                continue;
+            }
+
+            final SimpleOutputEngine[] list = engines;
+            for (SimpleOutputEngine eng : list) {
+                eng.registerPending(sel);
+            }
+
+            if (numSelected > 0) {
+                Iterator<SelectionKey> iter = sel.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    try {
+                        SimpleOutputEngine.handleSelectedKey(key);
+                    } catch (RuntimeException rex) {
+                        LOG.error("Reactor " + name + " cannot handle " +
+                                  key.attachment(), rex);
+                    }
+                }
+            }
+
+            // busy engines rarely see an idle select, so sweep on a timer
+            final long now = System.nanoTime();
+            final boolean sweep = numSelected == 0 || now >= nextSweep;
+            if (sweep) {
+                nextSweep = now + DEFAULT_SELECTOR_TIMEOUT_MSEC * 1000000L;
+            }
+
+            for (SimpleOutputEngine eng : list) {
+                if (sweep) {
+                    eng.sweepStoppedChannels();
+                }
+
+                if (!eng.isActive()) {
+                    eng.endRun();
+                    detach(eng);
+                }
+            }
+        }
+    }
+
+    /**
+     * Poll the selector for up to <tt>usec</tt> microseconds before
+     * blocking.  This lowers latency for every attached engine at the
+     * cost of a busy CPU core.
+     *
+     * @param usec spin budget in microseconds (0 to always block)
+     */
+    public void setSelectorSpinMicros(long usec)
+    {
+        spinner.setSpinMicros(usec);
+    }
+
+    /**
+     * Wake the selector (if it hasn't already been woken)
+     */
+    void wakeup()
+    {
+        spinner.wakeup(selector);
+    }
+
+    /**
+     * Debugging string.
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return name + "*" + engines.length;
+    }
+}
@@ -11,6 +11,8 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Iterator;
 import java.util.zip.GZIPInputStream;
 
@@ -31,6 +33,8 @@ public class PayloadByteReader
     private File file;
     /** Input stream */
     private DataInputStream stream;
+    /** Channel view of the input stream, used to fill direct buffers */
+    private ReadableByteChannel streamChan;
     /** Byte buffer cache */
     private IByteBufferCache cache;
 
@@ -110,6 +114,7 @@ public class PayloadByteReader
                 stream.close();
             } finally {
                 stream = null;
+                streamChan = null;
             }
         }
     }
@@ -255,11 +260,19 @@ public class PayloadByteReader
         buf.putInt(len);
 
         // read the rest of the payload
-        for (int i = 0; i < 10 && buf.position() < buf.capacity(); i++) {
+        for (int i = 0; i < 10 && buf.position() < len; i++) {
             int rtnval;
             try {
-                rtnval = stream.read(buf.array(), buf.position(),
-                                     len - buf.position());
+                if (buf.hasArray()) {
+                    rtnval = stream.read(buf.array(),
+                                         buf.arrayOffset() + buf.position(),
+                                         len - buf.position());
+                } else {
+                    if (streamChan == null) {
+                        streamChan = Channels.newChannel(stream);
+                    }
+                    rtnval = streamChan.read(buf);
+                }
             } catch (IOException ioe) {
                 throw new PayloadException("Couldn't read " + len +
                                            " data bytes for payload #" +
@@ -276,13 +289,15 @@ public class PayloadByteReader
             }
 
             // set the new buffer position
-            buf.position(buf.position() + rtnval);
+            if (buf.hasArray()) {
+                buf.position(buf.position() + rtnval);
+            }
         }
 
-        if (buf.position() < buf.capacity()) {
+        if (buf.position() < len) {
             final String msg =
                 String.format("Got %d of %d bytes for payload #%d in %s",
-                              buf.position(), buf.capacity(), nextNum, file);
+                              buf.position(), len, nextNum, file);
             LOG.error(msg);
         }
 
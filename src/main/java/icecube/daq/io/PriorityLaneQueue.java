@@ -0,0 +1,183 @@
+package icecube.daq.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Output queue with several FIFO priority lanes.
+ *
+ * Lane 0 has the highest priority.  Lanes are served with weighted round
+ * robin: in each round a lane may send up to its weight in records, and
+ * higher priority lanes always go first, so an urgent record waits behind
+ * at most one round of lower priority records.  A "last" record (the
+ * stop message) is held back until every lane is empty.
+ *
+ * This class is not thread-safe; callers must provide their own locking.
+ */
+class PriorityLaneQueue
+{
+    /** Per-lane queues */
+    private ArrayDeque<ByteBuffer>[] lanes;
+    /** Number of records each lane may send per round */
+    private int[] weights;
+    /** Number of records each lane may still send in this round */
+    private int[] credits;
+    /** Record to be sent after all lanes are empty */
+    private ByteBuffer last;
+    /** Total number of queued records (including <tt>last</tt>) */
+    private int size;
+
+    /**
+     * Create a queue.
+     *
+     * @param weights per-lane weights, highest priority first
+     */
+    PriorityLaneQueue(int[] weights)
+    {
+        if (weights == null || weights.length == 0) {
+            throw new IllegalArgumentException("No lane weights specified");
+        }
+
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 1) {
+                throw new IllegalArgumentException("Weight for lane " + i +
+                                                   " must be positive, not " +
+                                                   weights[i]);
+            }
+        }
+
+        this.weights = weights.clone();
+        credits = weights.clone();
+
+        // generic arrays can't be created directly
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        ArrayDeque<ByteBuffer>[] newLanes = new ArrayDeque[weights.length];
+        lanes = newLanes;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    /**
+     * Add a record to the end of a lane.
+     *
+     * @param buf record
+     * @param lane lane number (clamped to the valid range)
+     */
+    void add(ByteBuffer buf, int lane)
+    {
+        if (lane < 0) {
+            lane = 0;
+        } else if (lane >= lanes.length) {
+            lane = lanes.length - 1;
+        }
+
+        lanes[lane].add(buf);
+        size++;
+    }
+
+    /**
+     * Add a record which will be sent after all lanes are empty.
+     *
+     * @param buf final record
+     *
+     * @return <tt>false</tt> if a final record has already been queued
+     */
+    boolean addLast(ByteBuffer buf)
+    {
+        if (last != null) {
+            return false;
+        }
+
+        last = buf;
+        size++;
+        return true;
+    }
+
+    /**
+     * Get the number of lanes.
+     *
+     * @return number of lanes
+     */
+    int getNumberOfLanes()
+    {
+        return lanes.length;
+    }
+
+    /**
+     * Is the queue empty?
+     *
+     * @return <tt>true</tt> if there are no records
+     */
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Is the final record the only one left?
+     *
+     * @return <tt>true</tt> if the next record is the final record
+     */
+    boolean isLastNext()
+    {
+        return last != null && size == 1;
+    }
+
+    /**
+     * Remove the next record to be sent.
+     *
+     * @return next record (<tt>null</tt> if the queue is empty)
+     */
+    ByteBuffer remove()
+    {
+        if (size == 0) {
+            return null;
+        }
+
+        if (last != null && size == 1) {
+            ByteBuffer buf = last;
+            last = null;
+            size = 0;
+            return buf;
+        }
+
+        // at least one lane has data, so the second pass always succeeds
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < lanes.length; i++) {
+                if (credits[i] > 0 && !lanes[i].isEmpty()) {
+                    credits[i]--;
+                    size--;
+                    return lanes[i].poll();
+                }
+            }
+
+            // start a new round
+            System.arraycopy(weights, 0, credits, 0, weights.length);
+        }
+
+        throw new Error("Queue size is " + size + " but all lanes are empty");
+    }
+
+    /**
+     * Get the total number of queued records.
+     *
+     * @return number of records
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Get the number of records queued in a lane.
+     *
+     * @param lane lane number
+     *
+     * @return number of records
+     */
+    int size(int lane)
+    {
+        return lanes[lane].size();
+    }
+}
@@ -0,0 +1,498 @@
+package icecube.daq.io;
+
+import icecube.daq.payload.IByteBufferCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stream reader which publishes received records through
+ * <tt>java.util.concurrent.Flow</tt>.
+ *
+ * Records from every channel are published by {@link #getPublisher()}.
+ * A channel's records can instead be published separately by subscribing
+ * to {@link #getPublisher(InputChannel)} before processing starts.
+ * When a subscriber has no outstanding demand, the channel stops being
+ * read until more records are requested, so slow consumers push back on
+ * the sender instead of blocking the reader thread.
+ *
+ * Each publisher has at most one subscriber, which owns every record it
+ * receives and must return it to the buffer cache given to
+ * <tt>addDataChannel()</tt>.  A subscriber is completed when its channel
+ * (or, for the merged publisher, every channel) has received a stop
+ * message.  If a subscriber cancels, records which have not been
+ * delivered are returned to the cache and the publisher's channels keep
+ * being read and discarded until another subscriber arrives.
+ */
+public class PublishingStreamReader
+    extends DAQStreamReader
+{
+    /**
+     * Input channel which hands records to a publisher.
+     */
+    class PublishingInputChannel
+        extends InputChannel
+    {
+        /** Cache which owns this channel's records */
+        private IByteBufferCache bufMgr;
+        /** Publisher for this channel's records alone */
+        private Outlet outlet;
+        /** Has anything subscribed to this channel's own publisher? */
+        private volatile boolean useOwnOutlet;
+
+        PublishingInputChannel(IOChannelParent parent,
+                               SelectableChannel channel, String name,
+                               IByteBufferCache bufMgr, int bufSize)
+            throws IOException
+        {
+            super(parent, channel, name, bufMgr, bufSize);
+
+            this.bufMgr = bufMgr;
+
+            outlet = new Outlet(name);
+        }
+
+        /**
+         * Get the publisher which currently receives this channel's records.
+         *
+         * @return outlet
+         */
+        Outlet getOutlet()
+        {
+            return useOwnOutlet ? outlet : merged;
+        }
+
+        @Override
+        public void pushPayload(ByteBuffer payBuf)
+            throws IOException
+        {
+            getOutlet().publish(this, bufMgr, payBuf);
+        }
+
+        /**
+         * Unimplemented.
+         *
+         * @param compObserver component observer
+         * @param notificationID ID string
+         */
+        @Override
+        public void registerComponentObserver(DAQComponentObserver compObserver,
+                                              String notificationID)
+        {
+            throw new Error("Unimplemented");
+        }
+    }
+
+    /**
+     * Record waiting for demand, along with the cache which owns it.
+     */
+    private static class QueuedRecord
+    {
+        /** Cache which owns the record */
+        private IByteBufferCache bufMgr;
+        /** Record */
+        private ByteBuffer buf;
+
+        QueuedRecord(IByteBufferCache bufMgr, ByteBuffer buf)
+        {
+            this.bufMgr = bufMgr;
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * Publisher which delivers records to at most one subscriber,
+     * honoring its demand.  Once a subscriber cancels, records are
+     * returned to their caches until another subscriber arrives.
+     */
+    private static class Outlet
+        implements Flow.Publisher<ByteBuffer>
+    {
+        /** Publisher name */
+        private String name;
+        /** Records waiting for demand */
+        private ConcurrentLinkedQueue<QueuedRecord> queue =
+            new ConcurrentLinkedQueue<QueuedRecord>();
+        /** Channels which are not being read because there is no demand */
+        private ArrayList<InputChannel> pausedList =
+            new ArrayList<InputChannel>();
+        /** Serializes delivery; non-zero while a thread is draining */
+        private AtomicInteger drainCount = new AtomicInteger();
+        /** Current subscription (<tt>null</tt> if none) */
+        private volatile OutletSubscription current;
+        /** Should the current subscriber be completed once queue is empty? */
+        private volatile boolean done;
+        /** Has the last subscriber cancelled? */
+        private volatile boolean discarding;
+
+        Outlet(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Complete the subscriber after all queued records are delivered.
+         */
+        void complete()
+        {
+            done = true;
+            drain();
+        }
+
+        /**
+         * Deliver queued records while there is demand.  Only one thread
+         * delivers at a time; any other caller makes that thread loop
+         * again.
+         */
+        void drain()
+        {
+            if (drainCount.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            while (true) {
+                final OutletSubscription sub = current;
+                if (sub != null) {
+                    sub.deliver(queue);
+
+                    if (queue.isEmpty() && current == sub) {
+                        if (done) {
+                            done = false;
+                            current = null;
+                            sub.subscriber.onComplete();
+                        } else {
+                            // read ahead until a record is left waiting
+                            resumeAll();
+                        }
+                    }
+                } else if (discarding) {
+                    // nobody wants these records, so throw them away
+                    discardAll();
+                    resumeAll();
+                }
+
+                missed = drainCount.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Return all queued records to their caches.
+         * Must only be called from <tt>drain()</tt>.
+         */
+        private void discardAll()
+        {
+            while (true) {
+                QueuedRecord rec = queue.poll();
+                if (rec == null) {
+                    break;
+                }
+
+                rec.bufMgr.returnBuffer(rec.buf);
+            }
+        }
+
+        /**
+         * Queue a record, and stop reading its channel if the subscriber
+         * does not want it yet.  Called on the channel's reader thread.
+         *
+         * @param chan channel which received the record
+         * @param bufMgr cache which owns the record
+         * @param buf record
+         */
+        void publish(InputChannel chan, IByteBufferCache bufMgr,
+                     ByteBuffer buf)
+        {
+            queue.add(new QueuedRecord(bufMgr, buf));
+            drain();
+
+            if (!queue.isEmpty()) {
+                synchronized (pausedList) {
+                    if (!pausedList.contains(chan)) {
+                        chan.pauseReading();
+                        pausedList.add(chan);
+                    }
+                }
+
+                // demand may have arrived before the channel was paused
+                drain();
+            }
+        }
+
+        /**
+         * Prepare for a new run.
+         */
+        void reopen()
+        {
+            done = false;
+        }
+
+        /**
+         * Resume reading all paused channels.
+         */
+        private void resumeAll()
+        {
+            synchronized (pausedList) {
+                for (InputChannel chan : pausedList) {
+                    chan.resumeReading();
+                }
+                pausedList.clear();
+            }
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber)
+        {
+            if (subscriber == null) {
+                throw new NullPointerException("Null subscriber");
+            }
+
+            OutletSubscription sub = new OutletSubscription(this, subscriber);
+
+            final boolean added;
+            synchronized (this) {
+                added = current == null;
+                if (added) {
+                    current = sub;
+                    discarding = false;
+                }
+            }
+
+            subscriber.onSubscribe(sub);
+            if (!added) {
+                sub.cancelled = true;
+                subscriber.onError(new IllegalStateException("Publisher " +
+                                                             name +
+                                                             " already has" +
+                                                             " a subscriber"));
+            }
+        }
+
+        /**
+         * Detach a cancelled subscription, then throw away any queued
+         * records and resume reading the paused channels.
+         *
+         * @param sub subscription
+         */
+        void unsubscribe(OutletSubscription sub)
+        {
+            synchronized (this) {
+                if (current != sub) {
+                    return;
+                }
+
+                current = null;
+                discarding = true;
+            }
+
+            drain();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Outlet[" + name + "]" +
+                (queue.isEmpty() ? "" : "*" + queue.size()) +
+                (current == null ? "" : "+sub");
+        }
+    }
+
+    /**
+     * Link between an outlet and its subscriber.
+     */
+    private static class OutletSubscription
+        implements Flow.Subscription
+    {
+        /** Publisher */
+        private Outlet outlet;
+        /** Subscriber */
+        private Flow.Subscriber<? super ByteBuffer> subscriber;
+        /** Number of records requested but not yet delivered */
+        private AtomicLong demand = new AtomicLong();
+        /** Has the subscriber cancelled? */
+        private volatile boolean cancelled;
+        /** Invalid request which must be reported to the subscriber */
+        private volatile IllegalArgumentException badRequest;
+
+        OutletSubscription(Outlet outlet,
+                           Flow.Subscriber<? super ByteBuffer> subscriber)
+        {
+            this.outlet = outlet;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+            outlet.unsubscribe(this);
+        }
+
+        /**
+         * Deliver queued records while there is demand.
+         * Must only be called from <tt>Outlet.drain()</tt>.
+         *
+         * @param queue queued records
+         */
+        void deliver(ConcurrentLinkedQueue<QueuedRecord> queue)
+        {
+            if (badRequest != null && !cancelled) {
+                cancel();
+                subscriber.onError(badRequest);
+                return;
+            }
+
+            while (!cancelled && demand.get() > 0) {
+                QueuedRecord rec = queue.poll();
+                if (rec == null) {
+                    break;
+                }
+
+                if (demand.get() != Long.MAX_VALUE) {
+                    demand.decrementAndGet();
+                }
+
+                subscriber.onNext(rec.buf);
+            }
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if (cancelled) {
+                return;
+            }
+
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("Requested " + n +
+                                                          " records");
+            } else {
+                while (true) {
+                    final long cur = demand.get();
+                    if (cur == Long.MAX_VALUE) {
+                        break;
+                    }
+
+                    long next = cur + n;
+                    if (next < 0) {
+                        // unbounded demand
+                        next = Long.MAX_VALUE;
+                    }
+
+                    if (demand.compareAndSet(cur, next)) {
+                        break;
+                    }
+                }
+            }
+
+            outlet.drain();
+        }
+    }
+
+    /** Publisher for channels without their own subscriber */
+    private Outlet merged;
+
+    /** Channels which have not yet stopped */
+    private ArrayList<PublishingInputChannel> pubChanList =
+        new ArrayList<PublishingInputChannel>();
+
+    public PublishingStreamReader(String name)
+    {
+        this(name, DEFAULT_BUFFER_SIZE);
+    }
+
+    public PublishingStreamReader(String name, int bufferSize)
+    {
+        super(name, bufferSize);
+
+        merged = new Outlet(name);
+    }
+
+    @Override
+    public void channelStopped(IOChannel chan)
+    {
+        boolean allStopped = false;
+        synchronized (pubChanList) {
+            if (pubChanList.remove(chan)) {
+                if (((PublishingInputChannel) chan).useOwnOutlet) {
+                    ((PublishingInputChannel) chan).outlet.complete();
+                }
+
+                allStopped = pubChanList.size() == 0;
+            }
+        }
+
+        if (allStopped) {
+            merged.complete();
+        }
+
+        super.channelStopped(chan);
+    }
+
+    @Override
+    public InputChannel createChannel(SelectableChannel channel, String name,
+                                      IByteBufferCache bufMgr, int bufSize)
+        throws IOException
+    {
+        PublishingInputChannel chan =
+            new PublishingInputChannel(this, channel, name, bufMgr, bufSize);
+        synchronized (pubChanList) {
+            if (pubChanList.size() == 0) {
+                merged.reopen();
+            }
+            pubChanList.add(chan);
+        }
+        return chan;
+    }
+
+    /**
+     * Get the publisher for all channels which don't have their own
+     * subscriber.
+     *
+     * @return merged publisher
+     */
+    public Flow.Publisher<ByteBuffer> getPublisher()
+    {
+        return merged;
+    }
+
+    /**
+     * Get a publisher for a single channel.  Once anything subscribes to
+     * it, the channel's records are no longer sent to the merged
+     * publisher.
+     *
+     * @param chan channel returned by <tt>addDataChannel()</tt>
+     *
+     * @return channel publisher
+     */
+    public Flow.Publisher<ByteBuffer> getPublisher(InputChannel chan)
+    {
+        if (!(chan instanceof PublishingInputChannel) ||
+            chan.getParent() != this)
+        {
+            throw new IllegalArgumentException("Channel " + chan +
+                                               " does not belong to " +
+                                               this);
+        }
+
+        final PublishingInputChannel pubChan = (PublishingInputChannel) chan;
+        final Outlet outlet = pubChan.outlet;
+        return new Flow.Publisher<ByteBuffer>() {
+            @Override
+            public void subscribe(Flow.Subscriber<? super ByteBuffer> sub)
+            {
+                pubChan.useOwnOutlet = true;
+                outlet.subscribe(sub);
+            }
+        };
+    }
+}
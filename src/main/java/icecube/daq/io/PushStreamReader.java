@@ -6,14 +6,22 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
 
 public abstract class PushStreamReader
     extends DAQStreamReader
 {
+    private static final Logger LOG =
+        Logger.getLogger(PushStreamReader.class);
+
     class PushInputChannel
         extends InputChannel
     {
         private PushStreamReader reader;
+        /** payloads framed from the current read */
+        private ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>();
 
         PushInputChannel(IOChannelParent parent, SelectableChannel channel,
                          String name, IByteBufferCache bufMgr, int bufSize)
@@ -24,9 +32,33 @@ public abstract class PushStreamReader
             reader = (PushStreamReader) parent;
         }
 
+        @Override
+        protected void flushPayloads()
+            throws IOException
+        {
+            if (batch.size() == 0) {
+                return;
+            }
+
+            // hand off a fresh list so the reader may keep this one
+            List<ByteBuffer> bufs = batch;
+            batch = new ArrayList<ByteBuffer>();
+
+            dequeuedMessages += bufs.size();
+            dequeuedBatches++;
+            reader.pushBuffers(bufs);
+        }
+
         @Override
         public void notifyOnStop()
         {
+            // payloads which preceded the stop message go first
+            try {
+                flushPayloads();
+            } catch (IOException ioe) {
+                LOG.error("Couldn't push final payloads for " + this, ioe);
+            }
+
             reader.channelStopped(this);
             super.notifyOnStop();
         }
@@ -35,8 +67,7 @@ public abstract class PushStreamReader
         public void pushPayload(ByteBuffer payBuf)
             throws IOException
         {
-            dequeuedMessages++;
-            reader.pushBuffer(payBuf);
+            batch.add(payBuf);
         }
 
         /**
@@ -57,6 +88,7 @@ public abstract class PushStreamReader
         new ArrayList<InputChannel>();
 
     private long dequeuedMessages;
+    private long dequeuedBatches;
     private long stopMessagesPropagated;
     private long totStops;
 
@@ -87,6 +119,7 @@ public abstract class PushStreamReader
     {
         if (pushChanList.size() == 0) {
             dequeuedMessages = 0;
+            dequeuedBatches = 0;
             stopMessagesPropagated = 0;
         }
 
@@ -96,6 +129,16 @@ public abstract class PushStreamReader
         return chan;
     }
 
+    /**
+     * Get the number of batches passed to pushBuffers() during this run.
+     *
+     * @return number of batches received
+     */
+    public long getDequeuedBatches()
+    {
+        return dequeuedBatches;
+    }
+
     /**
      * Get the number of messages received during this run.
      *
@@ -130,5 +173,24 @@ public abstract class PushStreamReader
     public abstract void pushBuffer(ByteBuffer bb)
         throws IOException;
 
+    /**
+     * Receive all the payloads framed from a single read.  The default
+     * implementation passes each payload to pushBuffer(); readers which
+     * hand payloads to another thread can override this to do one
+     * handoff per read instead of one per payload.  The list belongs to
+     * the reader once this method is called.
+     *
+     * @param bufs payloads, in the order they were received
+     *
+     * @throws IOException if a payload could not be pushed
+     */
+    public void pushBuffers(List<ByteBuffer> bufs)
+        throws IOException
+    {
+        for (ByteBuffer bb : bufs) {
+            pushBuffer(bb);
+        }
+    }
+
     public abstract void sendStop();
 }
@@ -34,4 +34,16 @@ public interface QueuedOutputChannel
      */
     @Override
     void receiveByteBuffer(ByteBuffer tBuffer);
+
+    /**
+     * Receives a ByteBuffer which should be queued in a priority lane.
+     * Channels without priority lanes queue it like any other buffer.
+     *
+     * @param tBuffer ByteBuffer the new buffer to be processed.
+     * @param priority lane number (0 is the highest priority)
+     */
+    default void receiveByteBuffer(ByteBuffer tBuffer, int priority)
+    {
+        receiveByteBuffer(tBuffer);
+    }
 }
@@ -0,0 +1,100 @@
+package icecube.daq.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Throw away framed input while watching for the stop message.
+ *
+ * Only the length word of each record is examined; the rest of the record
+ * is skipped, even when it spans several reads, so nothing is copied and
+ * no buffers are acquired.
+ */
+class RecordDiscarder
+{
+    /** size of initial integer payload length */
+    private static final int INT_SIZE = 4;
+
+    /** bytes of the current record which have not been seen yet */
+    private int skipRemaining;
+
+    /** total number of bytes discarded */
+    private long bytesDiscarded;
+    /** total number of complete records discarded */
+    private long recordsDiscarded;
+
+    /**
+     * Discard the records in <tt>buf</tt>, stopping at the stop message.
+     * On return, any bytes left in <tt>buf</tt> are the start of a record
+     * length word which must be presented again after the next read.
+     *
+     * @param buf input (between position and limit)
+     *
+     * @return <tt>true</tt> if a stop message was found
+     */
+    boolean discard(ByteBuffer buf)
+    {
+        while (true) {
+            if (skipRemaining > 0) {
+                final int num = Math.min(skipRemaining, buf.remaining());
+                buf.position(buf.position() + num);
+                skipRemaining -= num;
+                bytesDiscarded += num;
+
+                if (skipRemaining > 0) {
+                    // wait for the rest of this record
+                    return false;
+                }
+
+                recordsDiscarded++;
+            }
+
+            if (buf.remaining() < INT_SIZE) {
+                // wait for the rest of the length
+                return false;
+            }
+
+            int length = buf.getInt(buf.position());
+            if (length == INT_SIZE) {
+                buf.position(buf.position() + INT_SIZE);
+                return true;
+            }
+
+            if (length < INT_SIZE) {
+                // bogus length; step past it and hope for the best
+                length = INT_SIZE;
+            }
+
+            skipRemaining = length;
+        }
+    }
+
+    /**
+     * Get the total number of bytes discarded.
+     *
+     * @return number of bytes
+     */
+    long getBytesDiscarded()
+    {
+        return bytesDiscarded;
+    }
+
+    /**
+     * Get the total number of complete records discarded.
+     *
+     * @return number of records
+     */
+    long getRecordsDiscarded()
+    {
+        return recordsDiscarded;
+    }
+
+    /**
+     * Skip the rest of a record whose start has already been consumed.
+     *
+     * @param bytes number of bytes left in the record
+     */
+    void skip(int bytes)
+    {
+        skipRemaining += bytes;
+    }
+}
@@ -0,0 +1,194 @@
+package icecube.daq.io;
+
+import icecube.daq.payload.IPayload;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Hold back a few payloads so that ones which arrive slightly out of
+ * order can be put back in time order before they reach the strand tail.
+ *
+ * A payload is released once the window holds more than
+ * <tt>maxCount</tt> payloads or once it is more than <tt>maxTicks</tt>
+ * older than the newest payload seen, whichever comes first.  A payload
+ * older than one which has already been released can no longer be fixed
+ * and is rejected as late.
+ */
+class ReorderWindow
+{
+    /**
+     * Held payload.
+     */
+    private static class Entry
+    {
+        /** Payload */
+        private IPayload payload;
+        /** Payload time */
+        private long time;
+        /** Arrival order, used to keep payloads with equal times in order */
+        private long seq;
+
+        Entry(IPayload payload, long time, long seq)
+        {
+            this.payload = payload;
+            this.time = time;
+            this.seq = seq;
+        }
+    }
+
+    /** Order entries by time, then by arrival */
+    private static final Comparator<Entry> ENTRY_ORDER =
+        new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b)
+            {
+                if (a.time != b.time) {
+                    return (a.time < b.time ? -1 : 1);
+                }
+
+                return (a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1));
+            }
+        };
+
+    /** Maximum number of held payloads (0 for no limit) */
+    private int maxCount;
+    /** Maximum time span of held payloads (0 for no limit) */
+    private long maxTicks;
+
+    /** Held payloads */
+    private PriorityQueue<Entry> held =
+        new PriorityQueue<Entry>(11, ENTRY_ORDER);
+    /** Next arrival number */
+    private long nextSeq;
+    /** Time of the newest payload seen */
+    private long newestTime = Long.MIN_VALUE;
+    /** Time of the last released payload */
+    private long lastReleased = Long.MIN_VALUE;
+
+    /** Number of payloads which arrived out of order and were fixed */
+    private volatile long numReordered;
+    /** Number of payloads which arrived too late to be fixed */
+    private volatile long numLate;
+
+    /**
+     * Create a reordering window.
+     *
+     * @param maxCount maximum number of held payloads (0 for no limit)
+     * @param maxTicks maximum time span of held payloads (0 for no limit)
+     */
+    ReorderWindow(int maxCount, long maxTicks)
+    {
+        if (maxCount < 0 || maxTicks < 0) {
+            throw new IllegalArgumentException("Bad reorder window (count " +
+                                               maxCount + ", ticks " +
+                                               maxTicks + ")");
+        } else if (maxCount == 0 && maxTicks == 0) {
+            throw new IllegalArgumentException("Reorder window must be" +
+                                               " limited by count or time");
+        }
+
+        this.maxCount = maxCount;
+        this.maxTicks = maxTicks;
+    }
+
+    /**
+     * Add a payload to the window, moving any payloads which have left
+     * the window to <tt>out</tt>.
+     *
+     * @param payload new payload
+     * @param out list of payloads which are ready to be pushed
+     *
+     * @return <tt>false</tt> if the payload arrived too late to be fixed
+     */
+    boolean add(IPayload payload, List<IPayload> out)
+    {
+        final long time = payload.getUTCTime();
+
+        if (time < lastReleased) {
+            numLate++;
+            return false;
+        }
+
+        if (time < newestTime) {
+            numReordered++;
+        } else {
+            newestTime = time;
+        }
+
+        held.add(new Entry(payload, time, nextSeq++));
+
+        while (held.size() > 0 &&
+               ((maxCount > 0 && held.size() > maxCount) ||
+                (maxTicks > 0 && newestTime - held.peek().time > maxTicks)))
+        {
+            release(out);
+        }
+
+        return true;
+    }
+
+    /**
+     * Move all held payloads to <tt>out</tt>.
+     *
+     * @param out list of payloads which are ready to be pushed
+     */
+    void flush(List<IPayload> out)
+    {
+        while (held.size() > 0) {
+            release(out);
+        }
+    }
+
+    /**
+     * Get the number of payloads which arrived too late to be fixed.
+     *
+     * @return number of late payloads
+     */
+    long getNumLate()
+    {
+        return numLate;
+    }
+
+    /**
+     * Get the number of payloads which arrived out of order and were put
+     * back in order.
+     *
+     * @return number of reordered payloads
+     */
+    long getNumReordered()
+    {
+        return numReordered;
+    }
+
+    /**
+     * Get the number of held payloads.
+     *
+     * @return number of payloads in the window
+     */
+    int size()
+    {
+        return held.size();
+    }
+
+    /**
+     * Release the oldest held payload.
+     *
+     * @param out list of payloads which are ready to be pushed
+     */
+    private void release(List<IPayload> out)
+    {
+        Entry entry = held.poll();
+        lastReleased = entry.time;
+        out.add(entry.payload);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ReorderWindow[" + held.size() + "/" + maxCount + "/" +
+            maxTicks + ",reordered " + numReordered + ",late " + numLate +
+            "]";
+    }
+}
@@ -0,0 +1,542 @@
+package icecube.daq.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Open connections to several remote servers at once.
+ *
+ * All connections are started with a non-blocking connect and completed
+ * through a single selector, so establishing N connections takes about as
+ * long as the slowest one.  Each failed target is retried with
+ * exponential backoff, as is any attempt which takes longer than the
+ * connect timeout.  Host names are looked up by a small pool of
+ * resolver threads, so a slow name server does not hold up the targets
+ * whose addresses are already known.
+ */
+class ReverseConnector
+    implements Runnable
+{
+    /**
+     * Remote server to which a connection should be made.
+     */
+    interface Target
+    {
+        /**
+         * Get the remote endpoint.  An unresolved
+         * <tt>InetSocketAddress</tt> is resolved before each attempt.
+         *
+         * @return remote endpoint
+         */
+        SocketAddress getAddress();
+
+        /**
+         * Called on the connector thread after the connection is made.
+         *
+         * @param chan connected non-blocking channel
+         *
+         * @throws IOException if the channel cannot be used
+         */
+        void connected(SocketChannel chan)
+            throws IOException;
+    }
+
+    /** logging object */
+    private static final Logger LOG = Logger.getLogger(ReverseConnector.class);
+
+    /** Maximum number of connection attempts per target */
+    static final int MAX_ATTEMPTS = 10;
+    /** Delay before the first retry (in msec.) */
+    static final long INITIAL_BACKOFF_MSEC = 10;
+    /** Maximum delay between retries (in msec.) */
+    static final long MAX_BACKOFF_MSEC = 1000;
+    /** Default time allowed for a single connection attempt (in msec.) */
+    static final long DEFAULT_CONNECT_TIMEOUT_MSEC = 5000;
+    /** Maximum number of concurrent host name lookups */
+    static final int MAX_RESOLVER_THREADS = 4;
+
+    /** Connector name */
+    private String name;
+    /** Remote servers */
+    private ArrayList<Target> targets;
+    /** Completed when all targets are connected or have failed */
+    private CompletableFuture<Void> future = new CompletableFuture<Void>();
+    /** Time allowed for a single connection attempt (in msec.) */
+    private long connectTimeoutMsec = DEFAULT_CONNECT_TIMEOUT_MSEC;
+    /** Attempts whose host name lookup has finished */
+    private ConcurrentLinkedQueue<Attempt> resolvedQueue =
+        new ConcurrentLinkedQueue<Attempt>();
+    /** Host name lookup threads */
+    private ExecutorService resolver;
+    /** Selector which completes the connections */
+    private volatile Selector selector;
+    /** <tt>true</tt> if the connector should give up */
+    private volatile boolean stopping;
+
+    /**
+     * Create a connector.
+     *
+     * @param name name used for the connector thread
+     * @param targets remote servers
+     */
+    ReverseConnector(String name, List<? extends Target> targets)
+    {
+        this.name = name;
+        this.targets = new ArrayList<Target>(targets);
+    }
+
+    /**
+     * Set the time allowed for each connection attempt.  Must be called
+     * before <tt>start()</tt>.
+     *
+     * @param msec maximum time (in msec.)
+     */
+    void setConnectTimeout(long msec)
+    {
+        if (msec <= 0) {
+            throw new IllegalArgumentException("Connect timeout must be" +
+                                               " positive, not " + msec);
+        }
+
+        connectTimeoutMsec = msec;
+    }
+
+    /**
+     * Start connecting to all targets.
+     *
+     * @return future which completes when all targets are connected, or
+     *         completes exceptionally if any target could not be connected
+     */
+    CompletableFuture<Void> start()
+    {
+        if (targets.size() == 0) {
+            future.complete(null);
+        } else {
+            Thread thread = new Thread(this);
+            thread.setName(name + "Connector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        return future;
+    }
+
+    /**
+     * Abandon any connections which have not yet been made.  The future
+     * completes exceptionally once the connector thread notices.
+     */
+    void stop()
+    {
+        stopping = true;
+
+        Selector sel = selector;
+        if (sel != null) {
+            sel.wakeup();
+        }
+    }
+
+    /**
+     * Connector thread.  Any failure completes the future, so callers
+     * waiting on it are never left hanging.
+     */
+    @Override
+    public void run()
+    {
+        Selector sel;
+        try {
+            sel = Selector.open();
+        } catch (IOException ioe) {
+            future.completeExceptionally(ioe);
+            return;
+        }
+
+        ThreadFactory factory = new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r);
+                    thread.setName(name + "Resolver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+
+        selector = sel;
+        resolver = Executors.newFixedThreadPool(MAX_RESOLVER_THREADS, factory);
+
+        try {
+            connectAll(sel);
+        } catch (Throwable thr) {
+            future.completeExceptionally(thr);
+        } finally {
+            resolver.shutdownNow();
+
+            // abandon any connections which are still in progress
+            for (SelectionKey key : sel.keys()) {
+                if (!key.isValid()) {
+                    // cancelled after its connection was handed off
+                    continue;
+                }
+
+                try {
+                    key.channel().close();
+                } catch (IOException ioe) {
+                    // ignore errors
+                }
+            }
+
+            try {
+                sel.close();
+            } catch (IOException ioe) {
+                // ignore errors
+            }
+        }
+    }
+
+    /**
+     * Connection loop.
+     *
+     * @param sel selector which completes the connections
+     */
+    private void connectAll(Selector sel)
+    {
+        ArrayList<Attempt> waiting = new ArrayList<Attempt>();
+        for (Target tgt : targets) {
+            waiting.add(new Attempt(tgt));
+        }
+
+        ArrayList<Attempt> pending = new ArrayList<Attempt>();
+        ArrayList<Attempt> failed = new ArrayList<Attempt>();
+        int remaining = targets.size();
+
+        while (remaining > 0 && !stopping) {
+            final long now = System.nanoTime();
+
+            // connect to any targets whose host names have been looked up
+            while (true) {
+                Attempt att = resolvedQueue.poll();
+                if (att == null) {
+                    break;
+                }
+
+                if (att.resolveEx != null) {
+                    remaining -= retry(att, att.resolveEx, waiting, failed);
+                } else {
+                    remaining -= connect(att, att.resolved, sel, pending,
+                                         waiting, failed);
+                }
+            }
+
+            // give up on any attempts which have taken too long
+            long waitNanos = Long.MAX_VALUE;
+            for (Iterator<Attempt> iter = pending.iterator();
+                 iter.hasNext(); )
+            {
+                Attempt att = iter.next();
+                if (att.deadline <= now) {
+                    iter.remove();
+
+                    IOException tmoEx =
+                        new SocketTimeoutException("Timed out connecting" +
+                                                   " to " + att);
+                    remaining -= retry(att, tmoEx, waiting, failed);
+                } else if (att.deadline - now < waitNanos) {
+                    waitNanos = att.deadline - now;
+                }
+            }
+
+            // start any attempts which are due
+            ArrayList<Attempt> due = null;
+            for (Iterator<Attempt> iter = waiting.iterator();
+                 iter.hasNext(); )
+            {
+                Attempt att = iter.next();
+                if (att.nextTry <= now) {
+                    iter.remove();
+                    if (due == null) {
+                        due = new ArrayList<Attempt>();
+                    }
+                    due.add(att);
+                } else if (att.nextTry - now < waitNanos) {
+                    waitNanos = att.nextTry - now;
+                }
+            }
+
+            if (due != null) {
+                for (Attempt att : due) {
+                    SocketAddress addr = att.target.getAddress();
+                    if (addr instanceof InetSocketAddress &&
+                        ((InetSocketAddress) addr).isUnresolved())
+                    {
+                        att.resolve((InetSocketAddress) addr, sel);
+                    } else {
+                        remaining -= connect(att, addr, sel, pending,
+                                             waiting, failed);
+                    }
+                }
+
+                // newly scheduled retries may be due before the others
+                continue;
+            }
+
+            final long waitMillis;
+            if (waitNanos == Long.MAX_VALUE) {
+                waitMillis = MAX_BACKOFF_MSEC;
+            } else {
+                waitMillis = Math.max(1L, waitNanos / 1000000L);
+            }
+
+            try {
+                sel.select(waitMillis);
+            } catch (IOException ioe) {
+                LOG.error("Error on selection: ", ioe);
+                continue;
+            }
+
+            Iterator<SelectionKey> iter = sel.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+
+                Attempt att = (Attempt) key.attachment();
+                try {
+                    if (att.chan.finishConnect()) {
+                        key.cancel();
+                        pending.remove(att);
+                        remaining -= finish(att, failed);
+                    }
+                } catch (IOException ioe) {
+                    key.cancel();
+                    pending.remove(att);
+                    remaining -= retry(att, ioe, waiting, failed);
+                }
+            }
+        }
+
+        if (remaining > 0) {
+            future.completeExceptionally(new IOException("Gave up on " +
+                                                         remaining + " of " +
+                                                         targets.size() +
+                                                         " " + name +
+                                                         " connections"));
+        } else if (failed.size() == 0) {
+            future.complete(null);
+        } else {
+            Attempt att = failed.get(0);
+            future.completeExceptionally(new IOException("Could not connect " +
+                                                         att + " (" +
+                                                         failed.size() +
+                                                         " of " +
+                                                         targets.size() +
+                                                         " failed)",
+                                                         att.lastEx));
+        }
+    }
+
+    /**
+     * Start connecting to a target's address.
+     *
+     * @param att attempt
+     * @param addr resolved remote address
+     * @param sel selector which will complete the connection
+     * @param pending list of attempts waiting for the connection
+     * @param waiting list of attempts waiting to be retried
+     * @param failed list of failed attempts
+     *
+     * @return number of targets which are finished (0 or 1)
+     */
+    private int connect(Attempt att, SocketAddress addr, Selector sel,
+                        List<Attempt> pending, List<Attempt> waiting,
+                        List<Attempt> failed)
+    {
+        try {
+            if (att.begin(sel, addr)) {
+                return finish(att, failed);
+            }
+        } catch (IOException ioe) {
+            return retry(att, ioe, waiting, failed);
+        }
+
+        att.deadline = System.nanoTime() + connectTimeoutMsec * 1000000L;
+        pending.add(att);
+        return 0;
+    }
+
+    /**
+     * Hand a connected channel to its target.
+     *
+     * @param att completed attempt
+     * @param failed list of failed attempts
+     *
+     * @return number of targets which are finished (always 1)
+     */
+    private static int finish(Attempt att, List<Attempt> failed)
+    {
+        try {
+            att.target.connected(att.chan);
+        } catch (Throwable thr) {
+            att.close();
+            att.lastEx = thr;
+            failed.add(att);
+        }
+
+        return 1;
+    }
+
+    /**
+     * Schedule another attempt or give up.
+     *
+     * @param att failed attempt
+     * @param ioe cause of failure
+     * @param waiting list of attempts waiting to be retried
+     * @param failed list of failed attempts
+     *
+     * @return number of targets which are finished (0 or 1)
+     */
+    private static int retry(Attempt att, IOException ioe,
+                             List<Attempt> waiting, List<Attempt> failed)
+    {
+        att.close();
+        att.lastEx = ioe;
+
+        if (++att.numTries >= MAX_ATTEMPTS) {
+            failed.add(att);
+            return 1;
+        }
+
+        att.nextTry = System.nanoTime() + att.backoff * 1000000L;
+        att.backoff = Math.min(att.backoff * 2, MAX_BACKOFF_MSEC);
+        waiting.add(att);
+        return 0;
+    }
+
+    /**
+     * State of the connection to a single target.
+     */
+    private class Attempt
+    {
+        /** Remote server */
+        Target target;
+        /** Channel being connected */
+        SocketChannel chan;
+        /** Number of failed attempts */
+        int numTries;
+        /** Time of next attempt (from System.nanoTime()) */
+        long nextTry;
+        /** Delay before the next retry (in msec.) */
+        long backoff = INITIAL_BACKOFF_MSEC;
+        /** Time when the current attempt times out (from nanoTime()) */
+        long deadline;
+        /** Most recent error */
+        Throwable lastEx;
+        /** Address found by the most recent host name lookup */
+        volatile SocketAddress resolved;
+        /** Error from the most recent host name lookup */
+        volatile IOException resolveEx;
+
+        Attempt(Target target)
+        {
+            this.target = target;
+        }
+
+        /**
+         * Start a non-blocking connect.
+         *
+         * @param sel selector which will complete the connection
+         * @param addr resolved remote address
+         *
+         * @return <tt>true</tt> if the connection was made immediately
+         *
+         * @throws IOException if the connection failed
+         */
+        boolean begin(Selector sel, SocketAddress addr)
+            throws IOException
+        {
+            if (addr instanceof UnixDomainSocketAddress) {
+                chan = SocketChannel.open(StandardProtocolFamily.UNIX);
+            } else {
+                chan = SocketChannel.open();
+            }
+            chan.configureBlocking(false);
+
+            if (chan.connect(addr)) {
+                return true;
+            }
+
+            chan.register(sel, SelectionKey.OP_CONNECT, this);
+            return false;
+        }
+
+        /**
+         * Look up the host name on a resolver thread, then hand this
+         * attempt back to the connector thread.
+         *
+         * @param addr unresolved address
+         * @param sel selector to wake once the lookup is done
+         */
+        void resolve(final InetSocketAddress addr, final Selector sel)
+        {
+            resolved = null;
+            resolveEx = null;
+
+            resolver.execute(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        // resolve the host name each time we connect
+                        InetSocketAddress iAddr =
+                            new InetSocketAddress(addr.getHostString(),
+                                                  addr.getPort());
+                        if (iAddr.isUnresolved()) {
+                            resolveEx = new IOException("Cannot resolve " +
+                                                        Attempt.this);
+                        } else {
+                            resolved = iAddr;
+                        }
+
+                        resolvedQueue.add(Attempt.this);
+                        sel.wakeup();
+                    }
+                });
+        }
+
+        /**
+         * Close the current channel.
+         */
+        void close()
+        {
+            if (chan != null) {
+                try {
+                    chan.close();
+                } catch (IOException ioe) {
+                    // ignore errors
+                }
+
+                chan = null;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return target.toString();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package icecube.daq.io;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Wait for selector events, optionally polling with <tt>selectNow()</tt>
+ * for a short time before falling back to a blocking <tt>select()</tt>.
+ *
+ * Spinning trades a CPU core for lower latency, since a record which
+ * arrives during the spin is handled without waiting for the kernel to
+ * wake the selector thread.  The spin budget is zero (always block) by
+ * default.
+ *
+ * <tt>selectNow()</tt> clears any pending <tt>Selector.wakeup()</tt>, so
+ * selector threads which spin must be woken through {@link #wakeup}.
+ */
+class SelectSpinner
+{
+    /** Spin budget in nanoseconds */
+    private volatile long spinNanos;
+    /** Has the selector been woken since the last select returned? */
+    private AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    /** Number of selects satisfied while spinning */
+    private volatile long spinHits;
+    /** Number of selects which fell back to a blocking wait */
+    private volatile long blockingWaits;
+
+    /**
+     * Get the number of selects which fell back to a blocking wait.
+     *
+     * @return number of blocking waits
+     */
+    long getBlockingWaits()
+    {
+        return blockingWaits;
+    }
+
+    /**
+     * Get the number of selects satisfied while spinning.
+     *
+     * @return number of spin hits
+     */
+    long getSpinHits()
+    {
+        return spinHits;
+    }
+
+    /**
+     * Get the spin budget.
+     *
+     * @return spin budget in microseconds
+     */
+    long getSpinMicros()
+    {
+        return spinNanos / 1000L;
+    }
+
+    /**
+     * Wait for selector events.  Only one thread may call this method.
+     *
+     * @param sel selector
+     * @param timeout maximum number of milliseconds to block
+     *
+     * @return number of selected keys
+     *
+     * @throws IOException if the select fails
+     */
+    int select(Selector sel, long timeout)
+        throws IOException
+    {
+        try {
+            final long budget = spinNanos;
+            if (budget > 0) {
+                final long end = System.nanoTime() + budget;
+                while (true) {
+                    final int numSelected = sel.selectNow();
+                    if (numSelected > 0) {
+                        spinHits++;
+                        return numSelected;
+                    }
+
+                    // selectNow() may have eaten a wakeup
+                    if (wakeupPending.get() || System.nanoTime() >= end) {
+                        break;
+                    }
+
+                    Thread.onSpinWait();
+                }
+
+                if (wakeupPending.get()) {
+                    return 0;
+                }
+            }
+
+            blockingWaits++;
+            return sel.select(timeout);
+        } finally {
+            // anything changed after this point needs another wakeup
+            wakeupPending.set(false);
+        }
+    }
+
+    /**
+     * Poll for selector events without waiting.  Only one thread may
+     * call this method.
+     *
+     * @param sel selector
+     *
+     * @return number of selected keys
+     *
+     * @throws IOException if the select fails
+     */
+    int selectNow(Selector sel)
+        throws IOException
+    {
+        try {
+            return sel.selectNow();
+        } finally {
+            // anything changed after this point needs another wakeup
+            wakeupPending.set(false);
+        }
+    }
+
+    /**
+     * Set the spin budget.
+     *
+     * @param usec number of microseconds to poll before blocking
+     *             (0 to always block)
+     */
+    void setSpinMicros(long usec)
+    {
+        if (usec < 0) {
+            throw new IllegalArgumentException("Spin time must not be" +
+                                               " negative, not " + usec);
+        }
+
+        spinNanos = usec * 1000L;
+    }
+
+    /**
+     * Wake the selector (if it hasn't already been woken).
+     *
+     * @param sel selector (may be <tt>null</tt>)
+     */
+    void wakeup(Selector sel)
+    {
+        if (sel != null && wakeupPending.compareAndSet(false, true)) {
+            sel.wakeup();
+        }
+    }
+}
@@ -37,7 +37,9 @@ public abstract class SimpleChannel
 
     private ByteBuffer inputBuf;
     private int bufPos;
-    private boolean isDisposing;
+    private volatile boolean isDisposing;
+    // skips input while disposing (null until the first disposing read)
+    private RecordDiscarder discarder;
 
     // buffer manager limits
     private long limitToStopAllocation;
@@ -176,6 +178,33 @@ public abstract class SimpleChannel
         return stopsReceived;
     }
 
+    /**
+     * Throw away everything read since the last call, watching only for
+     * the stop message.
+     */
+    private void discardBuffer()
+    {
+        if (discarder == null) {
+            discarder = new RecordDiscarder();
+
+            // move unframed input to the front of the buffer
+            inputBuf.limit(inputBuf.position());
+            inputBuf.position(bufPos);
+            inputBuf.compact();
+            bufPos = 0;
+        }
+
+        inputBuf.flip();
+        final boolean gotStop = discarder.discard(inputBuf);
+        inputBuf.compact();
+
+        if (gotStop) {
+            stopsReceived++;
+            notifyOnStop();
+            inputBuf.clear();
+        }
+    }
+
     private void handleBuffer()
     {
         while (true) {
@@ -262,17 +291,6 @@ public abstract class SimpleChannel
                 break;
             }
 
-            if (isDisposing) {
-                if (inputBuf.position() == bufPos + length) {
-                    inputBuf.position(0);
-                    bufPos = 0;
-                } else {
-                    bufPos += length;
-                }
-
-                continue;
-            }
-
             ByteBuffer payBuf = fillBuffer(length);
             if (payBuf == null) {
                 break;
@@ -391,7 +409,11 @@ public abstract class SimpleChannel
                     }
                 }
 
-                handleBuffer();
+                if (isDisposing) {
+                    discardBuffer();
+                } else {
+                    handleBuffer();
+                }
             }
         }
     }
@@ -8,11 +8,14 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.Selector;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -39,6 +42,16 @@ public class SimpleOutputEngine
     private String engineFunction;
     /** Maximum channel depth */
     private int maxChannelDepth;
+    /** Priority lane weights for new channels, highest priority first */
+    private int[] laneWeights = new int[] { 1 };
+    /** Rate limit for new channels in bytes/second (0 if unlimited) */
+    private long chanBytesPerSec;
+    /** Burst size for new channels in bytes */
+    private long chanBurstBytes;
+    /** Rate limit shared by all channels (<tt>null</tt> if unlimited) */
+    private volatile TokenBucket engineLimit;
+    /** Should new channels wait for credit from the reader? */
+    private boolean useCredit;
 
     /** Current engine state. */
     private State state = State.STOPPED;
@@ -54,9 +67,19 @@ public class SimpleOutputEngine
      */
     private ArrayList<SimpleOutputChannel> regList =
         new ArrayList<SimpleOutputChannel>();
+    /**
+     * List of channels waiting for their rate limit to allow more output.
+     * Only used by the selector thread.
+     */
+    private ArrayList<SimpleOutputChannel> throttleList =
+        new ArrayList<SimpleOutputChannel>();
 
     /** Channel selector. */
     private Selector selector;
+    /** Shared reactor (<tt>null</tt> if this engine runs its own thread) */
+    private OutputReactor reactor;
+    /** Waits for selector events and coalesces wakeups */
+    private SelectSpinner spinner = new SelectSpinner();
 
     /** Component observer. */
     private DAQComponentObserver observer;
@@ -64,10 +87,10 @@ public class SimpleOutputEngine
     /** Has this engine been connected to one or more input channels? */
     private boolean isConnected = false;
 
-    /** Number of records sent. */
-    private long numSent;
-    /** Total number of records sent. */
-    private long totalSent;
+    /** Number of records sent (updated by every channel). */
+    private AtomicLong numSent = new AtomicLong();
+    /** Total number of records sent (updated by every channel). */
+    private AtomicLong totalSent = new AtomicLong();
 
     /**
      * Create an output engine.
@@ -92,16 +115,38 @@ public class SimpleOutputEngine
      */
     public SimpleOutputEngine(String type, int id, String fcn,
                               int maxChanDepth)
+    {
+        this(type, id, fcn, maxChanDepth, null);
+    }
+
+    /**
+     * Create an output engine.
+     *
+     * @param type engine type
+     * @param id engine ID
+     * @param fcn engine function
+     * @param maxChanDepth maximum depth (new data for a channel will not be
+     *                     read if it contains more than maxChanDepth items)
+     * @param reactor shared reactor which writes this engine's channels
+     *                (if <tt>null</tt>, the engine uses its own thread)
+     */
+    public SimpleOutputEngine(String type, int id, String fcn,
+                              int maxChanDepth, OutputReactor reactor)
     {
         engineType = type;
         engineId = id;
         engineFunction = fcn;
         maxChannelDepth = maxChanDepth;
 
-        try {
-            selector = Selector.open();
-        } catch (IOException ioe) {
-            throw new Error("Cannot create Selector", ioe);
+        if (reactor != null) {
+            this.reactor = reactor;
+            selector = reactor.getSelector();
+        } else {
+            try {
+                selector = Selector.open();
+            } catch (IOException ioe) {
+                throw new Error("Cannot create Selector", ioe);
+            }
         }
     }
 
@@ -126,6 +171,10 @@ public class SimpleOutputEngine
             throw new Error("Channel is not selectable");
         }
 
+        if (useCredit && !(channel instanceof ReadableByteChannel)) {
+            throw new Error("Channel cannot receive credit");
+        }
+
         if (name == null) {
             name = Integer.toString(nextChannelNum++);
         }
@@ -145,6 +194,60 @@ public class SimpleOutputEngine
         return outChan;
     }
 
+    /**
+     * Add an in-process channel.  Records are handed to the reader
+     * attached to <tt>channel</tt> instead of being queued for output.
+     *
+     * @param channel in-process channel
+     * @param bufMgr byte buffer manager
+     * @param name channel name (used in logging/exception messages)
+     *
+     * @return new output channel
+     */
+    public QueuedOutputChannel addDataChannel(LocalChannel channel,
+                                              IByteBufferCache bufMgr,
+                                              String name)
+    {
+        if (state != State.STOPPED) {
+            throw new RuntimeException("Engine should be stopped, not " +
+                                       getPresentState());
+        }
+
+        if (name == null) {
+            name = Integer.toString(nextChannelNum++);
+        }
+
+        String fullName = engineFunction + ":" + name;
+
+        SimpleOutputChannel outChan =
+            new LocalOutputChannel(this, fullName, channel, bufMgr,
+                                   maxChannelDepth);
+
+        synchronized (channelList) {
+            channelList.add(outChan);
+        }
+
+        isConnected = true;
+
+        return outChan;
+    }
+
+    /**
+     * Create a group which sends every record to all of its member channels
+     * without copying the record.  Each record is returned to
+     * <tt>bufMgr</tt> after the last member has written it.
+     *
+     * @param name group name (used in logging/exception messages)
+     * @param bufMgr byte buffer manager for records sent through the group
+     *
+     * @return new multicast group
+     */
+    public MulticastGroup createMulticastGroup(String name,
+                                               IByteBufferCache bufMgr)
+    {
+        return new MulticastGroup(engineFunction + ":" + name, bufMgr);
+    }
+
     /**
      * Unimplemented.
      */
@@ -170,6 +273,24 @@ public class SimpleOutputEngine
         return addDataChannel(chan, bufMgr, new SourceID(srcId).toString());
     }
 
+    /**
+     * Create a rate limit.
+     *
+     * @param bytesPerSecond sustained rate (0 for no limit)
+     * @param burstBytes maximum number of bytes sent at full speed
+     *
+     * @return new token bucket (<tt>null</tt> if the rate is unlimited)
+     */
+    private static TokenBucket createRateLimit(long bytesPerSecond,
+                                               long burstBytes)
+    {
+        if (bytesPerSecond <= 0) {
+            return null;
+        }
+
+        return new TokenBucket(bytesPerSecond, burstBytes);
+    }
+
     /**
      * Destroy this engine.
      */
@@ -195,10 +316,15 @@ public class SimpleOutputEngine
             Selector tmpSel = selector;
             selector = null;
 
-            try {
-                tmpSel.close();
-            } catch (IOException ioe) {
-                LOG.error("Cannot close selector", ioe);
+            if (reactor != null) {
+                // shared selector belongs to the reactor
+                reactor.detach(this);
+            } else {
+                try {
+                    tmpSel.close();
+                } catch (IOException ioe) {
+                    LOG.error("Cannot close selector", ioe);
+                }
             }
         }
 
@@ -378,7 +504,35 @@ public class SimpleOutputEngine
     @Override
     public long getRecordsSent()
     {
-        return numSent;
+        return numSent.get();
+    }
+
+    /**
+     * Get the number of selects which had to block.
+     *
+     * @return number of blocking waits
+     */
+    public long getSelectorBlockingWaits()
+    {
+        if (reactor != null) {
+            return reactor.getSelectorBlockingWaits();
+        }
+
+        return spinner.getBlockingWaits();
+    }
+
+    /**
+     * Get the number of selects satisfied while spinning.
+     *
+     * @return number of spin hits
+     */
+    public long getSelectorSpinHits()
+    {
+        if (reactor != null) {
+            return reactor.getSelectorSpinHits();
+        }
+
+        return spinner.getSpinHits();
     }
 
     /**
@@ -389,7 +543,7 @@ public class SimpleOutputEngine
     @Override
     public long getTotalRecordsSent()
     {
-        return totalSent;
+        return totalSent.get();
     }
 
     /**
@@ -524,12 +678,11 @@ public class SimpleOutputEngine
     }
 
     /**
-     * Main thread loop.
+     * Set the state at the start of a run.
      */
-    @Override
-    public void run()
+    void beginRun()
     {
-        numSent = 0;
+        numSent.set(0);
 
         // stop immediately if there are no channels
         if (channelList.size() > 0) {
@@ -545,82 +698,179 @@ public class SimpleOutputEngine
 
             state = State.STOPPED;
         }
+    }
+
+    /**
+     * Clean up at the end of a run.
+     */
+    void endRun()
+    {
+        if (state == State.RUNNING) {
+            if (observer != null) {
+                observer.update(NormalState.STOPPED, DAQCmdInterface.SOURCE);
+            }
+
+            state = State.STOPPED;
+        }
+    }
+
+    /**
+     * Convert the time until the next throttled channel is released into
+     * a selector timeout.
+     *
+     * @param throttleNanos nanoseconds until the next release
+     *
+     * @return timeout in msec.
+     */
+    static long getSelectTimeout(long throttleNanos)
+    {
+        if (throttleNanos >= DEFAULT_SELECTOR_TIMEOUT_MSEC * 1000000L) {
+            return DEFAULT_SELECTOR_TIMEOUT_MSEC;
+        }
+
+        // round up, since select(0) would wait forever
+        return Math.max(1L, (throttleNanos + 999999L) / 1000000L);
+    }
+
+    /**
+     * Handle a selected key for one of this engine's channels.
+     *
+     * @param key selected key
+     */
+    private void handleKey(SelectionKey key)
+    {
+        SimpleOutputChannel chan = ((SimpleOutputChannel) key.attachment());
+        if (chan.isStopped()) {
+            // XXX probably should keep channels around in case
+            // XXX we ever want to restart without reconnecting
+            removeStoppedChannel(chan);
+            key.cancel();
+            return;
+        }
+
+        if (key.isReadable()) {
+            chan.receiveCredit();
+            if (!key.isValid() || !key.isWritable()) {
+                return;
+            }
+        }
+
+        if (!chan.isOutputQueued()) {
+            chan.clearWriteInterest();
+        } else {
+            chan.transmit();
+        }
+    }
+
+    /**
+     * Handle a selected key for any engine's channel.
+     *
+     * @param key selected key
+     */
+    static void handleSelectedKey(SelectionKey key)
+    {
+        ((SimpleOutputChannel) key.attachment()).parent.handleKey(key);
+    }
+
+    /**
+     * Does this engine still need to be serviced by a selector loop?
+     *
+     * @return <tt>true</tt> if the engine is running or has open channels
+     */
+    boolean isActive()
+    {
+        return state == State.RUNNING || channelList.size() > 0;
+    }
+
+    /**
+     * Register all channels waiting for registration.
+     *
+     * @param sel selector
+     */
+    void registerPending(Selector sel)
+    {
+        if (regList.size() > 0) {
+            synchronized (regList) {
+                for (SimpleOutputChannel outChan : regList) {
+                    try {
+                        outChan.register(sel);
+                    } catch (IOException ioe) {
+                        LOG.error("Cannot register channel " + outChan, ioe);
+                    }
+                }
+                regList.clear();
+            }
+        }
+    }
+
+    /**
+     * Resume writing to throttled channels whose rate limit allows more
+     * output.  Must only be called by the selector thread.
+     *
+     * @return nanoseconds until the next throttled channel can be released
+     *         (<tt>Long.MAX_VALUE</tt> if no channels are throttled)
+     */
+    long releaseThrottled()
+    {
+        if (throttleList.size() == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        long next = Long.MAX_VALUE;
+
+        final long now = System.nanoTime();
+        for (Iterator<SimpleOutputChannel> iter = throttleList.iterator();
+             iter.hasNext(); )
+        {
+            SimpleOutputChannel chan = iter.next();
+
+            final long remaining = chan.getThrottleEnd() - now;
+            if (remaining <= 0) {
+                iter.remove();
+                chan.unthrottle();
+            } else if (remaining < next) {
+                next = remaining;
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Main thread loop.
+     */
+    @Override
+    public void run()
+    {
+        beginRun();
+
+        while (isActive()) {
+            final long timeout = getSelectTimeout(releaseThrottled());
 
-        while (state == State.RUNNING || channelList.size() > 0) {
             int numSelected = 0;
             try {
-                numSelected = selector.select(DEFAULT_SELECTOR_TIMEOUT_MSEC);
+                numSelected = spinner.select(selector, timeout);
             } catch (IOException ioe) {
                 LOG.error("select() failed", ioe);
                 break;
             }
 
-            if (regList.size() > 0) {
-                synchronized (regList) {
-                    for (SimpleOutputChannel outChan : regList) {
-                        try {
-                            outChan.register(selector);
-                        } catch (IOException ioe) {
-                            LOG.error("Cannot register channel " + outChan,
-                                      ioe);
-                        }
-                    }
-                    regList.clear();
-                }
-            }
+            registerPending(selector);
 
             if (numSelected == 0) {
-                if (channelList.size() > 0) {
-                    // check for stopped channels
-                    synchronized (channelList) {
-                        for (int i = 0; i < channelList.size(); ) {
-                            SimpleOutputChannel chan = channelList.get(i);
-                            if (chan.isStopped()) {
-                                channelList.remove(i);
-                                try {
-                                    chan.close();
-                                } catch (IOException ioe) {
-                                    LOG.error("Couldn't close " + chan, ioe);
-                                }
-                            } else {
-                                i++;
-                            }
-                        }
-
-                        if (channelList.size() == 0) {
-                            handleEngineStop();
-                        }
-                    }
-                }
+                sweepStoppedChannels();
             } else {
                 Iterator<SelectionKey> i = selector.selectedKeys().iterator();
                 while (i.hasNext()) {
                     SelectionKey key = i.next();
                     i.remove();
 
-                    SimpleOutputChannel chan =
-                        ((SimpleOutputChannel) key.attachment());
-                    if (chan.isStopped()) {
-                        // XXX probably should keep channels around in case
-                        // XXX we ever want to restart without reconnecting
-                        removeStoppedChannel(chan);
-                        key.cancel();
-                    } else if (!chan.isOutputQueued()) {
-                        chan.unregister(key);
-                    } else {
-                        chan.transmit();
-                    }
+                    handleKey(key);
                 }
             }
         }
 
-        if (state == State.RUNNING) {
-            if (observer != null) {
-                observer.update(NormalState.STOPPED, DAQCmdInterface.SOURCE);
-            }
-
-            state = State.STOPPED;
-        }
+        endRun();
     }
 
     /**
@@ -652,81 +902,197 @@ public class SimpleOutputEngine
     }
 
     /**
-     * Do nothing.
+     * Make channels added after this call wait for credit from the
+     * reader before sending.  The reader must also have credit flow
+     * control enabled, and each channel must be a socket (or other
+     * channel which can be read) so credit can be returned over it.
+     *
+     * @param enable <tt>true</tt> to use credit flow control
      */
-    @Override
-    public void start()
+    public void setCreditFlowControl(boolean enable)
     {
-        // nothing to do
+        useCredit = enable;
     }
 
     /**
-     * Start sending records.
+     * Limit the output rate of each channel added after this call.
+     *
+     * @param bytesPerSecond sustained rate (0 to remove the limit)
+     * @param burstBytes maximum number of bytes sent at full speed
      */
-    @Override
-    public void startProcessing()
+    public void setChannelRateLimit(long bytesPerSecond, long burstBytes)
     {
-        if (state != State.STOPPED) {
-            throw new RuntimeException("Engine should be stopped, not " +
-                                       getPresentState());
+        // validate the parameters
+        createRateLimit(bytesPerSecond, burstBytes);
+
+        chanBytesPerSec = bytesPerSecond;
+        chanBurstBytes = burstBytes;
+    }
+
+    /**
+     * Set the priority lanes used by channels added after this call.
+     * Lane 0 has the highest priority; records sent without a priority go
+     * to the last (lowest priority) lane.
+     *
+     * @param weights maximum number of records each lane may send in each
+     *                round of the weighted round-robin scheduler
+     */
+    public void setPriorityLanes(int... weights)
+    {
+        if (weights == null || weights.length == 0) {
+            throw new IllegalArgumentException("No lane weights specified");
         }
 
-        synchronized (channelList) {
-            if (channelList.size() > 0) {
-                for (SimpleOutputChannel outChan : channelList) {
-                    outChan.startProcessing();
-                }
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 1) {
+                throw new IllegalArgumentException("Weight for lane " + i +
+                                                   " must be positive, not " +
+                                                   weights[i]);
             }
         }
 
-        Thread thread = new Thread(this);
-        thread.setName(engineType + "-" + engineId + "-" + engineFunction);
-        thread.start();
+        laneWeights = weights.clone();
     }
 
     /**
-     * Debugging string.
+     * Poll the selector for up to <tt>usec</tt> microseconds before
+     * blocking.  This lowers latency at the cost of a busy CPU core.
      *
-     * @return debugging string
+     * @param usec spin budget in microseconds (0 to always block)
      */
-    @Override
-    public String toString()
+    public void setSelectorSpinMicros(long usec)
     {
-        return engineType + "#" + engineId + ":" + engineFunction +
-            "=" + state +
-            (channelList.size() == 0 ? "" : "*" + channelList.size());
+        if (reactor != null) {
+            throw new Error("Engine " + toString() + " uses a shared" +
+                            " reactor; set the spin time on the reactor");
+        }
+
+        spinner.setSpinMicros(usec);
     }
 
     /**
-     * Unimplemented.
+     * Limit the combined output rate of all channels.
+     *
+     * @param bytesPerSecond sustained rate (0 to remove the limit)
+     * @param burstBytes maximum number of bytes sent at full speed
      */
-    @Override
-    public void update(Object obj, String notificationID)
+    public void setRateLimit(long bytesPerSecond, long burstBytes)
     {
-        throw new Error("Unimplemented");
+        engineLimit = createRateLimit(bytesPerSecond, burstBytes);
     }
 
     /**
-     * Wake the selector
+     * Do nothing.
      */
-    private void wakeup()
+    @Override
+    public void start()
     {
-        if (selector != null) {
-            selector.wakeup();
-        }
+        // nothing to do
     }
 
     /**
-     * Connection to input channel.
+     * Start sending records.
      */
-    abstract class SimpleOutputChannel
-        implements QueuedOutputChannel
+    @Override
+    public void startProcessing()
     {
-        /** Approximate maximum number of bytes to send at a time. */
-        private static final int XMIT_GROUP_MAX_BYTES = 2048;
-        /** Amount of time to sleep when channel exceeds 'maxDepth' */
-        private static final int SLEEP_USEC = 1;
-
+        if (state != State.STOPPED) {
+            throw new RuntimeException("Engine should be stopped, not " +
+                                       getPresentState());
+        }
+
+        synchronized (channelList) {
+            if (channelList.size() > 0) {
+                for (SimpleOutputChannel outChan : channelList) {
+                    outChan.startProcessing();
+                }
+            }
+        }
+
+        if (reactor != null) {
+            beginRun();
+            reactor.attach(this);
+        } else {
+            Thread thread = new Thread(this);
+            thread.setName(engineType + "-" + engineId + "-" +
+                           engineFunction);
+            thread.start();
+        }
+    }
+
+    /**
+     * Close and remove any stopped channels.
+     */
+    void sweepStoppedChannels()
+    {
+        if (channelList.size() > 0) {
+            synchronized (channelList) {
+                for (int i = 0; i < channelList.size(); ) {
+                    SimpleOutputChannel chan = channelList.get(i);
+                    if (chan.isStopped()) {
+                        channelList.remove(i);
+                        try {
+                            chan.close();
+                        } catch (IOException ioe) {
+                            LOG.error("Couldn't close " + chan, ioe);
+                        }
+                    } else {
+                        i++;
+                    }
+                }
+
+                if (channelList.size() == 0) {
+                    handleEngineStop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Debugging string.
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return engineType + "#" + engineId + ":" + engineFunction +
+            "=" + state +
+            (channelList.size() == 0 ? "" : "*" + channelList.size());
+    }
+
+    /**
+     * Unimplemented.
+     */
+    @Override
+    public void update(Object obj, String notificationID)
+    {
+        throw new Error("Unimplemented");
+    }
+
+    /**
+     * Wake the selector (if it hasn't already been woken)
+     */
+    private void wakeup()
+    {
+        if (reactor != null) {
+            reactor.wakeup();
+        } else {
+            spinner.wakeup(selector);
+        }
+    }
+
+    /**
+     * Connection to input channel.
+     */
+    abstract class SimpleOutputChannel
+        implements QueuedOutputChannel
+    {
+        /** Approximate maximum number of bytes to send at a time. */
+        private static final int XMIT_GROUP_MAX_BYTES = 2048;
+        /** Amount of time to sleep when channel exceeds 'maxDepth' */
+        private static final int SLEEP_USEC = 1;
+
         /** Parent engine. */
         private SimpleOutputEngine parent;
         /** Channel name. */
@@ -734,21 +1100,51 @@ public class SimpleOutputEngine
         /** Actual output channel. */
         private WritableByteChannel channel;
         /** Byte buffer manager. */
-        private IByteBufferCache bufferMgr;
+        IByteBufferCache bufferMgr;
         /** Maximum channel depth */
         private int maxDepth;
         /** Depth below which a paused channel can be unpaused */
         private int unpauseDepth;
 
         /** Queue of records to be written. */
-        private LinkedList<ByteBuffer> outputQueue =
-            new LinkedList<ByteBuffer>();
-
-        /** Is this channel registered with the parent engine? */
+        private PriorityLaneQueue outputQueue;
+        /** Lane used for records sent without a priority */
+        private int defaultLane;
+        /** Queued multicast records, keyed by this channel's view */
+        private IdentityHashMap<ByteBuffer, SharedRecord> sharedRecords =
+            new IdentityHashMap<ByteBuffer, SharedRecord>();
+        /** Have queued multicast records been released by close()? */
+        private boolean sharedReleased;
+
+        /** Has this channel been queued for registration? */
         private boolean registered;
+        /** Selector key (set once the channel is registered) */
+        private SelectionKey selKey;
+        /** Is the selector watching this channel for writability? */
+        private boolean writeInterest;
+
+        /** Output rate limit (<tt>null</tt> if unlimited) */
+        private volatile TokenBucket rateLimit;
+        /** Is output suspended until the rate limit allows more? */
+        private boolean throttled;
+        /** Time when a throttled channel may resume (from nanoTime()) */
+        private long throttleEnd;
+
+        /** Does this channel wait for credit from the reader? */
+        private boolean creditMode;
+        /** Is the selector watching this channel for credit? */
+        private boolean readInterest;
+        /** Number of records which may still be sent */
+        private long creditRecords;
+        /** Number of bytes which may still be sent */
+        private long creditBytes;
+        /** Is output suspended until more credit arrives? */
+        private boolean creditStalled;
+        /** Partially received credit grants */
+        private ByteBuffer creditBuf;
 
         /** Number of records sent by this channel. */
-        private long chanSent;
+        long chanSent;
         /** <tt>True</tt> if this channel has been paused. */
         private boolean paused;
         /** <tt>True</tt> if this channel has been stopped. */
@@ -780,6 +1176,17 @@ public class SimpleOutputEngine
 
             // unpause after output queue has dropped by 1%
             unpauseDepth = maxDepth - (maxDepth / 100);
+
+            outputQueue = new PriorityLaneQueue(laneWeights);
+            defaultLane = outputQueue.getNumberOfLanes() - 1;
+
+            rateLimit = createRateLimit(chanBytesPerSec, chanBurstBytes);
+
+            if (useCredit && channel instanceof ReadableByteChannel) {
+                creditMode = true;
+                readInterest = true;
+                creditBuf = ByteBuffer.allocate(CreditGrant.LENGTH * 16);
+            }
         }
 
         /**
@@ -791,6 +1198,38 @@ public class SimpleOutputEngine
             throws IOException
         {
             channel.close();
+
+            releaseShared();
+        }
+
+        /**
+         * Stop watching for writability if there is nothing left to write.
+         */
+        void clearWriteInterest()
+        {
+            synchronized (outputQueue) {
+                if (writeInterest && outputQueue.size() == 0) {
+                    setWriteInterest(false);
+                }
+            }
+        }
+
+        /**
+         * Charge the rate limits for bytes which have been written.
+         *
+         * @param bytes number of bytes written
+         */
+        private void consumeTokens(int bytes)
+        {
+            final TokenBucket chanLimit = rateLimit;
+            if (chanLimit != null) {
+                chanLimit.consume(bytes);
+            }
+
+            final TokenBucket engLimit = engineLimit;
+            if (engLimit != null) {
+                engLimit.consume(bytes);
+            }
         }
 
         /**
@@ -814,8 +1253,73 @@ public class SimpleOutputEngine
             return outputQueue.size();
         }
 
+        /**
+         * Get the depth of one priority lane.
+         *
+         * @param lane lane number
+         *
+         * @return number of records waiting in the lane
+         */
+        public long getDepth(int lane)
+        {
+            synchronized (outputQueue) {
+                return outputQueue.size(lane);
+            }
+        }
+
         abstract int getRecordLength(ByteBuffer buf);
 
+        /**
+         * Get the time until the rate limits allow another record to be sent.
+         *
+         * @return delay in nanoseconds (0 if a record may be sent now)
+         */
+        private long getShapingDelay()
+        {
+            long delay = 0;
+
+            final TokenBucket chanLimit = rateLimit;
+            if (chanLimit != null) {
+                delay = chanLimit.getDelay();
+            }
+
+            final TokenBucket engLimit = engineLimit;
+            if (engLimit != null) {
+                delay = Math.max(delay, engLimit.getDelay());
+            }
+
+            return delay;
+        }
+
+        /**
+         * Get the time when this throttled channel may resume output.
+         *
+         * @return time from System.nanoTime()
+         */
+        long getThrottleEnd()
+        {
+            synchronized (outputQueue) {
+                return throttleEnd;
+            }
+        }
+
+        /**
+         * May another record be sent?  The final (stop) record never
+         * needs credit.
+         *
+         * @return <tt>true</tt> if there is enough credit
+         */
+        private boolean hasCredit()
+        {
+            if (creditRecords > 0 && creditBytes > 0) {
+                return true;
+            }
+
+            synchronized (outputQueue) {
+                return outputQueue.isLastNext();
+            }
+        }
+
         /**
          * Get the number of records sent by this channel.
          *
@@ -871,9 +1375,10 @@ public class SimpleOutputEngine
          * Add this record to the queue.
          *
          * @param buf new record buffer
+         * @param lane priority lane (ignored if <tt>isLast</tt> is set)
+         * @param isLast if <tt>true</tt>, send after all lanes are empty
          */
-        @Override
-        public void receiveByteBuffer(ByteBuffer buf)
+        private void enqueue(ByteBuffer buf, int lane, boolean isLast)
         {
             final int warningFrequency = 10000;
             if (stopped) {
@@ -912,13 +1417,158 @@ public class SimpleOutputEngine
                               " queue (depth=" + outputQueue.size() + ")");
                 }
 
-                outputQueue.add(buf);
+                if (!isLast) {
+                    outputQueue.add(buf, lane);
+                } else if (!outputQueue.addLast(buf)) {
+                    // final record is already queued
+                    return;
+                }
 
                 if (!registered) {
                     parent.registerChannel(this);
                     registered = true;
+                } else if (!writeInterest && selKey != null && !throttled &&
+                           (!creditStalled || outputQueue.isLastNext()))
+                {
+                    setWriteInterest(true);
+                    parent.wakeup();
+                }
+            }
+        }
+
+        /**
+         * Add this record to the lowest priority lane.
+         *
+         * @param buf new record buffer
+         */
+        @Override
+        public void receiveByteBuffer(ByteBuffer buf)
+        {
+            enqueue(buf, defaultLane, false);
+        }
+
+        /**
+         * Add this record to a priority lane.
+         *
+         * @param buf new record buffer
+         * @param priority lane number (0 is the highest priority)
+         */
+        @Override
+        public void receiveByteBuffer(ByteBuffer buf, int priority)
+        {
+            enqueue(buf, priority, false);
+        }
+
+        /**
+         * Read credit grants from the reader and resume output if this
+         * channel was waiting for credit.
+         */
+        void receiveCredit()
+        {
+            int numRead;
+            try {
+                numRead = ((ReadableByteChannel) channel).read(creditBuf);
+            } catch (IOException ioe) {
+                LOG.error("Cannot read credit for channel " + name, ioe);
+                return;
+            }
+
+            if (numRead < 0) {
+                LOG.error("Reader closed channel " + name);
+                synchronized (outputQueue) {
+                    readInterest = false;
+                    setWriteInterest(writeInterest);
+                }
+                return;
+            }
+
+            creditBuf.flip();
+            while (creditBuf.remaining() >= CreditGrant.LENGTH) {
+                final int pos = creditBuf.position();
+                if (!CreditGrant.isValid(creditBuf, pos)) {
+                    LOG.error("Channel " + name + " saw bad credit grant;" +
+                              " dropping " + creditBuf.remaining() +
+                              " bytes");
+                    creditBuf.position(creditBuf.limit());
+                    break;
+                }
+
+                creditRecords += CreditGrant.getRecords(creditBuf, pos);
+                creditBytes += CreditGrant.getBytes(creditBuf, pos);
+                creditBuf.position(pos + CreditGrant.LENGTH);
+            }
+            creditBuf.compact();
+
+            if (creditStalled && hasCredit()) {
+                synchronized (outputQueue) {
+                    creditStalled = false;
+                    if (selKey != null && outputQueue.size() > 0 &&
+                        !throttled)
+                    {
+                        setWriteInterest(true);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Add a record to be sent after all other queued records.
+         *
+         * @param buf final record
+         */
+        void receiveLast(ByteBuffer buf)
+        {
+            enqueue(buf, defaultLane, true);
+        }
+
+        /**
+         * Add a view of a multicast record to the queue.
+         *
+         * @param buf multicast record
+         * @param rec reference count shared by all members of the group
+         */
+        void receiveShared(ByteBuffer buf, SharedRecord rec)
+        {
+            ByteBuffer view = buf.duplicate();
+
+            final boolean closed;
+            synchronized (outputQueue) {
+                closed = sharedReleased;
+                if (!closed) {
+                    sharedRecords.put(view, rec);
                 }
             }
+
+            if (closed) {
+                // this channel will never write anything else
+                rec.release();
+                return;
+            }
+
+            receiveByteBuffer(view);
+        }
+
+        /**
+         * Give up this channel's reference to every queued multicast
+         * record, and to any which are sent later.  Called once the
+         * channel has been closed and will write nothing else.
+         */
+        private void releaseShared()
+        {
+            ArrayList<SharedRecord> list;
+            synchronized (outputQueue) {
+                sharedReleased = true;
+                if (sharedRecords.isEmpty()) {
+                    return;
+                }
+
+                list = new ArrayList<SharedRecord>(sharedRecords.values());
+                sharedRecords.clear();
+            }
+
+            for (SharedRecord rec : list) {
+                rec.release();
+            }
         }
 
         /**
@@ -931,11 +1581,16 @@ public class SimpleOutputEngine
         void register(Selector sel)
             throws IOException
         {
-            if (channel.isOpen()) {
-                ((SelectableChannel) channel).register(sel,
-                                                       SelectionKey.OP_WRITE,
-                                                       this);
-                registered = true;
+            synchronized (outputQueue) {
+                if (channel.isOpen() && selKey == null) {
+                    writeInterest = outputQueue.size() > 0;
+                    final int ops =
+                        (writeInterest ? SelectionKey.OP_WRITE : 0) |
+                        (readInterest ? SelectionKey.OP_READ : 0);
+                    selKey = ((SelectableChannel) channel).register(sel, ops,
+                                                                    this);
+                    registered = true;
+                }
             }
         }
 
@@ -969,6 +1624,45 @@ public class SimpleOutputEngine
             }
         }
 
+        /**
+         * Turn the selector's write interest on or off.
+         * The caller must hold the <tt>outputQueue</tt> lock.
+         *
+         * @param interested <tt>true</tt> to watch for writability
+         */
+        private void setWriteInterest(boolean interested)
+        {
+            if (selKey.isValid()) {
+                selKey.interestOps((interested ? SelectionKey.OP_WRITE : 0) |
+                                   (readInterest ? SelectionKey.OP_READ : 0));
+            }
+            writeInterest = interested;
+        }
+
+        /**
+         * Limit the output rate of this channel.
+         *
+         * @param bytesPerSecond sustained rate (0 to remove the limit)
+         * @param burstBytes maximum number of bytes sent at full speed
+         */
+        public void setRateLimit(long bytesPerSecond, long burstBytes)
+        {
+            rateLimit = createRateLimit(bytesPerSecond, burstBytes);
+        }
+
+        /**
+         * Stop watching for writability until more credit arrives.
+         */
+        private void stallForCredit()
+        {
+            synchronized (outputQueue) {
+                creditStalled = true;
+                if (writeInterest) {
+                    setWriteInterest(false);
+                }
+            }
+        }
+
         /**
          * Start processing output.
          */
@@ -989,6 +1683,20 @@ public class SimpleOutputEngine
             }
         }
 
+        /**
+         * Count a record which was delivered without going through the
+         * output queue.  Senders may call this from several threads at
+         * once.
+         */
+        void countDirectSend()
+        {
+            synchronized (outputQueue) {
+                chanSent++;
+            }
+            numSent.incrementAndGet();
+            totalSent.incrementAndGet();
+        }
+
         /**
          * Stop processing output.
          */
@@ -999,6 +1707,29 @@ public class SimpleOutputEngine
             parent.wakeup();
         }
 
+        /**
+         * Stop watching for writability until the rate limit allows more
+         * output.  Must only be called by the selector thread.
+         *
+         * @param delay nanoseconds until output may resume
+         */
+        private void throttle(long delay)
+        {
+            synchronized (outputQueue) {
+                if (throttled) {
+                    return;
+                }
+
+                throttled = true;
+                throttleEnd = System.nanoTime() + delay;
+                if (writeInterest) {
+                    setWriteInterest(false);
+                }
+            }
+
+            throttleList.add(this);
+        }
+
         /**
          * Transmit as many records as possible.
          */
@@ -1006,13 +1737,31 @@ public class SimpleOutputEngine
         {
             int bytesLeft = XMIT_GROUP_MAX_BYTES;
             while (channel.isOpen()) {
+                final long delay = getShapingDelay();
+                if (delay > 0) {
+                    throttle(delay);
+                    break;
+                }
+
+                if (creditMode && !hasCredit()) {
+                    stallForCredit();
+                    break;
+                }
+
                 ByteBuffer buf;
+                SharedRecord shared;
                 synchronized (outputQueue) {
                     if (outputQueue.size() == 0) {
                         LOG.error("Cannot transmit; no records found");
                         break;
                     }
-                    buf = outputQueue.remove(0);
+                    buf = outputQueue.remove();
+
+                    if (sharedRecords.isEmpty()) {
+                        shared = null;
+                    } else {
+                        shared = sharedRecords.remove(buf);
+                    }
                 }
 
                 final int payLen = getRecordLength(buf);
@@ -1021,12 +1770,18 @@ public class SimpleOutputEngine
                     if (!isStopMessage(buf, payLen)) {
                         LOG.error("Channel " + name + " saw " + payLen +
                                   "-byte payload after stop");
+                        if (shared != null) {
+                            shared.release();
+                        }
                         bytesLeft = 0;
                         break;
                     }
                 } else if (!channel.isOpen()) {
                     LOG.error("Channel " + name + " saw " + payLen +
                               "-byte payload after close");
+                    if (shared != null) {
+                        shared.release();
+                    }
                     break;
                 } else {
                     buf.position(0);
@@ -1069,13 +1824,21 @@ public class SimpleOutputEngine
                     }
 
                     bytesLeft -= numWritten;
+                    consumeTokens(numWritten);
+
+                    if (creditMode) {
+                        creditRecords--;
+                        creditBytes -= numWritten;
+                    }
 
                     chanSent++;
-                    numSent++;
-                    totalSent++;
+                    numSent.incrementAndGet();
+                    totalSent.incrementAndGet();
                 }
 
-                if (isStopMessage(buf, payLen)) {
+                if (shared != null) {
+                    shared.release();
+                } else if (isStopMessage(buf, payLen)) {
                     stopProcessing();
                 } else if (bufferMgr != null) {
                     bufferMgr.returnBuffer(buf);
@@ -1089,6 +1852,21 @@ public class SimpleOutputEngine
             }
         }
 
+        /**
+         * Resume output after the rate limit has been satisfied.
+         */
+        void unthrottle()
+        {
+            synchronized (outputQueue) {
+                throttled = false;
+                if (selKey != null && outputQueue.size() > 0 &&
+                    !creditStalled)
+                {
+                    setWriteInterest(true);
+                }
+            }
+        }
+
         /**
          * Debugging string.
          *
@@ -1101,21 +1879,6 @@ public class SimpleOutputEngine
                            "*" + outputQueue.size()) +
                 (stopped ? "*STOPPED" : "");
         }
-
-        /**
-         * Remove this channel from the selector.
-         *
-         * @param key selector key corresponding to this channel
-         */
-        void unregister(SelectionKey key)
-        {
-            synchronized (outputQueue) {
-                if (outputQueue.size() == 0) {
-                    key.cancel();
-                    registered = false;
-                }
-            }
-        }
     }
 
     /**
@@ -1169,7 +1932,262 @@ public class SimpleOutputEngine
         {
             ByteBuffer stopMessage = ByteBuffer.allocate(STOP_MESSAGE_SIZE);
             stopMessage.putInt(0, STOP_MESSAGE_SIZE);
-            receiveByteBuffer(stopMessage);
+            receiveLast(stopMessage);
+        }
+    }
+
+    /**
+     * Output channel which hands records directly to an in-process reader.
+     */
+    class LocalOutputChannel
+        extends PayloadStopChannel
+    {
+        /** In-process connection */
+        private LocalChannel local;
+
+        /**
+         * Create an in-process output channel.
+         *
+         * @param parent parent output engine
+         * @param name channel name
+         * @param local in-process connection
+         * @param bufferMgr byte buffer manager
+         */
+        LocalOutputChannel(SimpleOutputEngine parent, String name,
+                           LocalChannel local, IByteBufferCache bufferMgr,
+                           int maxDepth)
+        {
+            super(parent, name, local.sink(), bufferMgr, maxDepth);
+
+            this.local = local;
+        }
+
+        /**
+         * Pass this record to the input channel.
+         *
+         * @param buf new record buffer
+         */
+        @Override
+        public void receiveByteBuffer(ByteBuffer buf)
+        {
+            final int payLen = getRecordLength(buf);
+
+            InputChannel dest = local.getReceiver();
+            if (isStopped() || dest == null) {
+                if (isStopped()) {
+                    LOG.error("Dropping " + payLen + "-byte buffer sent to" +
+                              " stopped channel " + this);
+                } else {
+                    LOG.error("No reader attached to " + local +
+                              "; dropping " + payLen + "-byte buffer");
+                }
+
+                if (isStopMessage(buf, payLen)) {
+                    stopProcessing();
+                } else if (bufferMgr != null) {
+                    bufferMgr.returnBuffer(buf);
+                }
+                return;
+            }
+
+            dest.receiveLocal(buf, bufferMgr);
+
+            if (isStopMessage(buf, payLen)) {
+                stopProcessing();
+            } else {
+                countDirectSend();
+            }
+        }
+
+        /**
+         * Pass this record to the input channel (priority is ignored).
+         *
+         * @param buf new record buffer
+         * @param priority ignored
+         */
+        @Override
+        public void receiveByteBuffer(ByteBuffer buf, int priority)
+        {
+            receiveByteBuffer(buf);
+        }
+
+        /**
+         * Pass the final record to the input channel.
+         *
+         * @param buf final record
+         */
+        @Override
+        void receiveLast(ByteBuffer buf)
+        {
+            receiveByteBuffer(buf);
+        }
+    }
+
+    /**
+     * Send each record to several output channels without copying it.
+     */
+    public class MulticastGroup
+        implements OutputChannel
+    {
+        /** Group name. */
+        private String name;
+        /** Byte buffer manager which owns the group's records. */
+        private IByteBufferCache bufferMgr;
+        /** Member channels (replaced, never modified, when members change) */
+        private volatile SimpleOutputChannel[] members =
+            new SimpleOutputChannel[0];
+
+        /** Number of records sent through this group. */
+        private long numRecords;
+
+        /**
+         * Create a multicast group.
+         *
+         * @param name group name
+         * @param bufferMgr byte buffer manager
+         */
+        MulticastGroup(String name, IByteBufferCache bufferMgr)
+        {
+            this.name = name;
+            this.bufferMgr = bufferMgr;
+        }
+
+        /**
+         * Add an output channel to this group.  In-process channels hand
+         * records straight to their reader and cannot share them, so they
+         * may not join a group.
+         *
+         * @param chan channel created by the parent engine
+         */
+        public void addChannel(QueuedOutputChannel chan)
+        {
+            if (!(chan instanceof SimpleOutputChannel) ||
+                ((SimpleOutputChannel) chan).parent != SimpleOutputEngine.this)
+            {
+                throw new Error("Channel " + chan + " does not belong to " +
+                                SimpleOutputEngine.this);
+            }
+
+            if (chan instanceof LocalOutputChannel) {
+                throw new IllegalArgumentException("In-process channel " +
+                                                   chan + " cannot join" +
+                                                   " multicast group " +
+                                                   name);
+            }
+
+            synchronized (this) {
+                SimpleOutputChannel[] newList =
+                    new SimpleOutputChannel[members.length + 1];
+                System.arraycopy(members, 0, newList, 0, members.length);
+                newList[members.length] = (SimpleOutputChannel) chan;
+                members = newList;
+            }
+        }
+
+        /**
+         * Get the number of member channels.
+         *
+         * @return number of channels
+         */
+        public int getNumberOfChannels()
+        {
+            return members.length;
+        }
+
+        /**
+         * Get the number of records sent through this group.
+         *
+         * @return number of records
+         */
+        public long getRecordsSent()
+        {
+            return numRecords;
+        }
+
+        /**
+         * Queue this record on all member channels.
+         *
+         * @param buf record
+         */
+        @Override
+        public void receiveByteBuffer(ByteBuffer buf)
+        {
+            final SimpleOutputChannel[] chans = members;
+            if (chans.length == 0) {
+                LOG.error("Dropping " + buf.limit() + "-byte buffer sent to" +
+                          " empty multicast group " + name);
+                if (bufferMgr != null) {
+                    bufferMgr.returnBuffer(buf);
+                }
+                return;
+            }
+
+            SharedRecord rec = new SharedRecord(buf, bufferMgr, chans.length);
+            for (SimpleOutputChannel chan : chans) {
+                chan.receiveShared(buf, rec);
+            }
+
+            numRecords++;
+        }
+
+        /**
+         * Queue a stop message on all member channels.
+         */
+        @Override
+        public void sendLastAndStop()
+        {
+            for (SimpleOutputChannel chan : members) {
+                chan.sendLastAndStop();
+            }
+        }
+
+        /**
+         * Debugging string.
+         *
+         * @return debugging string
+         */
+        @Override
+        public String toString()
+        {
+            return "MulticastGroup[" + name + "*" + members.length + "]";
+        }
+    }
+
+    /**
+     * Reference-counted record shared by the members of a multicast group.
+     */
+    private static class SharedRecord
+    {
+        /** Original record */
+        private ByteBuffer buf;
+        /** Byte buffer manager which owns the record */
+        private IByteBufferCache bufferMgr;
+        /** Number of channels which have not yet written the record */
+        private AtomicInteger refs;
+
+        /**
+         * Create a shared record.
+         *
+         * @param buf record
+         * @param bufferMgr byte buffer manager
+         * @param refs number of channels which will write this record
+         */
+        SharedRecord(ByteBuffer buf, IByteBufferCache bufferMgr, int refs)
+        {
+            this.buf = buf;
+            this.bufferMgr = bufferMgr;
+            this.refs = new AtomicInteger(refs);
+        }
+
+        /**
+         * One channel is done with this record.  After the last channel is
+         * done, return the record to the buffer cache.
+         */
+        void release()
+        {
+            if (refs.decrementAndGet() == 0 && bufferMgr != null) {
+                bufferMgr.returnBuffer(buf);
+            }
         }
     }
 }
@@ -5,15 +5,20 @@ import icecube.daq.payload.IByteBufferCache;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.log4j.Logger;
 
@@ -55,6 +60,10 @@ public abstract class SimpleStreamReader
     private Thread thread;
     /** dynamically assigned server port number */
     private int port = Integer.MIN_VALUE;
+    /** requested server endpoint (<tt>null</tt> for an ephemeral port) */
+    private SocketAddress requestedAddress;
+    /** actual server endpoint */
+    private SocketAddress serverAddress;
     /** server byte buffer */
     private IByteBufferCache serverCache;
     /** Has the server thread started? */
@@ -121,9 +130,32 @@ public abstract class SimpleStreamReader
             throw new Error(errMsg);
         }
 
+        addReverseConnection(InetSocketAddress.createUnresolved(hostName,
+                                                                port),
+                             bufCache);
+    }
+
+    /**
+     * Add a server endpoint (TCP or Unix domain socket) to which this
+     * reader will connect when processing is started.
+     *
+     * @param addr remote endpoint
+     * @param bufCache buffer cache for payloads from this connection
+     *
+     * @throws IOException if there is a problem
+     */
+    public void addReverseConnection(SocketAddress addr,
+                                     IByteBufferCache bufCache)
+        throws IOException
+    {
+        if (state != State.IDLE) {
+            final String errMsg = "Cannot add reverse connection" +
+                " while engine is " + getPresentState();
+            throw new Error(errMsg);
+        }
+
         synchronized (reverseConnList) {
-            ReverseConnection rConn =
-                new ReverseConnection(hostName, port, bufCache);
+            ReverseConnection rConn = new ReverseConnection(addr, bufCache);
             reverseConnList.add(rConn);
         }
     }
@@ -258,6 +290,17 @@ public abstract class SimpleStreamReader
         return state.toString();
     }
 
+    /**
+     * Return the endpoint on which the server is listening.
+     *
+     * @return server endpoint (<tt>null</tt> if the server is not started)
+     */
+    @Override
+    public SocketAddress getServerAddress()
+    {
+        return serverAddress;
+    }
+
     @Override
     public int getServerPort()
     {
@@ -348,53 +391,23 @@ public abstract class SimpleStreamReader
         throws IOException
     {
         if (!madeReverseConnections) {
-            final int MAX_RETRIES = 10;
-
-            final int numChan = channelList.size();
-
-            ArrayList<ReverseConnection> retries =
-                new ArrayList<ReverseConnection>(reverseConnList);
-
-            int numRetries = 0;
-            IOException ex = null;
-
-            for ( ; numRetries < MAX_RETRIES; numRetries++) {
-                Iterator<ReverseConnection> iter = retries.iterator();
-                while (iter.hasNext()) {
-                    ReverseConnection rc = iter.next();
-
-                    try {
-                        rc.connect();
-                        iter.remove();
-                    } catch (IOException ioe) {
-                        ex = ioe;
-                    }
-                }
-
-                if (retries.size() > 0) {
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException ie) {
-                        // ignore interrupts
-                    }
-                }
+            ArrayList<ReverseConnection> targets;
+            synchronized (reverseConnList) {
+                targets = new ArrayList<ReverseConnection>(reverseConnList);
             }
-            madeReverseConnections = true;
 
-            if (retries.size() > 0) {
-                LOG.error("Could not connect " + retries.get(0), ex);
-            } else {
-                // wait for new connections to be noticed
-                for (int i = 0; i < 100; i++) {
-                    if (channelList.size() == numChan) {
-                        try {
-                            Thread.sleep(10);
-                        } catch (InterruptedException ie) {
-                            // ignore interrupts
-                        }
-                    }
-                }
+            // channels are added to channelList as each connection is made
+            ReverseConnector connector = new ReverseConnector(name, targets);
+            try {
+                connector.start().get();
+            } catch (ExecutionException ee) {
+                LOG.error("Could not make " + name + " reverse connections",
+                          ee.getCause());
+            } catch (InterruptedException ie) {
+                LOG.error("Interrupted while making " + name +
+                          " reverse connections", ie);
             }
+            madeReverseConnections = true;
         }
     }
 
@@ -420,11 +433,19 @@ public abstract class SimpleStreamReader
         try {
             selector = Selector.open();
 
-            serverChannel = ServerSocketChannel.open();
+            if (requestedAddress instanceof UnixDomainSocketAddress) {
+                serverChannel =
+                    ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            } else {
+                serverChannel = ServerSocketChannel.open();
+            }
             serverChannel.configureBlocking(false);
 
-            serverChannel.socket().bind(null);
-            port = serverChannel.socket().getLocalPort();
+            serverChannel.bind(requestedAddress);
+            serverAddress = serverChannel.getLocalAddress();
+            if (serverAddress instanceof InetSocketAddress) {
+                port = ((InetSocketAddress) serverAddress).getPort();
+            }
 
             serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException ioe) {
@@ -489,6 +510,15 @@ public abstract class SimpleStreamReader
             // ignore errors
         }
 
+        if (serverAddress instanceof UnixDomainSocketAddress) {
+            try {
+                Files.deleteIfExists(((UnixDomainSocketAddress)
+                                      serverAddress).getPath());
+            } catch (IOException ioe) {
+                LOG.error("Cannot remove socket " + serverAddress, ioe);
+            }
+        }
+
         try {
             selector.close();
         } catch (IOException ioe) {
@@ -565,6 +595,20 @@ public abstract class SimpleStreamReader
     @Override
     public void startServer(IByteBufferCache bufMgr)
         throws IOException
+    {
+        startServer(bufMgr, null);
+    }
+
+    /**
+     * Start the server thread listening on the specified endpoint.
+     *
+     * @param bufMgr cache manager used payloads from connected sockets
+     * @param addr TCP or Unix domain socket endpoint
+     *             (if <tt>null</tt>, an ephemeral TCP port is used)
+     */
+    @Override
+    public void startServer(IByteBufferCache bufMgr, SocketAddress addr)
+        throws IOException
     {
         if (thread != null) {
             throw new Error("Server thread is already running");
@@ -577,6 +621,7 @@ public abstract class SimpleStreamReader
         }
 
         serverCache = bufMgr;
+        requestedAddress = addr;
 
         thread = new Thread(this);
         thread.setName(name);
@@ -584,63 +629,52 @@ public abstract class SimpleStreamReader
    }
 
     /**
-     * An internet port which input engine needs to connect to in order to
-     * receive data.
+     * A TCP or Unix domain endpoint which input engine needs to connect to
+     * in order to receive data.
      */
     class ReverseConnection
+        implements ReverseConnector.Target
     {
-        /** remote machine name or IP address */
-        private String hostName;
-        /** remote port */
-        private int port;
+        /** remote endpoint */
+        private SocketAddress addr;
         /** buffer cache manager for incoming payloads */
         private IByteBufferCache bufCache;
 
         /**
          * Description of a reverse connection.
          *
-         * @param hostName remote machine name/IP address
-         * @param port remote port
+         * @param addr remote endpoint
          * @param bufCache buffer manager
          */
-        ReverseConnection(String hostName, int port, IByteBufferCache bufCache)
+        ReverseConnection(SocketAddress addr, IByteBufferCache bufCache)
         {
-            this.hostName = hostName;
-            this.port = port;
+            this.addr = addr;
             this.bufCache = bufCache;
         }
 
         /**
-         * Make the connection
+         * Add the newly connected channel.
+         *
+         * @param chan connected channel
          *
-         * @throws IOException if the connection could not be made
+         * @throws IOException if the channel could not be added
          */
-        void connect()
+        @Override
+        public void connected(SocketChannel chan)
             throws IOException
         {
-            SocketChannel sock =
-                SocketChannel.open(new InetSocketAddress(hostName, port));
-
-            boolean finished = false;
-            for (int i = 0; i < 10; i++) {
-                if (sock.finishConnect()) {
-                    finished = true;
-                    break;
-                }
-
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ie) {
-                    // ignore interrupts
-                }
-            }
-
-            if (!finished) {
-                throw new IOException("Could not finish connection to " +
-                                      hostName + ":" + port);
-            }
+            addDataChannel(chan, bufCache, bufferSize);
+        }
 
-            addDataChannel(sock, bufCache, bufferSize);
+        /**
+         * Get the remote endpoint.
+         *
+         * @return remote endpoint
+         */
+        @Override
+        public SocketAddress getAddress()
+        {
+            return addr;
         }
 
         /**
@@ -650,7 +684,12 @@ public abstract class SimpleStreamReader
          */
         public String toString()
         {
-            return hostName + ":" + port;
+            if (addr instanceof InetSocketAddress) {
+                InetSocketAddress iAddr = (InetSocketAddress) addr;
+                return iAddr.getHostString() + ":" + iAddr.getPort();
+            }
+
+            return addr.toString();
         }
     }
 }
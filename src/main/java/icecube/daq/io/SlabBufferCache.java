@@ -0,0 +1,472 @@
+package icecube.daq.io;
+
+import icecube.daq.payload.IByteBufferCache;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Buffer cache which carves payload buffers out of large direct-memory
+ * slabs.
+ *
+ * Requests are rounded up to a power-of-two size class.  Each size class
+ * keeps a lock-free list of free buffers, and a new slab is only
+ * allocated (under the size class lock) when that list is empty, so the
+ * steady state allocates nothing and leaves nothing for the garbage
+ * collector.  Requests larger than the biggest size class get their own
+ * direct buffer, which is dropped when it is returned.
+ *
+ * Byte counts are in terms of buffer capacity (the size class), since
+ * that is the memory which is actually held by the caller.
+ *
+ * Buffers must be handed back with <tt>returnBuffer(ByteBuffer)</tt>.
+ * <tt>returnBuffer(int)</tt> is not supported, since there is no way to
+ * find the slab slot from a length and the slot would be lost.
+ *
+ * Only the buffer objects handed out by this cache are taken back.  Each
+ * slab keeps a bitmap of the slots which are out, so a foreign buffer, a
+ * <tt>duplicate()</tt> or <tt>slice()</tt> view, or a second return of
+ * the same buffer is logged and ignored rather than letting two callers
+ * share the same memory.
+ */
+public class SlabBufferCache
+    implements IByteBufferCache
+{
+    /** Default slab size */
+    public static final int DEFAULT_SLAB_BYTES = 1024 * 1024;
+
+    /** Size of the smallest size class */
+    private static final int MIN_CLASS_BYTES = 64;
+    /** Number of slots carved from each slab for the largest size class */
+    private static final int MIN_SLOTS_PER_SLAB = 16;
+
+    /** logging object */
+    private static final Logger LOG = Logger.getLogger(SlabBufferCache.class);
+
+    /**
+     * Record of which slots in a single slab are currently acquired.
+     */
+    private static class Slab
+    {
+        /** One bit per slot, set while the slot is acquired */
+        private final AtomicLongArray inUse;
+
+        Slab(int numSlots)
+        {
+            inUse = new AtomicLongArray((numSlots + 63) / 64);
+        }
+
+        /**
+         * Mark a slot as acquired or free.
+         *
+         * @param index slot index
+         * @param acquired <tt>true</tt> if the slot is being acquired
+         *
+         * @return <tt>false</tt> if the slot was already in that state
+         */
+        boolean mark(int index, boolean acquired)
+        {
+            final int word = index >>> 6;
+            final long bit = 1L << (index & 63);
+
+            while (true) {
+                final long old = inUse.get(word);
+                if (((old & bit) != 0) == acquired) {
+                    return false;
+                }
+                if (inUse.compareAndSet(word, old, old ^ bit)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * A single buffer carved from a slab.
+     */
+    private static class Slot
+    {
+        /** Slab which holds this slot */
+        final Slab slab;
+        /** Position of this slot in its slab */
+        final int index;
+        /** Buffer handed to callers */
+        final ByteBuffer buf;
+
+        Slot(Slab slab, int index, ByteBuffer buf)
+        {
+            this.slab = slab;
+            this.index = index;
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * Free buffers of a single size.
+     */
+    private static class SizeClass
+    {
+        /** Capacity of every buffer in this class */
+        private final int size;
+        /** Free slots */
+        private final ConcurrentLinkedQueue<Slot> free =
+            new ConcurrentLinkedQueue<Slot>();
+        /**
+         * Slot for each buffer in this class (replaced, never modified,
+         * when a slab is added)
+         */
+        private volatile IdentityHashMap<ByteBuffer, Slot> slots =
+            new IdentityHashMap<ByteBuffer, Slot>();
+        /** Number of slabs allocated for this class */
+        private int numSlabs;
+
+        SizeClass(int size)
+        {
+            this.size = size;
+        }
+
+        @Override
+        public String toString()
+        {
+            return size + "B*" + numSlabs;
+        }
+    }
+
+    /** Cache name */
+    private String name;
+    /** Slab size */
+    private int slabBytes;
+    /** Limit on acquired bytes used by readers (0 if unbounded) */
+    private long maxAcquiredBytes;
+    /** Size classes, smallest first */
+    private SizeClass[] classes;
+    /** Oversized buffers which are currently acquired */
+    private Set<ByteBuffer> largeBufs =
+        Collections.newSetFromMap(new IdentityHashMap<ByteBuffer,
+                                  Boolean>());
+
+    /** Number of buffers currently acquired */
+    private AtomicInteger curBufs = new AtomicInteger();
+    /** Number of bytes currently acquired */
+    private AtomicLong curBytes = new AtomicLong();
+    /** Number of oversized bytes currently acquired */
+    private AtomicLong curLargeBytes = new AtomicLong();
+    /** Number of bytes allocated for slabs */
+    private AtomicLong totSlabBytes = new AtomicLong();
+
+    /** Total number of buffers acquired */
+    private AtomicInteger totAcquired = new AtomicInteger();
+    /** Total number of buffers created */
+    private AtomicInteger totCreated = new AtomicInteger();
+    /** Total number of buffers returned */
+    private AtomicInteger totReturned = new AtomicInteger();
+
+    /**
+     * Create an unbounded cache with the default slab size.
+     *
+     * @param name cache name
+     */
+    public SlabBufferCache(String name)
+    {
+        this(name, 0L);
+    }
+
+    /**
+     * Create a cache with the default slab size.
+     *
+     * @param name cache name
+     * @param maxAcquiredBytes limit used by readers to stop allocating
+     *                         (0 if unbounded)
+     */
+    public SlabBufferCache(String name, long maxAcquiredBytes)
+    {
+        this(name, maxAcquiredBytes, DEFAULT_SLAB_BYTES);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param name cache name
+     * @param maxAcquiredBytes limit used by readers to stop allocating
+     *                         (0 if unbounded)
+     * @param slabBytes number of bytes in each slab
+     */
+    public SlabBufferCache(String name, long maxAcquiredBytes, int slabBytes)
+    {
+        if (slabBytes < MIN_CLASS_BYTES * MIN_SLOTS_PER_SLAB) {
+            throw new IllegalArgumentException("Slab size must be at least " +
+                                               (MIN_CLASS_BYTES *
+                                                MIN_SLOTS_PER_SLAB) +
+                                               ", not " + slabBytes);
+        }
+
+        this.name = name;
+        this.maxAcquiredBytes = (maxAcquiredBytes < 0 ? 0 : maxAcquiredBytes);
+        this.slabBytes = slabBytes;
+
+        final int maxClassBytes = slabBytes / MIN_SLOTS_PER_SLAB;
+
+        int numClasses = 0;
+        for (int sz = MIN_CLASS_BYTES; sz <= maxClassBytes; sz <<= 1) {
+            numClasses++;
+        }
+
+        classes = new SizeClass[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            classes[i] = new SizeClass(MIN_CLASS_BYTES << i);
+        }
+    }
+
+    @Override
+    public ByteBuffer acquireBuffer(int bytes)
+    {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Cannot acquire " + bytes +
+                                               "-byte buffer");
+        }
+
+        final SizeClass sc = findClass(bytes);
+
+        ByteBuffer buf;
+        if (sc == null) {
+            buf = ByteBuffer.allocateDirect(bytes);
+            totCreated.incrementAndGet();
+            curLargeBytes.addAndGet(bytes);
+            synchronized (largeBufs) {
+                largeBufs.add(buf);
+            }
+        } else {
+            Slot slot = sc.free.poll();
+            if (slot == null) {
+                slot = allocateSlab(sc);
+            }
+            if (!slot.slab.mark(slot.index, true)) {
+                throw new Error("Free " + sc.size + "-byte slot #" +
+                                slot.index + " in " + name +
+                                " was already acquired");
+            }
+            buf = slot.buf;
+            buf.clear();
+        }
+
+        curBufs.incrementAndGet();
+        curBytes.addAndGet(buf.capacity());
+        totAcquired.incrementAndGet();
+
+        buf.limit(bytes);
+        return buf;
+    }
+
+    /**
+     * Allocate a new slab for a size class and add all but one of its
+     * slots to the free list.
+     *
+     * @param sc size class
+     *
+     * @return unused slot
+     */
+    private Slot allocateSlab(SizeClass sc)
+    {
+        synchronized (sc) {
+            // another thread may have refilled the list while we waited
+            Slot found = sc.free.poll();
+            if (found != null) {
+                return found;
+            }
+
+            final int numSlots = slabBytes / sc.size;
+
+            ByteBuffer mem = ByteBuffer.allocateDirect(numSlots * sc.size);
+            totSlabBytes.addAndGet(mem.capacity());
+            sc.numSlabs++;
+
+            final Slab slab = new Slab(numSlots);
+
+            IdentityHashMap<ByteBuffer, Slot> slots =
+                new IdentityHashMap<ByteBuffer, Slot>(sc.slots);
+
+            Slot[] newSlots = new Slot[numSlots];
+            for (int i = 0; i < numSlots; i++) {
+                mem.limit((i + 1) * sc.size);
+                mem.position(i * sc.size);
+
+                newSlots[i] = new Slot(slab, i, mem.slice());
+                slots.put(newSlots[i].buf, newSlots[i]);
+            }
+
+            // publish the new slots before any of them can be returned
+            sc.slots = slots;
+
+            for (int i = 1; i < numSlots; i++) {
+                sc.free.add(newSlots[i]);
+            }
+
+            totCreated.addAndGet(numSlots);
+
+            return newSlots[0];
+        }
+    }
+
+    /**
+     * Find the smallest size class which can hold the requested bytes.
+     *
+     * @param bytes number of bytes
+     *
+     * @return size class (<tt>null</tt> if the request is too large)
+     */
+    private SizeClass findClass(int bytes)
+    {
+        if (bytes <= MIN_CLASS_BYTES) {
+            return classes[0];
+        }
+
+        final int idx = 32 - Integer.numberOfLeadingZeros(bytes - 1) -
+            Integer.numberOfTrailingZeros(MIN_CLASS_BYTES);
+        if (idx >= classes.length) {
+            return null;
+        }
+
+        return classes[idx];
+    }
+
+    @Override
+    public int getCurrentAcquiredBuffers()
+    {
+        return curBufs.get();
+    }
+
+    @Override
+    public long getCurrentAcquiredBytes()
+    {
+        return curBytes.get();
+    }
+
+    @Override
+    public long getMaxAcquiredBytes()
+    {
+        return maxAcquiredBytes;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public int getTotalBuffersAcquired()
+    {
+        return totAcquired.get();
+    }
+
+    @Override
+    public int getTotalBuffersCreated()
+    {
+        return totCreated.get();
+    }
+
+    @Override
+    public int getTotalBuffersReturned()
+    {
+        return totReturned.get();
+    }
+
+    /**
+     * Get the number of slab bytes which are not currently acquired.
+     *
+     * @return number of free bytes
+     */
+    @Override
+    public long getTotalBytesInCache()
+    {
+        return totSlabBytes.get() - (curBytes.get() - curLargeBytes.get());
+    }
+
+    @Override
+    public boolean isBalanced()
+    {
+        return curBufs.get() == 0;
+    }
+
+    @Override
+    public boolean isCacheBounded()
+    {
+        return maxAcquiredBytes > 0;
+    }
+
+    @Override
+    public void returnBuffer(ByteBuffer buf)
+    {
+        if (buf == null) {
+            return;
+        }
+
+        final int cap = buf.capacity();
+
+        final SizeClass sc = findClass(cap);
+        if (sc == null) {
+            final boolean known;
+            synchronized (largeBufs) {
+                known = largeBufs.remove(buf);
+            }
+            if (!known) {
+                LOG.error("Ignoring " + cap + "-byte buffer which is not" +
+                          " currently acquired from " + name);
+                return;
+            }
+
+            curLargeBytes.addAndGet(-cap);
+        } else {
+            final Slot slot = sc.slots.get(buf);
+            if (slot == null) {
+                LOG.error("Ignoring " + cap + "-byte buffer which did not" +
+                          " come from " + name);
+                return;
+            }
+            if (!slot.slab.mark(slot.index, false)) {
+                LOG.error("Ignoring second return of " + cap +
+                          "-byte buffer to " + name);
+                return;
+            }
+
+            sc.free.add(slot);
+        }
+
+        curBufs.decrementAndGet();
+        curBytes.addAndGet(-cap);
+        totReturned.incrementAndGet();
+    }
+
+    /**
+     * Unsupported, since the slab slot cannot be found from a length.
+     *
+     * @param bytes number of bytes originally requested
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void returnBuffer(int bytes)
+    {
+        throw new UnsupportedOperationException("Cannot return a " + bytes +
+                                                "-byte buffer to " + name +
+                                                " by length; use" +
+                                                " returnBuffer(ByteBuffer)");
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SlabBufferCache(" + name + ")[bufs " + curBufs.get() +
+            " bytes " + curBytes.get() + "/" + totSlabBytes.get() +
+            (maxAcquiredBytes <= 0 ? "" : "(max " + maxAcquiredBytes + ")") +
+            "]";
+    }
+}
@@ -0,0 +1,358 @@
+package icecube.daq.io;
+
+import icecube.daq.payload.IByteBufferCache;
+import icecube.daq.payload.ISourceID;
+import icecube.daq.payload.impl.SourceID;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Output engine which routes each record to the channel for the record's
+ * destination source ID.
+ *
+ * Routes are kept in a dense array indexed by source ID.  The array is
+ * replaced (never modified) when a channel is added, so
+ * <tt>route()</tt> finds the destination channel without hashing or
+ * locking.  If the source IDs are spread over more than
+ * <tt>MAX_DENSE_SPAN</tt> values, the table falls back to a hash map.
+ */
+public class SourceIdOutputEngine
+    extends SimpleOutputEngine
+    implements DAQSourceIdOutputProcess
+{
+    /** Error logger. */
+    private static final Logger LOG =
+        Logger.getLogger(SourceIdOutputEngine.class);
+
+    /** Log one of every this many unroutable records */
+    private static final int WARNING_FREQUENCY = 10000;
+
+    /** Largest range of source IDs kept in a dense array */
+    static final int MAX_DENSE_SPAN = 65536;
+
+    /** Empty routing table */
+    private static final RouteTable EMPTY_ROUTES =
+        new RouteTable(0, new SimpleOutputChannel[0], null);
+
+    /** Buffer cache used for channels added by source ID */
+    private IByteBufferCache bufferMgr;
+    /** Offset of the destination source ID within each record */
+    private int srcIdOffset;
+
+    /** Current routing table */
+    private volatile RouteTable routes = EMPTY_ROUTES;
+
+    /** Number of records routed to a channel */
+    private LongAdder numRouted = new LongAdder();
+    /** Number of records with an unknown destination */
+    private AtomicLong numUnroutable = new AtomicLong();
+
+    /**
+     * Create a routing engine.
+     *
+     * @param type engine type
+     * @param id engine ID
+     * @param fcn engine function
+     * @param bufMgr buffer cache used for channels added by source ID
+     * @param srcIdOffset byte offset of the 4-byte destination source ID
+     *                    within each record
+     */
+    public SourceIdOutputEngine(String type, int id, String fcn,
+                                IByteBufferCache bufMgr, int srcIdOffset)
+    {
+        this(type, id, fcn, Integer.MAX_VALUE, bufMgr, srcIdOffset);
+    }
+
+    /**
+     * Create a routing engine.
+     *
+     * @param type engine type
+     * @param id engine ID
+     * @param fcn engine function
+     * @param maxChanDepth maximum depth (new data for a channel will not be
+     *                     read if it contains more than maxChanDepth items)
+     * @param bufMgr buffer cache used for channels added by source ID
+     * @param srcIdOffset byte offset of the 4-byte destination source ID
+     *                    within each record
+     */
+    public SourceIdOutputEngine(String type, int id, String fcn,
+                                int maxChanDepth, IByteBufferCache bufMgr,
+                                int srcIdOffset)
+    {
+        super(type, id, fcn, maxChanDepth);
+
+        if (srcIdOffset < 0) {
+            throw new IllegalArgumentException("Source ID offset cannot" +
+                                               " be negative");
+        }
+
+        this.bufferMgr = bufMgr;
+        this.srcIdOffset = srcIdOffset;
+    }
+
+    /**
+     * Add a channel which receives all records for the specified source ID.
+     *
+     * @param channel output channel
+     * @param srcId destination source ID
+     *
+     * @return new output channel
+     */
+    @Override
+    public OutputChannel addDataChannel(WritableByteChannel channel,
+                                        ISourceID srcId)
+    {
+        final int id = srcId.getSourceID();
+
+        QueuedOutputChannel outChan =
+            addDataChannel(channel, bufferMgr, new SourceID(id).toString());
+        addRoute(id, outChan);
+
+        return outChan;
+    }
+
+    /**
+     * Add <tt>chan</tt> to the routing table.
+     *
+     * @param srcId destination source ID
+     * @param chan output channel
+     */
+    private synchronized void addRoute(int srcId, QueuedOutputChannel chan)
+    {
+        final RouteTable cur = routes;
+
+        SimpleOutputChannel prev = cur.get(srcId);
+        if (prev != null && !prev.isStopped()) {
+            LOG.error("Replacing active channel " + prev + " for source #" +
+                      srcId + " with " + chan);
+        }
+
+        SimpleOutputChannel[] chans;
+        int base;
+        if (cur.sparse != null) {
+            // already too spread out for an array
+            base = 0;
+            chans = null;
+        } else if (cur.chans.length == 0) {
+            base = srcId;
+            chans = new SimpleOutputChannel[1];
+        } else {
+            base = Math.min(cur.baseId, srcId);
+            long end = Math.max((long) cur.baseId + cur.chans.length,
+                                (long) srcId + 1L);
+
+            if (end - base > MAX_DENSE_SPAN) {
+                chans = null;
+            } else {
+                chans = new SimpleOutputChannel[(int) (end - base)];
+                System.arraycopy(cur.chans, 0, chans, cur.baseId - base,
+                                 cur.chans.length);
+            }
+        }
+
+        if (chans != null) {
+            chans[srcId - base] = (SimpleOutputChannel) chan;
+            routes = new RouteTable(base, chans, null);
+            return;
+        }
+
+        HashMap<Integer, SimpleOutputChannel> map =
+            new HashMap<Integer, SimpleOutputChannel>();
+        cur.copyTo(map);
+        map.put(srcId, (SimpleOutputChannel) chan);
+
+        routes = new RouteTable(0, null, map);
+    }
+
+    /**
+     * Connect the output channel to this output engine and route all
+     * records for <tt>srcId</tt> to it.
+     *
+     * @param bufMgr byte buffer manager
+     * @param chan output channel
+     * @param srcId source ID of connecting channel
+     *
+     * @throws IOException if there is a problem
+     */
+    @Override
+    public QueuedOutputChannel connect(IByteBufferCache bufMgr,
+                                       WritableByteChannel chan, int srcId)
+        throws IOException
+    {
+        QueuedOutputChannel outChan = super.connect(bufMgr, chan, srcId);
+        addRoute(srcId, outChan);
+        return outChan;
+    }
+
+    /**
+     * Destroy this engine.
+     */
+    @Override
+    public void destroyProcessor()
+    {
+        routes = EMPTY_ROUTES;
+        super.destroyProcessor();
+    }
+
+    /**
+     * Disconnect all channels.
+     */
+    @Override
+    public void disconnect()
+    {
+        super.disconnect();
+        routes = EMPTY_ROUTES;
+    }
+
+    /**
+     * Get the channel for the specified source ID.
+     *
+     * @param srcId destination source ID
+     *
+     * @return output channel (<tt>null</tt> if there is no route)
+     */
+    public QueuedOutputChannel getChannel(int srcId)
+    {
+        return routes.get(srcId);
+    }
+
+    /**
+     * Get the number of records routed to a channel.
+     *
+     * @return number of routed records
+     */
+    public long getRecordsRouted()
+    {
+        return numRouted.sum();
+    }
+
+    /**
+     * Get the number of records which could not be routed.
+     *
+     * @return number of unroutable records
+     */
+    public long getRecordsUnroutable()
+    {
+        return numUnroutable.get();
+    }
+
+    /**
+     * Queue the record on the channel for the destination source ID found
+     * in the record.
+     *
+     * @param buf record
+     *
+     * @return <tt>false</tt> if there is no channel for the destination
+     */
+    public boolean route(ByteBuffer buf)
+    {
+        if (buf.limit() < srcIdOffset + 4) {
+            return route(buf, Integer.MIN_VALUE);
+        }
+
+        return route(buf, buf.getInt(srcIdOffset));
+    }
+
+    /**
+     * Queue the record on the channel for <tt>srcId</tt>.
+     * Unroutable records are returned to the buffer cache.
+     *
+     * @param buf record
+     * @param srcId destination source ID
+     *
+     * @return <tt>false</tt> if there is no channel for the destination
+     */
+    public boolean route(ByteBuffer buf, int srcId)
+    {
+        SimpleOutputChannel chan = routes.get(srcId);
+        if (chan == null) {
+            final long num = numUnroutable.incrementAndGet();
+            if (num % WARNING_FREQUENCY == 1) {
+                LOG.error("No channel for " + buf.limit() +
+                          "-byte record sent to source #" + srcId +
+                          " (num=" + num + ")");
+            }
+
+            if (bufferMgr != null) {
+                bufferMgr.returnBuffer(buf);
+            }
+
+            return false;
+        }
+
+        chan.receiveByteBuffer(buf);
+        numRouted.increment();
+
+        return true;
+    }
+
+    /**
+     * Immutable source ID to channel map.  Either <tt>chans</tt> or
+     * <tt>sparse</tt> is set.
+     */
+    private static class RouteTable
+    {
+        /** Source ID of the first array entry */
+        final int baseId;
+        /** Channels indexed by (source ID - baseId) */
+        final SimpleOutputChannel[] chans;
+        /** Channels for source IDs too spread out for an array */
+        final Map<Integer, SimpleOutputChannel> sparse;
+
+        RouteTable(int baseId, SimpleOutputChannel[] chans,
+                   Map<Integer, SimpleOutputChannel> sparse)
+        {
+            this.baseId = baseId;
+            this.chans = chans;
+            this.sparse = sparse;
+        }
+
+        /**
+         * Add all routes to <tt>map</tt>.
+         *
+         * @param map source ID to channel map
+         */
+        void copyTo(Map<Integer, SimpleOutputChannel> map)
+        {
+            if (sparse != null) {
+                map.putAll(sparse);
+                return;
+            }
+
+            for (int i = 0; i < chans.length; i++) {
+                if (chans[i] != null) {
+                    map.put(baseId + i, chans[i]);
+                }
+            }
+        }
+
+        /**
+         * Get the channel for the specified source ID.
+         *
+         * @param srcId source ID
+         *
+         * @return channel (or <tt>null</tt>)
+         */
+        SimpleOutputChannel get(int srcId)
+        {
+            if (sparse != null) {
+                return sparse.get(srcId);
+            }
+
+            final int idx = srcId - baseId;
+            if (idx < 0 || idx >= chans.length) {
+                return null;
+            }
+
+            return chans[idx];
+        }
+    }
+}
@@ -12,6 +12,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
@@ -23,16 +26,50 @@ public class SpliceableInputChannel
     private static final Logger LOG =
         Logger.getLogger(SpliceableInputChannel.class);
 
+    /** held payloads are flushed after the channel is idle this long */
+    static final long REORDER_IDLE_NANOS = 100000000L;
+
     private LimitedChannelParent parent;
+    /** cache which owns this channel's payload buffers */
+    private IByteBufferCache bufMgr;
     private SpliceableFactory factory;
     private StrandTail strandTail;
     private Thread thread;
-    private ArrayList<Spliceable> queue;
+    /** Is this channel accepting spliceables? */
+    private volatile boolean running;
+    /** Shared workers (<tt>null</tt> to use a dedicated queue thread) */
+    private Executor executor;
+    /** Task which feeds the strand tail from a shared worker */
+    private final Runnable drainTask = new Runnable() {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        };
+    /** Is a drain task scheduled, running or parked over the limit? */
+    private AtomicBoolean scheduled = new AtomicBoolean();
+    /** Is the drain task parked until the strand tail shrinks? */
+    private volatile boolean parked;
+    /** Spliceables and (if decoding off the selector) undecoded payloads */
+    private ArrayList<Object> queue;
+    /** Should payloads be decoded by the queue thread? */
+    private boolean decodeOffSelector;
 
     /** maximum strand depth */
-    private final int maxDepth;
+    private volatile int maxDepth;
     /** amount strand depth must fall before limited channel is reactivated */
-    private int overageBuffer;
+    private volatile int overageBuffer;
+    /** number of spliceables pushed to the strand tail */
+    private volatile long numPushed;
+    /** puts slightly late payloads back in order (<tt>null</tt> if unused) */
+    private ReorderWindow reorder;
+    /** payloads released by the reordering window */
+    private ArrayList<IPayload> released = new ArrayList<IPayload>();
+    /** time (from nanoTime()) when held payloads are flushed (0 if none) */
+    private volatile long reorderDeadline;
+    /** should the queue thread flush the reordering window? */
+    private volatile boolean flushRequested;
 
     SpliceableInputChannel(LimitedChannelParent parent,
                            SelectableChannel channel, String name,
@@ -51,15 +88,77 @@ public class SpliceableInputChannel
         }
 
         this.parent = parent;
+        this.bufMgr = bufMgr;
         this.factory = factory;
-        this.queue = new ArrayList<Spliceable>();
-        this.maxDepth = maxDepth;
+        this.queue = new ArrayList<Object>();
 
-        // if max depth is exceeded, it must fall by 5% before reactivation
-        overageBuffer = maxDepth / 20;
-        if (overageBuffer == 0) {
-            overageBuffer = 1;
+        setMaxDepth(maxDepth);
+    }
+
+    /**
+     * Ask the queue thread to flush the reordering window if nothing has
+     * arrived for a while, so a quiet channel does not hold payloads
+     * back from the splicer.  Called periodically by the reader thread.
+     *
+     * @param now current time (from System.nanoTime())
+     */
+    void checkReorderIdle(long now)
+    {
+        final long deadline = reorderDeadline;
+        if (deadline == 0 || now - deadline < 0 || flushRequested) {
+            return;
+        }
+
+        flushRequested = true;
+        if (executor != null) {
+            schedule();
+        } else {
+            synchronized (queue) {
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Build a spliceable from a payload buffer.
+     *
+     * @param payBuf payload
+     *
+     * @return new spliceable (<tt>null</tt> if payload could not be used)
+     */
+    private Spliceable createSpliceable(ByteBuffer payBuf)
+    {
+        Spliceable spliceable = factory.createSpliceable(payBuf);
+        if (spliceable == null) {
+            LOG.error("Couldn't use buffer (limit " +
+                      payBuf.limit() + ", capacity " + payBuf.capacity() +
+                      ") to create payload (length " +
+                      (payBuf.limit() < 4 ? -1 : payBuf.getInt(0)) +
+                      ", type " +
+                      (payBuf.limit() < 8 ? -1 : payBuf.getInt(4)) + ")");
         }
+
+        return spliceable;
+    }
+
+    int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * Get the number of payloads dropped because they arrived too late
+     * for the reordering window to fix.
+     *
+     * @return number of late payloads
+     */
+    long getLateDropped()
+    {
+        if (reorder == null) {
+            return 0L;
+        }
+
+        return reorder.getNumLate();
     }
 
     int getQueueDepth()
@@ -67,6 +166,26 @@ public class SpliceableInputChannel
         return queue.size();
     }
 
+    /**
+     * Get the number of payloads which arrived out of order and were put
+     * back in order by the reordering window.
+     *
+     * @return number of reordered payloads
+     */
+    long getReordered()
+    {
+        if (reorder == null) {
+            return 0L;
+        }
+
+        return reorder.getNumReordered();
+    }
+
+    long getSpliceablesPushed()
+    {
+        return numPushed;
+    }
+
     int getStrandTailDepth()
     {
         if (strandTail == null) {
@@ -106,7 +225,7 @@ public class SpliceableInputChannel
 
     public boolean isRunning()
     {
-        return thread != null;
+        return running;
     }
 
     @Override
@@ -118,45 +237,109 @@ public class SpliceableInputChannel
             LOG.info("pushing LAST_POSSIBLE_SPLICEABLE");
         }
 
-        pushSpliceable(SpliceableFactory.LAST_POSSIBLE_SPLICEABLE);
+        enqueue(SpliceableFactory.LAST_POSSIBLE_SPLICEABLE);
 
+        running = false;
         thread = null;
 
         synchronized (queue) {
             queue.notifyAll();
         }
 
+        if (executor != null) {
+            // let the drain task close the strand tail
+            schedule();
+        }
+
         super.notifyOnStop();
     }
 
-    @Override
-    public void pushPayload(ByteBuffer payBuf)
+    /**
+     * Feed queued spliceables to the strand tail from a shared worker.
+     * Returns when the queue is empty or the channel goes over its limit,
+     * so no worker is tied up by an idle or limited channel.
+     */
+    private void drain()
     {
-        Spliceable spliceable = factory.createSpliceable(payBuf);
-        if (spliceable == null) {
-            LOG.error("Couldn't use buffer (limit " +
-                      payBuf.limit() + ", capacity " + payBuf.capacity() +
-                      ") to create payload (length " +
-                      (payBuf.limit() < 4 ? -1 : payBuf.getInt(0)) +
-                      ", type " +
-                      (payBuf.limit() < 8 ? -1 : payBuf.getInt(4)) + ")");
+        ArrayList<Object> workList = new ArrayList<Object>();
 
-            throw new RuntimeException("Couldn't create a Spliceable");
-        }
+        while (true) {
+            if (isOverLimit()) {
+                // leave 'scheduled' set; wakeChannel() restarts the drain
+                parked = true;
+                parent.pauseLimitedChannel(this);
+                return;
+            }
 
-        pushSpliceable(spliceable);
+            synchronized (queue) {
+                workList.addAll(queue);
+                queue.clear();
+            }
+
+            if (workList.size() == 0) {
+                if (flushRequested) {
+                    flushReorder();
+                }
+
+                if (!isRunning() && !strandTail.isClosed()) {
+                    strandTail.close();
+                }
+
+                scheduled.set(false);
+
+                // catch anything queued after the queue was checked
+                synchronized (queue) {
+                    if (queue.size() == 0 || !scheduled.compareAndSet(false,
+                                                                      true))
+                    {
+                        return;
+                    }
+                }
+
+                continue;
+            }
+
+            pushAll(workList);
+            workList.clear();
+        }
     }
 
-    private void pushSpliceable(Spliceable spliceable)
+    /**
+     * Add a spliceable or an undecoded payload to the queue.
+     *
+     * @param entry queue entry
+     */
+    private void enqueue(Object entry)
     {
-        if (thread == null) {
+        if (!running) {
             LOG.error("Pushed spliceable without active thread!");
         }
 
         synchronized (queue) {
-            queue.add(spliceable);
+            queue.add(entry);
             queue.notifyAll();
         }
+
+        if (executor != null) {
+            schedule();
+        }
+    }
+
+    @Override
+    public void pushPayload(ByteBuffer payBuf)
+    {
+        if (decodeOffSelector) {
+            // leave decoding to the queue thread
+            enqueue(payBuf);
+            return;
+        }
+
+        Spliceable spliceable = createSpliceable(payBuf);
+        if (spliceable == null) {
+            throw new RuntimeException("Couldn't create a Spliceable");
+        }
+
+        enqueue(spliceable);
     }
 
     /**
@@ -175,7 +358,7 @@ public class SpliceableInputChannel
     @Override
     public void run()
     {
-        ArrayList<Spliceable> workList = new ArrayList<Spliceable>();
+        ArrayList<Object> workList = new ArrayList<Object>();
 
         while (isRunning() || queue.size() > 0) {
             if (isOverLimit()) {
@@ -184,7 +367,7 @@ public class SpliceableInputChannel
             }
 
             synchronized (queue) {
-                while (isRunning() && queue.size() == 0) {
+                while (isRunning() && queue.size() == 0 && !flushRequested) {
                     // wait until there's something in the queue
                     try {
                         queue.wait();
@@ -197,41 +380,206 @@ public class SpliceableInputChannel
                 queue.clear();
             }
 
-            for (Spliceable spliceable : workList) {
-                Exception ex;
-                try {
-                    strandTail.push(spliceable);
-                    ex = null;
-                } catch (OrderingException oe) {
-                    ex = oe;
-                } catch (ClosedStrandException cse) {
-                    ex = cse;
+            if (workList.size() == 0) {
+                if (flushRequested) {
+                    flushReorder();
                 }
+                continue;
+            }
 
-                if (ex != null) {
-                    if (spliceable instanceof IPayload) {
-                        IPayload payload = (IPayload) spliceable;
+            pushAll(workList);
+            workList.clear();
+        }
 
-                        LOG.error("Couldn't push payload type " +
-                                  payload.getPayloadType() +
-                                  ", length " + payload.length() +
-                                  ", time " + payload.getPayloadTimeUTC() +
-                                  "; recycling", ex);
+        if (!strandTail.isClosed()) {
+            strandTail.close();
+        }
+    }
 
-                        payload.recycle();
-                    } else {
-                        LOG.error("Couldn't push " +
-                                  spliceable.getClass().getName(), ex);
-                    }
+    /**
+     * Push a batch of queued entries to the strand tail.
+     *
+     * @param workList spliceables and undecoded payloads
+     */
+    private void pushAll(ArrayList<Object> workList)
+    {
+        for (Object entry : workList) {
+            Spliceable spliceable;
+            if (entry instanceof ByteBuffer) {
+                spliceable = createSpliceable((ByteBuffer) entry);
+                if (spliceable == null) {
+                    // already logged; keep the strand going
+                    bufMgr.returnBuffer((ByteBuffer) entry);
+                    continue;
                 }
+            } else {
+                spliceable = (Spliceable) entry;
             }
 
-            workList.clear();
+            if (reorder == null) {
+                push(spliceable);
+            } else if (spliceable instanceof IPayload) {
+                if (!reorder.add((IPayload) spliceable, released)) {
+                    // counted by the window; don't log every straggler
+                    ((IPayload) spliceable).recycle();
+                }
+                pushReleased();
+            } else {
+                // anything else (e.g. LAST_POSSIBLE_SPLICEABLE) must
+                // follow everything which is being held
+                reorder.flush(released);
+                pushReleased();
+                push(spliceable);
+            }
         }
 
-        if (!strandTail.isClosed()) {
-            strandTail.close();
+        if (reorder != null) {
+            if (reorder.size() == 0) {
+                reorderDeadline = 0;
+            } else {
+                reorderDeadline = System.nanoTime() + REORDER_IDLE_NANOS;
+            }
+        }
+    }
+
+    /**
+     * Push everything held by the reordering window after the channel
+     * has been idle.
+     */
+    private void flushReorder()
+    {
+        flushRequested = false;
+        reorderDeadline = 0;
+
+        if (reorder != null && reorder.size() > 0) {
+            reorder.flush(released);
+            pushReleased();
+        }
+    }
+
+    /**
+     * Push a spliceable to the strand tail, recycling it if it is
+     * rejected.
+     *
+     * @param spliceable spliceable
+     */
+    private void push(Spliceable spliceable)
+    {
+        Exception ex;
+        try {
+            strandTail.push(spliceable);
+            numPushed++;
+            ex = null;
+        } catch (OrderingException oe) {
+            ex = oe;
+        } catch (ClosedStrandException cse) {
+            ex = cse;
+        }
+
+        if (ex != null) {
+            if (spliceable instanceof IPayload) {
+                IPayload payload = (IPayload) spliceable;
+
+                LOG.error("Couldn't push payload type " +
+                          payload.getPayloadType() +
+                          ", length " + payload.length() +
+                          ", time " + payload.getPayloadTimeUTC() +
+                          "; recycling", ex);
+
+                payload.recycle();
+            } else {
+                LOG.error("Couldn't push " +
+                          spliceable.getClass().getName(), ex);
+            }
+        }
+    }
+
+    /**
+     * Push everything released by the reordering window.
+     */
+    private void pushReleased()
+    {
+        for (IPayload payload : released) {
+            push((Spliceable) payload);
         }
+        released.clear();
+    }
+
+    /**
+     * Start a drain task on a shared worker if one isn't already active.
+     */
+    private void schedule()
+    {
+        if (scheduled.compareAndSet(false, true)) {
+            startDrain();
+        }
+    }
+
+    /**
+     * Decode payloads on this channel's queue thread rather than on the
+     * reader's selector thread.  The spliceable factory must then be
+     * safe to call from several threads at once.
+     *
+     * @param val <tt>true</tt> to decode off the selector thread
+     */
+    void setDecodeOffSelector(boolean val)
+    {
+        decodeOffSelector = val;
+    }
+
+    /**
+     * Change the maximum strand depth.  The overage buffer is reset to 5%
+     * of the new depth.
+     *
+     * @param maxDepth maximum strand depth
+     */
+    void setMaxDepth(int maxDepth)
+    {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Maximum depth cannot" +
+                                               " be negative");
+        }
+
+        // if max depth is exceeded, it must fall by 5% before reactivation
+        int overage = maxDepth / 20;
+        if (overage == 0) {
+            overage = 1;
+        }
+
+        this.maxDepth = maxDepth;
+        overageBuffer = overage;
+    }
+
+    /**
+     * Hold back up to <tt>maxCount</tt> payloads (or <tt>maxTicks</tt>
+     * worth of payloads) so that payloads which arrive slightly out of
+     * order are pushed to the strand tail in time order instead of being
+     * rejected.  Payloads which arrive too late to be fixed are recycled
+     * and counted.  Everything held is also released once
+     * <tt>checkReorderIdle()</tt> finds that nothing has arrived for
+     * <tt>REORDER_IDLE_NANOS</tt>.  Must be called before reading starts.
+     *
+     * @param maxCount maximum number of held payloads (0 for no limit)
+     * @param maxTicks maximum time span of held payloads (0 for no limit)
+     */
+    void setReorderWindow(int maxCount, long maxTicks)
+    {
+        if (maxCount == 0 && maxTicks == 0) {
+            reorder = null;
+        } else {
+            reorder = new ReorderWindow(maxCount, maxTicks);
+        }
+    }
+
+    /**
+     * Feed the strand tail from a shared pool of workers instead of a
+     * dedicated queue thread.  Must be called before reading starts.
+     *
+     * @param executor shared workers (<tt>null</tt> for a dedicated thread)
+     */
+    void setExecutor(Executor executor)
+    {
+        this.executor = executor;
     }
 
     public void setStrandTail(StrandTail strandTail)
@@ -264,23 +612,45 @@ public class SpliceableInputChannel
             throw new Error("Strand tail has not been initialized");
         }
 
-        if (thread != null) {
+        if (running) {
             LOG.error("Thread is already running!");
         } else {
-            thread = new Thread(this);
-            thread.setName("QueueThread-" + parent.getName() + "#" + id);
-            thread.start();
+            running = true;
+            if (executor == null) {
+                thread = new Thread(this);
+                thread.setName("QueueThread-" + parent.getName() + "#" + id);
+                thread.start();
+            }
         }
 
         super.startReading();
     }
 
+    /**
+     * Hand the drain task to a shared worker.
+     */
+    private void startDrain()
+    {
+        try {
+            executor.execute(drainTask);
+        } catch (RejectedExecutionException ree) {
+            scheduled.set(false);
+            LOG.error("Cannot schedule " + this, ree);
+        }
+    }
+
     /**
      * Used by LimitedChannelParent to wake a channel which is no longer
      * limited.
      */
     @Override
     public void wakeChannel() {
+        if (parked) {
+            // the drain task still owns 'scheduled'
+            parked = false;
+            startDrain();
+        }
+
         synchronized (this) {
             notify();
         }
@@ -8,6 +8,13 @@ import java.io.IOException;
 import java.nio.channels.SelectableChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 
@@ -24,14 +31,47 @@ public class SpliceableStreamReader
     // maximum number of stop attempts
     private static final int MAX_STOP_TRIES = 10;
 
+    // number of seconds an idle queue worker waits before exiting
+    private static final long WORKER_IDLE_SECONDS = 60L;
+
+    /** nanoseconds between adaptive depth limit updates */
+    private static final long DEPTH_UPDATE_NANOS = 1000000000L;
+    /** nanoseconds between checks for idle reordering windows */
+    private static final long REORDER_CHECK_NANOS = 10000000L;
+
+    /** default interval between limit checks while a channel is limited */
+    public static final long DEFAULT_LIMIT_POLL_MICROS = 50L;
+
     private Splicer splicer;
     private SpliceableFactory factory;
     /** maximum strand depth */
     private int maxDepth;
+    /** adjusts per-channel depth limits (<tt>null</tt> if limits are fixed) */
+    private volatile AdaptiveDepthController depthController;
+    /** should channels decode payloads off the selector thread? */
+    private boolean decodeOffSelector;
+    /** maximum number of payloads held for reordering (0 for no limit) */
+    private int reorderCount;
+    /** maximum time span of payloads held for reordering (0 for no limit) */
+    private long reorderTicks;
+    /** time of the last check for idle reordering windows */
+    private long lastReorderCheck;
+
+    /** number of shared queue workers (0 for one thread per channel) */
+    private int numWorkers = Runtime.getRuntime().availableProcessors();
+    /** shared queue workers */
+    private ThreadPoolExecutor workers;
 
     private ArrayList<LimitedChannel> limitedChannels =
         new ArrayList<LimitedChannel>();
 
+    /** thread which wakes limited channels once they drop below the limit */
+    private Thread limitMonitor;
+    /** nanoseconds between limit checks while a channel is limited */
+    private volatile long limitPollNanos = DEFAULT_LIMIT_POLL_MICROS * 1000L;
+    /** has the limit monitor been told to exit? */
+    private volatile boolean monitorStopped;
+
     public SpliceableStreamReader(String name, Splicer splicer,
                                   SpliceableFactory factory)
         throws IOException
@@ -79,8 +119,77 @@ public class SpliceableStreamReader
                                       IByteBufferCache bufMgr, int bufSize)
         throws IOException
     {
-        return new SpliceableInputChannel(this, channel, name, bufMgr, bufSize,
-                                          factory, maxDepth);
+        SpliceableInputChannel chan =
+            new SpliceableInputChannel(this, channel, name, bufMgr, bufSize,
+                                       factory, maxDepth);
+        chan.setDecodeOffSelector(decodeOffSelector);
+        chan.setReorderWindow(reorderCount, reorderTicks);
+        chan.setExecutor(getWorkers());
+        return chan;
+    }
+
+    @Override
+    public void destroyProcessor()
+    {
+        super.destroyProcessor();
+
+        synchronized (this) {
+            if (workers != null) {
+                workers.shutdown();
+                workers = null;
+            }
+
+            if (limitMonitor != null) {
+                monitorStopped = true;
+                LockSupport.unpark(limitMonitor);
+                limitMonitor = null;
+            }
+        }
+    }
+
+    /**
+     * Get the current strand depth limit for each channel.
+     *
+     * @return depth limits
+     */
+    public synchronized Integer[] getDepthLimits()
+    {
+        ArrayList<Integer> limits = new ArrayList<Integer>();
+        for (InputChannel chan : listChannels()) {
+            SpliceableInputChannel sChan = (SpliceableInputChannel) chan;
+            limits.add(Integer.valueOf(sChan.getMaxDepth()));
+        }
+        return limits.toArray(new Integer[0]);
+    }
+
+    /**
+     * Get the total number of payloads dropped because they arrived too
+     * late for the reordering window to fix.
+     *
+     * @return number of late payloads
+     */
+    public synchronized long getLateDropped()
+    {
+        long total = 0;
+        for (InputChannel chan : listChannels()) {
+            total += ((SpliceableInputChannel) chan).getLateDropped();
+        }
+        return total;
+    }
+
+    /**
+     * Get the total number of payloads which arrived out of order and
+     * were put back in order by the reordering window.
+     *
+     * @return number of reordered payloads
+     */
+    public synchronized long getReordered()
+    {
+        long total = 0;
+        for (InputChannel chan : listChannels()) {
+            total += ((SpliceableInputChannel) chan).getReordered();
+        }
+        return total;
     }
 
     public synchronized Integer[] getStrandDepth()
@@ -109,6 +218,47 @@ public class SpliceableStreamReader
         return ",depth " + getTotalStrandDepth();
     }
 
+    /**
+     * Get the shared workers which feed channel strand tails, creating
+     * them if necessary.
+     *
+     * @return shared workers (<tt>null</tt> if each channel should use
+     *         its own thread)
+     */
+    private synchronized Executor getWorkers()
+    {
+        if (numWorkers <= 0) {
+            return null;
+        }
+
+        if (workers == null) {
+            final String prefix = "QueueWorker-" + getName() + "#";
+            ThreadFactory thrdFactory = new ThreadFactory() {
+                    private AtomicInteger nextNum = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thrd =
+                            new Thread(r, prefix + nextNum.getAndIncrement());
+                        thrd.setDaemon(true);
+                        return thrd;
+                    }
+                };
+
+            // each channel queues at most one task, so the queue is
+            // bounded by the number of channels
+            workers =
+                new ThreadPoolExecutor(numWorkers, numWorkers,
+                                       WORKER_IDLE_SECONDS, TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue<Runnable>(),
+                                       thrdFactory);
+            workers.allowCoreThreadTimeOut(true);
+        }
+
+        return workers;
+    }
+
     public synchronized int getTotalStrandDepth()
     {
         int totalDepth = 0;
@@ -126,22 +276,204 @@ public class SpliceableStreamReader
         return totalDepth;
     }
 
+    /**
+     * Is the channel still waiting to drop below its limit?
+     *
+     * @param chan limited channel
+     *
+     * @return <tt>true</tt> if the channel is on the watchlist
+     */
+    private boolean isWatched(LimitedChannel chan)
+    {
+        synchronized (limitedChannels) {
+            return limitedChannels.contains(chan);
+        }
+    }
+
+    /**
+     * Add the limited channel to the watchlist without waiting.
+     *
+     * @param chan limited channel
+     */
+    @Override
+    public void pauseLimitedChannel(LimitedChannel chan)
+    {
+        synchronized (limitedChannels) {
+            limitedChannels.add(chan);
+        }
+
+        LockSupport.unpark(startLimitMonitor());
+    }
+
     /**
      * Find and wake limited channels which have dropped below their limit.
      */
     @Override
     public void runSubprocess()
     {
-        synchronized (limitedChannels) {
-            Iterator<LimitedChannel> iter = limitedChannels.iterator();
-            while (iter.hasNext()) {
-                LimitedChannel chan = iter.next();
-                if (chan.isUnderLimit()) {
-                    chan.wakeChannel();
-                    iter.remove();
+        final AdaptiveDepthController ctlr = depthController;
+        if (ctlr != null) {
+            final long now = System.nanoTime();
+            if (ctlr.getLastUpdate() == 0 ||
+                now - ctlr.getLastUpdate() >= DEPTH_UPDATE_NANOS)
+            {
+                updateDepthLimits(ctlr, now);
+            }
+        }
+
+        if (reorderCount > 0 || reorderTicks > 0) {
+            final long now = System.nanoTime();
+            if (now - lastReorderCheck >= REORDER_CHECK_NANOS) {
+                lastReorderCheck = now;
+                for (InputChannel chan : listChannels()) {
+                    ((SpliceableInputChannel) chan).checkReorderIdle(now);
                 }
             }
         }
+
+        wakeUnderLimit();
+    }
+
+    /**
+     * Let each channel's strand depth limit follow its share of the input.
+     * Limits are recalculated about once a second from each channel's
+     * arrival rate and the rate at which the splicer consumes it, and
+     * together never exceed <tt>budget</tt> spliceables.
+     *
+     * @param budget total number of spliceables which may be buffered in
+     *               strand tails (0 to go back to the fixed limit)
+     */
+    public void setAdaptiveDepthBudget(long budget)
+    {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Depth budget must not be" +
+                                               " negative, not " + budget);
+        }
+
+        if (budget == 0) {
+            depthController = null;
+            for (InputChannel chan : listChannels()) {
+                ((SpliceableInputChannel) chan).setMaxDepth(maxDepth);
+            }
+        } else {
+            depthController = new AdaptiveDepthController(budget);
+        }
+    }
+
+    /**
+     * Set the interval between checks of limited channels.  The limit
+     * monitor only polls while some channel is limited, so a short
+     * interval lets channels resume as soon as the splicer catches up.
+     *
+     * @param usec number of microseconds between checks
+     */
+    public void setLimitPollMicros(long usec)
+    {
+        if (usec <= 0) {
+            throw new IllegalArgumentException("Poll interval must be" +
+                                               " positive, not " + usec);
+        }
+
+        limitPollNanos = usec * 1000L;
+    }
+
+    /**
+     * Set the number of shared workers which feed channels' strand tails.
+     * Workers are only busy while a channel has queued spliceables, so a
+     * few workers can serve many mostly-idle channels.  Each channel's
+     * spliceables are still pushed in order by one worker at a time.
+     * Must be called before any channels are added.
+     *
+     * @param num number of workers (0 for one thread per channel)
+     */
+    public synchronized void setQueueWorkers(int num)
+    {
+        if (num < 0) {
+            throw new IllegalArgumentException("Number of workers must not" +
+                                               " be negative, not " + num);
+        }
+
+        if (workers != null) {
+            throw new Error("Cannot change number of queue workers after" +
+                            " channels have been added");
+        }
+
+        numWorkers = num;
+    }
+
+    /**
+     * Decode payloads on each channel's queue thread instead of on the
+     * selector thread, so the selector only frames records and payload
+     * decoding for different channels runs in parallel.  Each channel's
+     * payloads are still decoded and pushed in order.  The spliceable
+     * factory must be safe to call from several threads at once.
+     * Only affects channels added after this call.
+     *
+     * @param val <tt>true</tt> to decode off the selector thread
+     */
+    public void setDecodeOffSelector(boolean val)
+    {
+        decodeOffSelector = val;
+    }
+
+    /**
+     * Give each channel a small reordering window so payloads which
+     * arrive slightly out of order reach the splicer in time order
+     * instead of being logged and recycled.  Payloads are held until
+     * more than <tt>maxCount</tt> are waiting or until they are more than
+     * <tt>maxTicks</tt> older than the newest payload, so each channel's
+     * data is delayed by at most that much.  A channel which has been
+     * idle for a tenth of a second releases everything it holds (this is
+     * checked each time the reader wakes, which is at least once a
+     * second), so a quiet channel cannot stall the splicer.  Only affects
+     * channels added after this call.
+     *
+     * @param maxCount maximum number of held payloads (0 for no limit)
+     * @param maxTicks maximum time span of held payloads (0 for no limit)
+     *                 (if both are 0, the window is disabled)
+     */
+    public void setReorderWindow(int maxCount, long maxTicks)
+    {
+        if (maxCount < 0 || maxTicks < 0) {
+            throw new IllegalArgumentException("Bad reorder window (count " +
+                                               maxCount + ", ticks " +
+                                               maxTicks + ")");
+        }
+
+        reorderCount = maxCount;
+        reorderTicks = maxTicks;
+    }
+
+    /**
+     * Start the thread which wakes limited channels, if necessary.
+     *
+     * @return limit monitor thread
+     */
+    private synchronized Thread startLimitMonitor()
+    {
+        if (limitMonitor == null) {
+            monitorStopped = false;
+
+            limitMonitor = new Thread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        while (!monitorStopped) {
+                            if (wakeUnderLimit()) {
+                                LockSupport.parkNanos(this, limitPollNanos);
+                            } else {
+                                // pauseLimitedChannel() will unpark us
+                                LockSupport.park(this);
+                            }
+                        }
+                    }
+                });
+            limitMonitor.setName("LimitMonitor-" + getName());
+            limitMonitor.setDaemon(true);
+            limitMonitor.start();
+        }
+
+        return limitMonitor;
     }
 
     @Override
@@ -189,6 +521,23 @@ public class SpliceableStreamReader
         super.startProcessing();
     }
 
+    /**
+     * Recalculate per-channel depth limits.
+     *
+     * @param ctlr adaptive depth controller
+     * @param now current time (from System.nanoTime())
+     */
+    private void updateDepthLimits(AdaptiveDepthController ctlr, long now)
+    {
+        ArrayList<SpliceableInputChannel> chans =
+            new ArrayList<SpliceableInputChannel>();
+        for (InputChannel chan : listChannels()) {
+            chans.add((SpliceableInputChannel) chan);
+        }
+
+        ctlr.update(chans, now);
+    }
+
     /**
      * Add the limited channel to a watchlist and put the calling thread in
      * a WAIT state.  The channel will be notified (via
@@ -199,10 +548,11 @@ public class SpliceableStreamReader
     @Override
     public void watchLimitedChannel(LimitedChannel chan)
     {
-        synchronized (limitedChannels) {
-            limitedChannels.add(chan);
-        }
         synchronized (chan) {
+            // channel is added while its lock is held, so wakeChannel()
+            // cannot run before this thread is waiting
+            pauseLimitedChannel(chan);
+
             Thread thrd = Thread.currentThread();
 
             if (LOG_PAUSE) {
@@ -211,7 +561,9 @@ public class SpliceableStreamReader
                           thrd.getName());
             }
             try {
-                chan.wait();
+                while (isWatched(chan)) {
+                    chan.wait();
+                }
                 if (LOG_PAUSE) {
                     LOG.error(chan.toString() + " strand tail has resumed " +
                               thrd.getName());
@@ -222,4 +574,41 @@ public class SpliceableStreamReader
             }
         }
     }
+
+    /**
+     * Wake limited channels which have dropped below their limit.
+     * Channels are woken after the watchlist lock is released, since a
+     * waiting channel holds its own lock while adding itself.
+     *
+     * @return <tt>true</tt> if some channels are still limited
+     */
+    private boolean wakeUnderLimit()
+    {
+        ArrayList<LimitedChannel> wakeList = null;
+        final boolean stillLimited;
+
+        synchronized (limitedChannels) {
+            Iterator<LimitedChannel> iter = limitedChannels.iterator();
+            while (iter.hasNext()) {
+                LimitedChannel chan = iter.next();
+                if (chan.isUnderLimit()) {
+                    if (wakeList == null) {
+                        wakeList = new ArrayList<LimitedChannel>();
+                    }
+                    wakeList.add(chan);
+                    iter.remove();
+                }
+            }
+
+            stillLimited = limitedChannels.size() > 0;
+        }
+
+        if (wakeList != null) {
+            for (LimitedChannel chan : wakeList) {
+                chan.wakeChannel();
+            }
+        }
+
+        return stillLimited;
+    }
 }
@@ -0,0 +1,447 @@
+package icecube.daq.io;
+
+import icecube.daq.payload.IByteBufferCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Merge payloads from all channels into a single time-ordered stream.
+ *
+ * Each channel's payloads must already be in time order.  Payloads are
+ * queued per channel and a merge thread repeatedly pushes the earliest
+ * queued payload, using a heap of channels ordered by the time of the
+ * payload at the head of each queue.  A payload is only pushed once every
+ * running channel has something queued, so nothing earlier can still
+ * arrive.  A channel which has received its stop message (or which was
+ * dropped because of an error) no longer holds up the merge, and once
+ * every channel has stopped and its payloads have been pushed, sendStop()
+ * is called.
+ *
+ * A channel stops reading while its queue is full and starts again once
+ * the merge has drained half of it.
+ *
+ * This is much cheaper than the general splicer, but only understands the
+ * payload envelope (length, type and UTC time).
+ */
+public abstract class TimeMergeStreamReader
+    extends DAQStreamReader
+{
+    private static final Logger LOG =
+        Logger.getLogger(TimeMergeStreamReader.class);
+
+    /** default maximum number of queued payloads per channel */
+    public static final int DEFAULT_MAX_QUEUED = 1000;
+
+    /** offset of the UTC time in the payload envelope */
+    private static final int OFFSET_UTCTIME = 8;
+
+    class MergeInputChannel
+        extends InputChannel
+    {
+        /** cache which owns this channel's payloads */
+        private IByteBufferCache bufMgr;
+        /** payloads waiting to be merged */
+        private ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+        /** has this channel received its stop message? */
+        private boolean stopped;
+        /** has this channel stopped reading because its queue is full? */
+        private boolean paused;
+
+        MergeInputChannel(IOChannelParent parent, SelectableChannel channel,
+                          String name, IByteBufferCache bufMgr, int bufSize)
+            throws IOException
+        {
+            super(parent, channel, name, bufMgr, bufSize);
+
+            this.bufMgr = bufMgr;
+        }
+
+        /**
+         * Get the time of the payload at the head of the queue.
+         *
+         * @return UTC time
+         */
+        long getHeadTime()
+        {
+            return queue.peek().getLong(OFFSET_UTCTIME);
+        }
+
+        @Override
+        public void notifyOnStop()
+        {
+            mergeStopped(this);
+            super.notifyOnStop();
+        }
+
+        @Override
+        public void pushPayload(ByteBuffer payBuf)
+            throws IOException
+        {
+            if (payBuf.limit() < OFFSET_UTCTIME + 8) {
+                LOG.error("Dropping " + payBuf.limit() + "-byte payload" +
+                          " without a time from " + this);
+                bufMgr.returnBuffer(payBuf);
+                return;
+            }
+
+            mergePayload(this, payBuf);
+        }
+
+        /**
+         * Unimplemented.
+         *
+         * @param compObserver component observer
+         * @param notificationID ID string
+         */
+        @Override
+        public void registerComponentObserver(DAQComponentObserver compObserver,
+                                              String notificationID)
+        {
+            throw new Error("Unimplemented");
+        }
+    }
+
+    /** Order channels by the time of their first queued payload */
+    private static final Comparator<MergeInputChannel> HEAD_ORDER =
+        new Comparator<MergeInputChannel>() {
+            @Override
+            public int compare(MergeInputChannel a, MergeInputChannel b)
+            {
+                final long aTime = a.getHeadTime();
+                final long bTime = b.getHeadTime();
+                if (aTime != bTime) {
+                    return (aTime < bTime ? -1 : 1);
+                }
+
+                return a.id - b.id;
+            }
+        };
+
+    /** guards all merge state */
+    private final Object mergeLock = new Object();
+    /** channels in the current run */
+    private ArrayList<MergeInputChannel> mergeChanList =
+        new ArrayList<MergeInputChannel>();
+    /** channels with queued payloads */
+    private PriorityQueue<MergeInputChannel> heap =
+        new PriorityQueue<MergeInputChannel>(11, HEAD_ORDER);
+    /** number of running channels with nothing queued */
+    private int numEmpty;
+    /** maximum number of queued payloads per channel */
+    private int maxQueued = DEFAULT_MAX_QUEUED;
+
+    /** thread which merges and pushes payloads */
+    private Thread mergeThread;
+    /** has the merge thread been told to exit? */
+    private boolean mergeStopped;
+
+    private long dequeuedMessages;
+    private long stopMessagesPropagated;
+    private long totStops;
+
+    public TimeMergeStreamReader(String name)
+        throws IOException
+    {
+        super(name);
+    }
+
+    /**
+     * Treat a channel which was dropped without a stop message as
+     * stopped, so it no longer holds up the merge.
+     *
+     * @param chanData removed channel
+     */
+    @Override
+    protected void channelRemoved(InputChannel chanData)
+    {
+        if (chanData instanceof MergeInputChannel) {
+            mergeStopped((MergeInputChannel) chanData);
+        }
+    }
+
+    @Override
+    public InputChannel createChannel(SelectableChannel channel, String name,
+                                      IByteBufferCache bufMgr, int bufSize)
+        throws IOException
+    {
+        MergeInputChannel chan =
+            new MergeInputChannel(this, channel, name, bufMgr, bufSize);
+
+        synchronized (mergeLock) {
+            if (mergeChanList.size() == 0) {
+                dequeuedMessages = 0;
+                stopMessagesPropagated = 0;
+            }
+
+            mergeChanList.add(chan);
+            numEmpty++;
+
+            startMergeThread();
+        }
+
+        return chan;
+    }
+
+    @Override
+    public void destroyProcessor()
+    {
+        super.destroyProcessor();
+
+        synchronized (mergeLock) {
+            mergeStopped = true;
+            mergeThread = null;
+            mergeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Get the number of payloads pushed during this run.
+     *
+     * @return number of payloads pushed
+     */
+    public long getDequeuedMessages()
+    {
+        return dequeuedMessages;
+    }
+
+    /**
+     * Get the maximum number of payloads queued for each channel.
+     *
+     * @return maximum queue length
+     */
+    public int getMaxQueued()
+    {
+        return maxQueued;
+    }
+
+    /**
+     * Get the number of payloads waiting to be merged.
+     *
+     * @return number of queued payloads
+     */
+    public int getNumQueued()
+    {
+        int total = 0;
+        synchronized (mergeLock) {
+            for (MergeInputChannel chan : mergeChanList) {
+                total += chan.queue.size();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of stop messages passed on to other objects
+     * during this run.
+     *
+     * @return total number of stop messages
+     */
+    public long getStopMessagesPropagated()
+    {
+        return stopMessagesPropagated;
+    }
+
+    /**
+     * Get the total number of stop messages received.
+     *
+     * @return total number of stop messages
+     */
+    public long getTotalStopsReceived()
+    {
+        return totStops;
+    }
+
+    /**
+     * Has every channel stopped and been drained?
+     *
+     * @return <tt>true</tt> if the run is complete
+     */
+    private boolean isMergeDone()
+    {
+        if (mergeChanList.size() == 0 || heap.size() > 0) {
+            return false;
+        }
+
+        for (MergeInputChannel chan : mergeChanList) {
+            if (!chan.stopped) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Queue a payload from a channel.
+     *
+     * @param chan channel
+     * @param payBuf payload
+     */
+    private void mergePayload(MergeInputChannel chan, ByteBuffer payBuf)
+    {
+        synchronized (mergeLock) {
+            if (chan.queue.size() == 0) {
+                chan.queue.add(payBuf);
+                heap.add(chan);
+                if (!chan.stopped) {
+                    numEmpty--;
+                }
+            } else {
+                chan.queue.add(payBuf);
+            }
+
+            if (chan.queue.size() >= maxQueued && !chan.paused) {
+                chan.paused = true;
+                chan.pauseReading();
+            }
+
+            mergeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Let the merge run past a channel which has stopped.
+     *
+     * @param chan channel
+     */
+    private void mergeStopped(MergeInputChannel chan)
+    {
+        synchronized (mergeLock) {
+            if (!chan.stopped) {
+                chan.stopped = true;
+                if (chan.queue.size() == 0) {
+                    numEmpty--;
+                }
+            }
+
+            mergeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Push merged payloads until the reader is destroyed.
+     */
+    private void runMerge()
+    {
+        while (true) {
+            ByteBuffer payBuf = null;
+            boolean sendStop = false;
+
+            synchronized (mergeLock) {
+                while (!mergeStopped && !isMergeDone() &&
+                       (numEmpty > 0 || heap.size() == 0))
+                {
+                    try {
+                        mergeLock.wait();
+                    } catch (InterruptedException ie) {
+                        // ignore interrupts
+                    }
+                }
+
+                if (mergeStopped) {
+                    break;
+                }
+
+                if (isMergeDone()) {
+                    mergeChanList.clear();
+                    sendStop = true;
+                } else {
+                    MergeInputChannel chan = heap.poll();
+                    payBuf = chan.queue.poll();
+
+                    if (chan.queue.size() > 0) {
+                        heap.add(chan);
+                    } else if (!chan.stopped) {
+                        numEmpty++;
+                    }
+
+                    if (chan.paused && chan.queue.size() <= maxQueued / 2) {
+                        chan.paused = false;
+                        chan.resumeReading();
+                    }
+
+                    dequeuedMessages++;
+                }
+            }
+
+            if (sendStop) {
+                sendStop();
+                stopMessagesPropagated++;
+                totStops++;
+                continue;
+            }
+
+            try {
+                pushBuffer(payBuf);
+            } catch (Throwable thr) {
+                LOG.error("Couldn't push merged payload", thr);
+            }
+        }
+    }
+
+    /**
+     * Set the maximum number of payloads queued for each channel.  A
+     * channel stops reading once it has this many payloads waiting to be
+     * merged.
+     *
+     * @param num maximum queue length
+     */
+    public void setMaxQueued(int num)
+    {
+        if (num < 1) {
+            throw new IllegalArgumentException("Maximum queue length must" +
+                                               " be positive, not " + num);
+        }
+
+        synchronized (mergeLock) {
+            maxQueued = num;
+        }
+    }
+
+    /**
+     * Start the merge thread, if necessary.  Must be called while holding
+     * <tt>mergeLock</tt>.
+     */
+    private void startMergeThread()
+    {
+        if (mergeThread != null) {
+            return;
+        }
+
+        mergeStopped = false;
+        mergeThread = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    runMerge();
+                }
+            });
+        mergeThread.setName("TimeMerge-" + getName());
+        mergeThread.setDaemon(true);
+        mergeThread.start();
+    }
+
+    /**
+     * Receive the next payload in time order.
+     *
+     * @param bb payload
+     *
+     * @throws IOException if the payload could not be handled
+     */
+    public abstract void pushBuffer(ByteBuffer bb)
+        throws IOException;
+
+    /**
+     * Called after every channel has stopped and all payloads have been
+     * pushed.
+     */
+    public abstract void sendStop();
+}
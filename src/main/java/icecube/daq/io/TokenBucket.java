@@ -0,0 +1,122 @@
+package icecube.daq.io;
+
+/**
+ * Token bucket used to shape output to a steady byte rate.
+ *
+ * The bucket refills at <tt>bytesPerSecond</tt> and holds at most
+ * <tt>burstBytes</tt> tokens.  Sending a record consumes one token per
+ * byte and may leave the bucket in debt, so records larger than the burst
+ * size are still sent; the sender then waits until the debt is repaid.
+ */
+class TokenBucket
+{
+    /** Refill rate */
+    private final long bytesPerSecond;
+    /** Maximum number of tokens */
+    private final long burstBytes;
+
+    /** Current number of tokens (negative if the bucket is in debt) */
+    private double tokens;
+    /** Time of the last refill (from System.nanoTime()) */
+    private long lastRefill;
+
+    /**
+     * Create a full token bucket.
+     *
+     * @param bytesPerSecond sustained rate
+     * @param burstBytes maximum number of bytes which can be sent at once
+     */
+    TokenBucket(long bytesPerSecond, long burstBytes)
+    {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive, not " +
+                                               bytesPerSecond);
+        }
+        if (burstBytes <= 0) {
+            throw new IllegalArgumentException("Burst size must be" +
+                                               " positive, not " +
+                                               burstBytes);
+        }
+
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+
+        tokens = burstBytes;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Remove tokens for bytes which have been sent.
+     *
+     * @param bytes number of bytes sent
+     */
+    synchronized void consume(long bytes)
+    {
+        refill(System.nanoTime());
+        tokens -= bytes;
+    }
+
+    /**
+     * Get the maximum number of tokens.
+     *
+     * @return burst size in bytes
+     */
+    long getBurstBytes()
+    {
+        return burstBytes;
+    }
+
+    /**
+     * Get the refill rate.
+     *
+     * @return bytes per second
+     */
+    long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Get the time until the next record may be sent.
+     *
+     * @return nanoseconds to wait (0 if a record may be sent now)
+     */
+    synchronized long getDelay()
+    {
+        refill(System.nanoTime());
+        if (tokens >= 0.0) {
+            return 0L;
+        }
+
+        return (long) Math.ceil(-tokens * 1000000000.0 /
+                                (double) bytesPerSecond);
+    }
+
+    /**
+     * Add tokens for the time elapsed since the last refill.
+     *
+     * @param now current time (from System.nanoTime())
+     */
+    private void refill(long now)
+    {
+        final long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min((double) burstBytes,
+                              tokens + (elapsed * (double) bytesPerSecond) /
+                              1000000000.0);
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * Debugging string.
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return "TokenBucket[" + bytesPerSecond + "B/s, burst " + burstBytes +
+            "]";
+    }
+}
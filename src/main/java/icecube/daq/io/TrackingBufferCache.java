@@ -0,0 +1,559 @@
+package icecube.daq.io;
+
+import icecube.daq.payload.IByteBufferCache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffer cache wrapper which samples acquisitions to find the code paths
+ * holding on to buffers.
+ *
+ * One in every <tt>sampleInterval</tt> acquisitions records the method
+ * which asked for the buffer and when it was acquired.  When a sampled
+ * buffer is returned, the time it was held is added to a per-site
+ * histogram.  {@link #getReport(long)} lists sampled buffers which have
+ * been held for too long along with the residency histograms, which is
+ * usually enough to find the holder when acquired bytes creep toward the
+ * stop-allocation limit.
+ *
+ * Unsampled acquisitions and returns cost one random number and one
+ * volatile read.
+ *
+ * A sampled buffer which is returned by length, or through a slice or
+ * duplicate, can never be matched to its sample.  To keep such samples
+ * from piling up, at most <tt>maxTracked</tt> samples are kept and any
+ * sample older than <tt>maxAgeMillis</tt> is dropped; dropped samples
+ * are counted by {@link #getNumEvicted()}.
+ */
+public class TrackingBufferCache
+    implements IByteBufferCache
+{
+    /** Number of residency histogram bins */
+    public static final int NUM_BINS = 32;
+    /** Default maximum number of outstanding samples */
+    public static final int DEFAULT_MAX_TRACKED = 10000;
+    /** Default age after which an outstanding sample is dropped */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10L * 60L * 1000L;
+
+    /**
+     * Map key which compares buffers by identity rather than contents.
+     */
+    private static class BufferKey
+    {
+        /** Tracked buffer */
+        private ByteBuffer buf;
+
+        BufferKey(ByteBuffer buf)
+        {
+            this.buf = buf;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof BufferKey && ((BufferKey) obj).buf == buf;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(buf);
+        }
+    }
+
+    /**
+     * Code which acquires buffers.
+     */
+    private static class Site
+    {
+        /** Class, method and line number */
+        private String name;
+        /** Number of samples by log2(microseconds held) */
+        private AtomicLongArray residency = new AtomicLongArray(NUM_BINS);
+
+        Site(String name)
+        {
+            this.name = name;
+        }
+
+        void addResidency(long nanos)
+        {
+            residency.incrementAndGet(getBin(nanos));
+        }
+
+        long[] getResidency()
+        {
+            long[] hist = new long[NUM_BINS];
+            for (int i = 0; i < NUM_BINS; i++) {
+                hist[i] = residency.get(i);
+            }
+            return hist;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    /**
+     * Sampled buffer which has not been returned.
+     */
+    private static class Sample
+    {
+        /** Acquiring code */
+        private Site site;
+        /** Time the buffer was acquired (from System.nanoTime()) */
+        private long acquireTime;
+        /** Number of bytes requested */
+        private int bytes;
+
+        Sample(Site site, long acquireTime, int bytes)
+        {
+            this.site = site;
+            this.acquireTime = acquireTime;
+            this.bytes = bytes;
+        }
+    }
+
+    /** Underlying cache */
+    private IByteBufferCache delegate;
+    /** Sample one in this many acquisitions (0 to disable sampling) */
+    private volatile int sampleInterval;
+
+    /** Acquiring sites, by name */
+    private ConcurrentHashMap<String, Site> sites =
+        new ConcurrentHashMap<String, Site>();
+    /** Outstanding sampled buffers, oldest first */
+    private LinkedHashMap<BufferKey, Sample> tracked =
+        new LinkedHashMap<BufferKey, Sample>();
+    /** Number of outstanding sampled buffers */
+    private volatile int numTracked;
+    /** Maximum number of outstanding samples */
+    private int maxTracked = DEFAULT_MAX_TRACKED;
+    /** Age after which an outstanding sample is dropped (in nanoseconds) */
+    private long maxAgeNanos = DEFAULT_MAX_AGE_MILLIS * 1000000L;
+    /** Number of samples dropped before their buffer was returned */
+    private long numEvicted;
+    /** Total number of sampled acquisitions */
+    private LongAdder totSampled = new LongAdder();
+
+    /**
+     * Wrap a cache.
+     *
+     * @param delegate underlying cache
+     * @param sampleInterval sample one in this many acquisitions
+     *                       (0 to disable sampling)
+     */
+    public TrackingBufferCache(IByteBufferCache delegate, int sampleInterval)
+    {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Underlying cache is null");
+        }
+
+        this.delegate = delegate;
+        setSampleInterval(sampleInterval);
+    }
+
+    @Override
+    public ByteBuffer acquireBuffer(int bytes)
+    {
+        ByteBuffer buf = delegate.acquireBuffer(bytes);
+
+        final int interval = sampleInterval;
+        if (buf != null && interval > 0 &&
+            (interval == 1 ||
+             ThreadLocalRandom.current().nextInt(interval) == 0))
+        {
+            track(buf, bytes);
+        }
+
+        return buf;
+    }
+
+    /**
+     * Drop the oldest samples while there are too many or they are too
+     * old.  Must be called while holding the <tt>tracked</tt> lock.
+     *
+     * @param now current time (from System.nanoTime())
+     */
+    private void expire(long now)
+    {
+        Iterator<Sample> iter = tracked.values().iterator();
+        while (iter.hasNext()) {
+            Sample sample = iter.next();
+            if (tracked.size() <= maxTracked &&
+                now - sample.acquireTime < maxAgeNanos)
+            {
+                break;
+            }
+
+            iter.remove();
+            numEvicted++;
+        }
+
+        numTracked = tracked.size();
+    }
+
+    /**
+     * Find the method which called into this cache.
+     *
+     * @return acquiring site
+     */
+    private Site findSite()
+    {
+        final String myName = TrackingBufferCache.class.getName();
+
+        String name = "unknown";
+        for (StackTraceElement elem : new Throwable().getStackTrace()) {
+            if (!elem.getClassName().equals(myName)) {
+                name = elem.getClassName() + "." + elem.getMethodName() +
+                    ":" + elem.getLineNumber();
+                break;
+            }
+        }
+
+        Site site = sites.get(name);
+        if (site == null) {
+            Site newSite = new Site(name);
+            site = sites.putIfAbsent(name, newSite);
+            if (site == null) {
+                site = newSite;
+            }
+        }
+
+        return site;
+    }
+
+    /**
+     * Get the residency histogram bin for a holding time.
+     *
+     * @param nanos number of nanoseconds the buffer was held
+     *
+     * @return bin index (bin N holds times below 2^N microseconds)
+     */
+    static int getBin(long nanos)
+    {
+        final long usec = nanos / 1000L;
+        final int bin = 64 - Long.numberOfLeadingZeros(usec);
+        return (bin >= NUM_BINS ? NUM_BINS - 1 : bin);
+    }
+
+    @Override
+    public int getCurrentAcquiredBuffers()
+    {
+        return delegate.getCurrentAcquiredBuffers();
+    }
+
+    @Override
+    public long getCurrentAcquiredBytes()
+    {
+        return delegate.getCurrentAcquiredBytes();
+    }
+
+    @Override
+    public long getMaxAcquiredBytes()
+    {
+        return delegate.getMaxAcquiredBytes();
+    }
+
+    @Override
+    public String getName()
+    {
+        return delegate.getName();
+    }
+
+    /**
+     * Get the number of samples which were dropped before their buffer
+     * was returned, either because too many samples were outstanding,
+     * because they were too old, or because the buffer was acquired
+     * again without being returned through <tt>returnBuffer(ByteBuffer)</tt>.
+     *
+     * @return number of evicted samples
+     */
+    public long getNumEvicted()
+    {
+        synchronized (tracked) {
+            return numEvicted;
+        }
+    }
+
+    /**
+     * Get the number of sampled buffers which have not been returned.
+     *
+     * @return number of outstanding samples
+     */
+    public int getNumOutstanding()
+    {
+        return numTracked;
+    }
+
+    /**
+     * Get the number of sampled buffers acquired by each site which have
+     * been held for at least <tt>minAgeMillis</tt>.
+     *
+     * @param minAgeMillis minimum age in milliseconds
+     *
+     * @return map of site names to number of buffers
+     */
+    public HashMap<String, Integer> getOutstanding(long minAgeMillis)
+    {
+        final long cutoff = System.nanoTime() - minAgeMillis * 1000000L;
+
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        synchronized (tracked) {
+            expire(System.nanoTime());
+            for (Sample sample : tracked.values()) {
+                if (sample.acquireTime - cutoff <= 0) {
+                    Integer prev = map.get(sample.site.name);
+                    map.put(sample.site.name,
+                            (prev == null ? 1 : prev.intValue() + 1));
+                }
+            }
+        }
+
+        return map;
+    }
+
+    /**
+     * Build a report of sampled buffers held for at least
+     * <tt>minAgeMillis</tt> and of the residency histograms for every
+     * site.
+     *
+     * @param minAgeMillis minimum age in milliseconds
+     *
+     * @return multi-line report
+     */
+    public String getReport(long minAgeMillis)
+    {
+        final long now = System.nanoTime();
+        final long cutoff = now - minAgeMillis * 1000000L;
+
+        HashMap<Site, long[]> old = new HashMap<Site, long[]>();
+        final long evicted;
+        synchronized (tracked) {
+            expire(now);
+            evicted = numEvicted;
+            for (Sample sample : tracked.values()) {
+                if (sample.acquireTime - cutoff <= 0) {
+                    long[] totals = old.get(sample.site);
+                    if (totals == null) {
+                        // count, bytes, oldest age
+                        totals = new long[3];
+                        old.put(sample.site, totals);
+                    }
+                    totals[0]++;
+                    totals[1] += sample.bytes;
+                    totals[2] = Math.max(totals[2], now - sample.acquireTime);
+                }
+            }
+        }
+
+        StringBuilder buf = new StringBuilder();
+        buf.append(numTracked)
+            .append(" of ").append(totSampled.sum())
+            .append(" sampled buffers outstanding, ").append(evicted)
+            .append(" evicted\n");
+
+        for (Site site : old.keySet()) {
+            long[] totals = old.get(site);
+            buf.append("  held ").append(totals[0]).append(" bufs/")
+                .append(totals[1]).append(" bytes, oldest ")
+                .append(totals[2] / 1000000L).append(" ms: ")
+                .append(site).append('\n');
+        }
+
+        ArrayList<Site> siteList = new ArrayList<Site>(sites.values());
+        for (Site site : siteList) {
+            buf.append("  residency ").append(site).append(':');
+
+            long[] hist = site.getResidency();
+            for (int i = 0; i < hist.length; i++) {
+                if (hist[i] > 0) {
+                    buf.append(" <").append(1L << i).append("us=")
+                        .append(hist[i]);
+                }
+            }
+            buf.append('\n');
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Get the residency histogram for every acquiring site.
+     *
+     * @return map of site names to histograms (bin N counts buffers held
+     *         for less than 2^N microseconds)
+     */
+    public HashMap<String, long[]> getResidencyHistograms()
+    {
+        HashMap<String, long[]> map = new HashMap<String, long[]>();
+        for (Site site : sites.values()) {
+            map.put(site.name, site.getResidency());
+        }
+        return map;
+    }
+
+    /**
+     * Get the sampling interval.
+     *
+     * @return one in this many acquisitions is sampled (0 if disabled)
+     */
+    public int getSampleInterval()
+    {
+        return sampleInterval;
+    }
+
+    @Override
+    public int getTotalBuffersAcquired()
+    {
+        return delegate.getTotalBuffersAcquired();
+    }
+
+    @Override
+    public int getTotalBuffersCreated()
+    {
+        return delegate.getTotalBuffersCreated();
+    }
+
+    @Override
+    public int getTotalBuffersReturned()
+    {
+        return delegate.getTotalBuffersReturned();
+    }
+
+    @Override
+    public long getTotalBytesInCache()
+    {
+        return delegate.getTotalBytesInCache();
+    }
+
+    @Override
+    public boolean isBalanced()
+    {
+        return delegate.isBalanced();
+    }
+
+    @Override
+    public boolean isCacheBounded()
+    {
+        return delegate.isCacheBounded();
+    }
+
+    @Override
+    public void returnBuffer(ByteBuffer buf)
+    {
+        if (buf != null && numTracked > 0) {
+            Sample sample;
+            synchronized (tracked) {
+                sample = tracked.remove(new BufferKey(buf));
+                if (sample != null) {
+                    numTracked = tracked.size();
+                }
+            }
+
+            if (sample != null) {
+                sample.site.addResidency(System.nanoTime() -
+                                         sample.acquireTime);
+            }
+        }
+
+        delegate.returnBuffer(buf);
+    }
+
+    /**
+     * Return a buffer by length.  Buffers returned this way cannot be
+     * matched to a sample, so a sampled buffer will be reported as
+     * outstanding until it is evicted.
+     *
+     * @param bytes number of bytes
+     */
+    @Override
+    public void returnBuffer(int bytes)
+    {
+        delegate.returnBuffer(bytes);
+    }
+
+    /**
+     * Set the limits on outstanding samples.
+     *
+     * @param maxTracked maximum number of outstanding samples
+     * @param maxAgeMillis age after which a sample is dropped
+     */
+    public void setTrackingLimits(int maxTracked, long maxAgeMillis)
+    {
+        if (maxTracked <= 0) {
+            throw new IllegalArgumentException("Maximum samples must be" +
+                                               " positive, not " +
+                                               maxTracked);
+        }
+        if (maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("Maximum age must be" +
+                                               " positive, not " +
+                                               maxAgeMillis);
+        }
+
+        synchronized (tracked) {
+            this.maxTracked = maxTracked;
+            this.maxAgeNanos = maxAgeMillis * 1000000L;
+            expire(System.nanoTime());
+        }
+    }
+
+    /**
+     * Set the sampling interval.
+     *
+     * @param sampleInterval sample one in this many acquisitions
+     *                       (0 to disable sampling)
+     */
+    public void setSampleInterval(int sampleInterval)
+    {
+        if (sampleInterval < 0) {
+            throw new IllegalArgumentException("Sample interval must not be" +
+                                               " negative, not " +
+                                               sampleInterval);
+        }
+
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * Start tracking a buffer.
+     *
+     * @param buf newly acquired buffer
+     * @param bytes number of bytes requested
+     */
+    private void track(ByteBuffer buf, int bytes)
+    {
+        Sample sample = new Sample(findSite(), System.nanoTime(), bytes);
+
+        final BufferKey key = new BufferKey(buf);
+        synchronized (tracked) {
+            // a stale sample means the buffer came back some other way
+            if (tracked.remove(key) != null) {
+                numEvicted++;
+            }
+            tracked.put(key, sample);
+            expire(sample.acquireTime);
+        }
+
+        totSampled.increment();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Tracking[" + numTracked + "/" + sampleInterval + "]->" +
+            delegate;
+    }
+}
@@ -12,6 +12,7 @@ import java.nio.ByteBuffer;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -224,5 +225,31 @@ public class BufferedWritableChannelTest
         assertEquals(0, mockCache.getCurrentAcquiredBuffers());
     }
 
+    @Test
+    public void testRateLimit() throws IOException
+    {
+        ///
+        /// Tests that direct writes are delayed by the rate limit
+        ///
+
+        subject.setRateLimit(10000, 100);
+
+        final int msgSize = bufferSize * 10;
+        final int numMsgs = 6;
 
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numMsgs; i++)
+        {
+            ByteBuffer msg = mockCache.acquireBuffer(msgSize);
+            subject.write(msg);
+        }
+        long elapsed = (System.nanoTime() - startTime) / 1000000L;
+
+        assertEquals(numMsgs, subject.numSent());
+        assertEquals(msgSize * numMsgs, mockTarget.getBytesWritten());
+
+        // once the 100 byte burst is used, each write waits ~10 msec
+        assertTrue("Messages were written too quickly (" + elapsed +
+                   " msec)", elapsed >= 30);
+    }
 }
@@ -8,6 +8,8 @@ import icecube.daq.payload.IByteBufferCache;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Pipe;
 import java.nio.channels.SelectableChannel;
@@ -15,6 +17,8 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -84,6 +88,51 @@ class SimpleDAQStreamReader
     }
 }
 
+class FailingDAQStreamReader
+    extends DAQStreamReader
+{
+    private int numPushed;
+
+    class FailingChannel
+        extends InputChannel
+    {
+        FailingChannel(IOChannelParent parent, SelectableChannel channel,
+                       String name, IByteBufferCache bufMgr, int bufSize)
+            throws IOException
+        {
+            super(parent, channel, name, bufMgr, bufSize);
+        }
+
+        public void pushPayload(ByteBuffer buf)
+            throws IOException
+        {
+            if (++numPushed > 1) {
+                throw new IOException("Test failure");
+            }
+        }
+
+        public void registerComponentObserver(DAQComponentObserver compObserver,
+                                              String notificationID)
+        {
+            throw new Error("Unimplemented");
+        }
+    }
+
+    FailingDAQStreamReader(String name)
+        throws IOException
+    {
+        super(name);
+    }
+
+    @Override
+    public InputChannel createChannel(SelectableChannel channel, String name,
+                                      IByteBufferCache bufMgr, int bufSize)
+        throws IOException
+    {
+        return new FailingChannel(this, channel, name, bufMgr, bufSize);
+    }
+}
+
 public class DAQStreamReaderTest
     extends LoggingCase
 {
@@ -719,6 +768,165 @@ public class DAQStreamReaderTest
         assertTrue("Observer didn't see sinkStop", observer.gotSinkStop());
     }
 
+    public void testDiscardWhileDisposing()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("Discard");
+
+        Pipe testPipe = Pipe.open();
+        Pipe.SinkChannel sinkChannel = testPipe.sink();
+
+        Pipe.SourceChannel sourceChannel = testPipe.source();
+        sourceChannel.configureBlocking(false);
+
+        MockObserver observer = new MockObserver("Discard");
+
+        tstRdr = new SimpleDAQStreamReader("Discard");
+        tstRdr.registerComponentObserver(observer);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        tstRdr.addDataChannel(sourceChannel, "Discard", bufMgr, 256);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        tstRdr.startDisposing();
+        IOTestUtil.waitUntilDisposing(tstRdr);
+
+        // records larger than the input buffer are skipped, not framed
+        final int[] lens = { 64, 10000, 300, 100000, 16 };
+        for (int i = 0; i < lens.length; i++) {
+            ByteBuffer buf = ByteBuffer.allocate(lens[i]);
+            buf.putInt(0, lens[i]);
+
+            while (buf.hasRemaining()) {
+                sinkChannel.write(buf);
+            }
+        }
+
+        IOTestUtil.sendStopMsg(sinkChannel);
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        assertTrue("Observer didn't see sinkStop", observer.gotSinkStop());
+
+        assertFalse("Disposed records should not be pushed",
+                    tstRdr.hasPayloads());
+        assertEquals("Disposed records should not be counted",
+                     0L, tstRdr.getTotalRecordsReceived());
+        assertEquals("Disposing should not use the buffer cache",
+                     0, bufMgr.getCurrentAcquiredBuffers());
+    }
+
+    public void testFramingQuota()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("Quota");
+
+        Pipe testPipe = Pipe.open();
+        Pipe.SinkChannel sinkChannel = testPipe.sink();
+
+        Pipe.SourceChannel sourceChannel = testPipe.source();
+        sourceChannel.configureBlocking(false);
+
+        MockObserver observer = new MockObserver("Quota");
+
+        tstRdr = new SimpleDAQStreamReader("Quota");
+        tstRdr.registerComponentObserver(observer);
+        tstRdr.setFramingQuota(0, 1);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        InputChannel chan =
+            tstRdr.addDataChannel(sourceChannel, "Quota", bufMgr, 1024);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        // send all the records in one write so they arrive in one read
+        final int numRecs = 10;
+        final int bufLen = 64;
+
+        ByteBuffer buf = ByteBuffer.allocate(numRecs * bufLen);
+        for (int i = 0; i < numRecs; i++) {
+            buf.putInt(i * bufLen, bufLen);
+        }
+        while (buf.hasRemaining()) {
+            sinkChannel.write(buf);
+        }
+
+        int recvCnt = 0;
+        for (int i = 0; i < 20 && recvCnt < numRecs; i++) {
+            recvCnt += harvestBuffers(tstRdr, bufLen, bufMgr);
+        }
+        assertEquals("Bad number of records received", numRecs, recvCnt);
+
+        assertTrue("Each record should need its own pass, not " +
+                   chan.getServicePasses(),
+                   chan.getServicePasses() >= numRecs);
+        assertEquals("Bad number of service times",
+                     1, tstRdr.getServiceNanos().length);
+        assertTrue("Service time was not recorded",
+                   tstRdr.getMaxServiceNanos()[0].longValue() > 0);
+
+        IOTestUtil.sendStopMsg(sinkChannel);
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        assertTrue("Observer didn't see sinkStop", observer.gotSinkStop());
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
+    public void testPendingFailure()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("PendFail");
+
+        Pipe testPipe = Pipe.open();
+        Pipe.SinkChannel sinkChannel = testPipe.sink();
+
+        Pipe.SourceChannel sourceChannel = testPipe.source();
+        sourceChannel.configureBlocking(false);
+
+        FailingDAQStreamReader rdr = new FailingDAQStreamReader("PendFail");
+        rdr.setFramingQuota(0, 1);
+
+        try {
+            rdr.start();
+            IOTestUtil.waitUntilStopped(rdr, "creation");
+
+            rdr.addDataChannel(sourceChannel, "PendFail", bufMgr, 1024);
+
+            rdr.startProcessing();
+            IOTestUtil.waitUntilRunning(rdr);
+
+            // the second record is pushed from the pending pass and fails
+            final int numRecs = 3;
+            final int bufLen = 64;
+
+            ByteBuffer buf = ByteBuffer.allocate(numRecs * bufLen);
+            for (int i = 0; i < numRecs; i++) {
+                buf.putInt(i * bufLen, bufLen);
+            }
+            while (buf.hasRemaining()) {
+                sinkChannel.write(buf);
+            }
+
+            for (int i = 0; i < 100 && sourceChannel.isOpen(); i++) {
+                Thread.sleep(10);
+            }
+            assertFalse("Failed channel was not closed",
+                        sourceChannel.isOpen());
+
+            IOTestUtil.waitUntilStopped(rdr, "failure");
+
+            assertLogMessage("Couldn't push pending records");
+            assertLogMessage("Closed PendFail socket channel");
+            assertNoLogMessages();
+        } finally {
+            rdr.destroyProcessor();
+        }
+    }
+
     public void testGetters()
         throws Exception
     {
@@ -887,6 +1095,66 @@ public class DAQStreamReaderTest
         }
     }
 
+    public void testUnixServer()
+        throws Exception
+    {
+        IByteBufferCache bufMgr = new MockBufferCache("UnixSrvr");
+
+        Path sockPath = Files.createTempFile("UnixServer", ".sock");
+        Files.delete(sockPath);
+
+        tstRdr = new SimpleDAQStreamReader("UnixServer");
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        tstRdr.startServer(bufMgr, UnixDomainSocketAddress.of(sockPath));
+
+        SocketAddress addr = tstRdr.getServerAddress();
+        assertTrue("Bad server address " + addr,
+                   addr instanceof UnixDomainSocketAddress);
+        assertTrue("Socket file " + sockPath + " was not created",
+                   Files.exists(sockPath));
+
+        SocketChannel chan = SocketChannel.open(addr);
+
+        Thread.sleep(100);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        final int bufLen = 64;
+
+        for (int i = 0; i < INPUT_OUTPUT_LOOP_CNT; i++) {
+            ByteBuffer testBuf = bufMgr.acquireBuffer(bufLen);
+            testBuf.putInt(0, bufLen);
+            testBuf.limit(bufLen);
+            testBuf.position(0);
+
+            chan.write(testBuf);
+
+            bufMgr.returnBuffer(testBuf);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            if (tstRdr.getTotalRecordsReceived() >= INPUT_OUTPUT_LOOP_CNT) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        assertEquals("Bad number of records",
+                     INPUT_OUTPUT_LOOP_CNT, tstRdr.getTotalRecordsReceived());
+
+        IOTestUtil.sendStopMsg(chan);
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+
+        tstRdr.destroyProcessor();
+        IOTestUtil.waitUntilDestroyed(tstRdr);
+
+        assertFalse("Socket file " + sockPath + " was not removed",
+                    Files.exists(sockPath));
+    }
+
     /**
      * Test multiple input engine servers.
      */
@@ -0,0 +1,192 @@
+package icecube.daq.io;
+
+import icecube.daq.io.test.LoggingCase;
+import icecube.daq.io.test.MockBufferCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+public class MagazineBufferCacheTest
+    extends LoggingCase
+{
+    /**
+     * Construct an instance of this test.
+     *
+     * @param name the name of the test.
+     */
+    public MagazineBufferCacheTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Create test suite for this class.
+     *
+     * @return the suite of tests declared in this class.
+     */
+    public static Test suite()
+    {
+        return new TestSuite(MagazineBufferCacheTest.class);
+    }
+
+    public void testCrossThread()
+        throws Exception
+    {
+        final MockBufferCache delegate = new MockBufferCache("CrossThread");
+        final MagazineBufferCache cache =
+            new MagazineBufferCache(delegate, 8);
+
+        final ArrayBlockingQueue<ByteBuffer> queue =
+            new ArrayBlockingQueue<ByteBuffer>(100);
+
+        final int numBufs = 10000;
+
+        Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        for (int i = 0; i < numBufs; i++) {
+                            cache.returnBuffer(queue.take());
+                        }
+                    } catch (InterruptedException ie) {
+                        // give up
+                    }
+                }
+            });
+        consumer.start();
+
+        for (int i = 0; i < numBufs; i++) {
+            queue.put(cache.acquireBuffer(100 + (i % 900)));
+        }
+
+        consumer.join();
+
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+        assertEquals("Bad number of acquired bytes",
+                     0L, cache.getCurrentAcquiredBytes());
+        assertEquals("Bad number of returned buffers",
+                     numBufs, cache.getTotalBuffersReturned());
+        assertTrue("Magazines were not recycled through the depot: " +
+                   delegate, delegate.getCurrentAcquiredBuffers() < numBufs);
+
+        cache.flush();
+        assertTrue("Underlying cache is not balanced: " + delegate,
+                   delegate.isBalanced());
+    }
+
+    public void testLarge()
+    {
+        MockBufferCache delegate = new MockBufferCache("Large");
+        MagazineBufferCache cache = new MagazineBufferCache(delegate);
+
+        final int len = 100000;
+
+        ByteBuffer buf = cache.acquireBuffer(len);
+        assertEquals("Bad capacity", len, buf.capacity());
+        assertEquals("Large buffer should come straight from delegate",
+                     1, delegate.getCurrentAcquiredBuffers());
+
+        cache.returnBuffer(buf);
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+        assertTrue("Underlying cache is not balanced: " + delegate,
+                   delegate.isBalanced());
+    }
+
+    public void testParkedLimit()
+    {
+        MockBufferCache delegate = new MockBufferCache("Parked");
+        MagazineBufferCache cache =
+            new MagazineBufferCache(delegate, 4, 4 * 128);
+
+        final int numBufs = 20;
+
+        ByteBuffer[] bufs = new ByteBuffer[numBufs];
+        for (int i = 0; i < numBufs; i++) {
+            bufs[i] = cache.acquireBuffer(100);
+        }
+        for (int i = 0; i < numBufs; i++) {
+            cache.returnBuffer(bufs[i]);
+        }
+
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+        assertTrue("Too many bytes parked: " + cache,
+                   cache.getParkedBytes() <= 4 * 128);
+        assertEquals("Delegate should only hold parked buffers",
+                     cache.getParkedBytes(),
+                     delegate.getCurrentAcquiredBytes());
+
+        cache.flush();
+        assertEquals("Flush should empty the magazines",
+                     0L, cache.getParkedBytes());
+        assertTrue("Underlying cache is not balanced: " + delegate,
+                   delegate.isBalanced());
+    }
+
+    public void testDefaultParkedLimit()
+    {
+        final long maxBytes = 100L * 1024L;
+
+        MockBufferCache delegate = new MockBufferCache("DefLimit", maxBytes);
+        MagazineBufferCache cache = new MagazineBufferCache(delegate, 8);
+
+        ByteBuffer[] bufs = new ByteBuffer[200];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = cache.acquireBuffer(200);
+        }
+        for (int i = 0; i < bufs.length; i++) {
+            cache.returnBuffer(bufs[i]);
+        }
+
+        assertTrue("Parked bytes " + cache.getParkedBytes() +
+                   " exceed a tenth of " + maxBytes,
+                   cache.getParkedBytes() <= maxBytes / 10);
+
+        cache.flush();
+        assertTrue("Underlying cache is not balanced: " + delegate,
+                   delegate.isBalanced());
+    }
+
+    public void testReuse()
+    {
+        MockBufferCache delegate = new MockBufferCache("Reuse");
+        MagazineBufferCache cache = new MagazineBufferCache(delegate, 4);
+
+        ByteBuffer buf = cache.acquireBuffer(100);
+        assertEquals("Bad capacity", 128, buf.capacity());
+        assertEquals("Bad limit", 100, buf.limit());
+        assertEquals("Bad number of acquired bytes",
+                     128L, cache.getCurrentAcquiredBytes());
+        assertEquals("Magazine should be refilled in a batch",
+                     2, delegate.getCurrentAcquiredBuffers());
+
+        cache.returnBuffer(buf);
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+
+        ByteBuffer again = cache.acquireBuffer(120);
+        assertSame("Returned buffer was not reused", buf, again);
+        assertEquals("Bad limit", 120, again.limit());
+        assertEquals("Should not have gone to the delegate",
+                     2, delegate.getCurrentAcquiredBuffers());
+
+        cache.returnBuffer(again);
+
+        cache.flush();
+        assertTrue("Underlying cache is not balanced: " + delegate,
+                   delegate.isBalanced());
+    }
+
+    /**
+     * Main routine which runs text test in standalone mode.
+     *
+     * @param args the arguments with which to execute this method.
+     */
+    public static void main(String[] args)
+    {
+        TestRunner.run(suite());
+    }
+}
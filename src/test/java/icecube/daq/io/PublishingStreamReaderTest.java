@@ -0,0 +1,357 @@
+package icecube.daq.io;
+
+import icecube.daq.io.test.IOTestUtil;
+import icecube.daq.io.test.LoggingCase;
+import icecube.daq.io.test.MockBufferCache;
+import icecube.daq.io.test.MockObserver;
+import icecube.daq.payload.IByteBufferCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.concurrent.Flow;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+class MockSubscriber
+    implements Flow.Subscriber<ByteBuffer>
+{
+    private IByteBufferCache bufMgr;
+    private Flow.Subscription subscription;
+    private ArrayList<Integer> received = new ArrayList<Integer>();
+    private boolean completed;
+    private Throwable error;
+
+    MockSubscriber(IByteBufferCache bufMgr)
+    {
+        this.bufMgr = bufMgr;
+    }
+
+    synchronized Throwable getError()
+    {
+        return error;
+    }
+
+    synchronized int getReceiveCount()
+    {
+        return received.size();
+    }
+
+    synchronized int getReceivedId(int idx)
+    {
+        return received.get(idx);
+    }
+
+    synchronized boolean isCompleted()
+    {
+        return completed;
+    }
+
+    @Override
+    public synchronized void onComplete()
+    {
+        completed = true;
+    }
+
+    @Override
+    public synchronized void onError(Throwable thr)
+    {
+        error = thr;
+    }
+
+    @Override
+    public synchronized void onNext(ByteBuffer buf)
+    {
+        received.add(buf.getInt(4));
+        bufMgr.returnBuffer(buf);
+    }
+
+    @Override
+    public synchronized void onSubscribe(Flow.Subscription subscription)
+    {
+        this.subscription = subscription;
+    }
+
+    void cancel()
+    {
+        subscription.cancel();
+    }
+
+    void request(long n)
+    {
+        subscription.request(n);
+    }
+
+    void waitForCount(int count)
+        throws InterruptedException
+    {
+        for (int i = 0; i < 100 && getReceiveCount() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+}
+
+public class PublishingStreamReaderTest
+    extends LoggingCase
+{
+    private PublishingStreamReader tstRdr;
+
+    /**
+     * Construct an instance of this test.
+     *
+     * @param name the name of the test.
+     */
+    public PublishingStreamReaderTest(String name)
+    {
+        super(name);
+    }
+
+    private static void sendRecords(Pipe.SinkChannel sink, int firstId,
+                                    int numRecs)
+        throws IOException
+    {
+        final int bufLen = 64;
+
+        for (int i = 0; i < numRecs; i++) {
+            ByteBuffer buf = ByteBuffer.allocate(bufLen);
+            buf.putInt(0, bufLen);
+            buf.putInt(4, firstId + i);
+            buf.position(0);
+
+            while (buf.remaining() > 0) {
+                sink.write(buf);
+            }
+        }
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        tstRdr = null;
+    }
+
+    /**
+     * Create test suite for this class.
+     *
+     * @return the suite of tests declared in this class.
+     */
+    public static Test suite()
+    {
+        return new TestSuite(PublishingStreamReaderTest.class);
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        if (tstRdr != null) {
+            tstRdr.destroyProcessor();
+        }
+
+        super.tearDown();
+    }
+
+    public void testDemand()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("Demand");
+
+        Pipe testPipe = Pipe.open();
+        Pipe.SinkChannel sinkChannel = testPipe.sink();
+        sinkChannel.configureBlocking(false);
+        testPipe.source().configureBlocking(false);
+
+        MockObserver observer = new MockObserver("Demand");
+
+        tstRdr = new PublishingStreamReader("Demand");
+        tstRdr.registerComponentObserver(observer);
+
+        MockSubscriber sub = new MockSubscriber(bufMgr);
+        tstRdr.getPublisher().subscribe(sub);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        tstRdr.addDataChannel(testPipe.source(), "Demand", bufMgr, 1024);
+
+        Thread.sleep(100);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        final int numRecs = 10;
+
+        sub.request(2);
+        sendRecords(sinkChannel, 1, numRecs);
+
+        sub.waitForCount(2);
+        Thread.sleep(100);
+        assertEquals("Subscriber should only see requested records",
+                     2, sub.getReceiveCount());
+
+        sub.request(numRecs - 2);
+        sub.waitForCount(numRecs);
+        assertEquals("Bad number of records received",
+                     numRecs, sub.getReceiveCount());
+        for (int i = 0; i < numRecs; i++) {
+            assertEquals("Bad record #" + i, i + 1, sub.getReceivedId(i));
+        }
+
+        assertFalse("Subscriber completed early", sub.isCompleted());
+
+        IOTestUtil.sendStopMsg(sinkChannel);
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
+
+        assertTrue("Subscriber was not completed", sub.isCompleted());
+        assertNull("Unexpected error " + sub.getError(), sub.getError());
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
+    public void testChannelPublisher()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("ChanPub");
+
+        Pipe onePipe = Pipe.open();
+        onePipe.sink().configureBlocking(false);
+        onePipe.source().configureBlocking(false);
+
+        Pipe twoPipe = Pipe.open();
+        twoPipe.sink().configureBlocking(false);
+        twoPipe.source().configureBlocking(false);
+
+        tstRdr = new PublishingStreamReader("ChanPub");
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        InputChannel oneChan =
+            tstRdr.addDataChannel(onePipe.source(), "One", bufMgr, 1024);
+        tstRdr.addDataChannel(twoPipe.source(), "Two", bufMgr, 1024);
+
+        MockSubscriber oneSub = new MockSubscriber(bufMgr);
+        tstRdr.getPublisher(oneChan).subscribe(oneSub);
+
+        MockSubscriber mergedSub = new MockSubscriber(bufMgr);
+        tstRdr.getPublisher().subscribe(mergedSub);
+
+        // a second subscriber should be rejected
+        MockSubscriber extraSub = new MockSubscriber(bufMgr);
+        tstRdr.getPublisher().subscribe(extraSub);
+        assertNotNull("Second subscriber was not rejected",
+                      extraSub.getError());
+
+        Thread.sleep(100);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        oneSub.request(Long.MAX_VALUE);
+        mergedSub.request(Long.MAX_VALUE);
+
+        final int numRecs = 5;
+
+        sendRecords(onePipe.sink(), 100, numRecs);
+        sendRecords(twoPipe.sink(), 200, numRecs);
+
+        oneSub.waitForCount(numRecs);
+        mergedSub.waitForCount(numRecs);
+
+        assertEquals("Bad number of channel records",
+                     numRecs, oneSub.getReceiveCount());
+        assertEquals("Bad number of merged records",
+                     numRecs, mergedSub.getReceiveCount());
+        for (int i = 0; i < numRecs; i++) {
+            assertEquals("Bad channel record #" + i,
+                         100 + i, oneSub.getReceivedId(i));
+            assertEquals("Bad merged record #" + i,
+                         200 + i, mergedSub.getReceivedId(i));
+        }
+
+        IOTestUtil.sendStopMsg(onePipe.sink());
+        for (int i = 0; i < 100 && !oneSub.isCompleted(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("Channel subscriber was not completed",
+                   oneSub.isCompleted());
+        assertFalse("Merged subscriber completed early",
+                    mergedSub.isCompleted());
+
+        IOTestUtil.sendStopMsg(twoPipe.sink());
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+
+        assertTrue("Merged subscriber was not completed",
+                   mergedSub.isCompleted());
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
+    public void testCancel()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("Cancel");
+
+        Pipe testPipe = Pipe.open();
+        Pipe.SinkChannel sinkChannel = testPipe.sink();
+        sinkChannel.configureBlocking(false);
+        testPipe.source().configureBlocking(false);
+
+        MockObserver observer = new MockObserver("Cancel");
+
+        tstRdr = new PublishingStreamReader("Cancel");
+        tstRdr.registerComponentObserver(observer);
+
+        MockSubscriber sub = new MockSubscriber(bufMgr);
+        tstRdr.getPublisher().subscribe(sub);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        tstRdr.addDataChannel(testPipe.source(), "Cancel", bufMgr, 1024);
+
+        Thread.sleep(100);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        final int numRecs = 10;
+
+        sub.request(2);
+        sendRecords(sinkChannel, 1, numRecs);
+
+        sub.waitForCount(2);
+        Thread.sleep(100);
+        assertEquals("Subscriber should only see requested records",
+                     2, sub.getReceiveCount());
+
+        // cancel while the channel is paused with records queued
+        sub.cancel();
+
+        sendRecords(sinkChannel, numRecs + 1, numRecs);
+        IOTestUtil.sendStopMsg(sinkChannel);
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
+
+        assertEquals("Cancelled subscriber should not see more records",
+                     2, sub.getReceiveCount());
+        assertFalse("Cancelled subscriber was completed",
+                    sub.isCompleted());
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
+    /**
+     * Main routine which runs text test in standalone mode.
+     *
+     * @param args the arguments with which to execute this method.
+     */
+    public static void main(String[] args)
+    {
+        TestRunner.run(suite());
+    }
+}
@@ -15,7 +15,9 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -316,6 +318,336 @@ public class PushStreamReaderTest
         assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
     }
 
+    public void testLocalChannel()
+        throws Exception
+    {
+        // buffer caching managers
+        MockBufferCache bufMgr = new MockBufferCache("LocalIn");
+        MockBufferCache otherMgr = new MockBufferCache("LocalOther");
+
+        MockObserver observer = new MockObserver("Local");
+
+        tstRdr = new MockPushReader("Local", bufMgr);
+        tstRdr.registerComponentObserver(observer);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        // one channel shares the reader's cache, the other must be copied
+        LocalChannel shared = new LocalChannel();
+        LocalChannel copied = new LocalChannel();
+        tstRdr.addDataChannel(shared, "Shared", bufMgr);
+        tstRdr.addDataChannel(copied, "Copied", bufMgr);
+
+        SimpleOutputEngine engine = new SimpleOutputEngine("Local", 0, "test");
+        QueuedOutputChannel sharedOut =
+            engine.addDataChannel(shared, bufMgr, "Shared");
+        QueuedOutputChannel copiedOut =
+            engine.addDataChannel(copied, otherMgr, "Copied");
+
+        Thread.sleep(100);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        final int bufLen = 64;
+
+        for (int i = 0; i < INPUT_OUTPUT_LOOP_CNT; i++) {
+            ByteBuffer buf = bufMgr.acquireBuffer(bufLen);
+            buf.putInt(0, bufLen);
+            buf.limit(bufLen);
+            buf.position(0);
+            sharedOut.receiveByteBuffer(buf);
+
+            ByteBuffer other = otherMgr.acquireBuffer(bufLen);
+            other.putInt(0, bufLen);
+            other.limit(bufLen);
+            other.position(0);
+            copiedOut.receiveByteBuffer(other);
+        }
+
+        for (int i = 0; i < 200 &&
+                 tstRdr.getReceiveCount() < INPUT_OUTPUT_LOOP_CNT * 2; i++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("Bad number of records received",
+                     INPUT_OUTPUT_LOOP_CNT * 2, tstRdr.getReceiveCount());
+        assertTrue("Reader cache is not balanced: " + bufMgr,
+                   bufMgr.isBalanced());
+        assertTrue("Sender cache is not balanced: " + otherMgr,
+                   otherMgr.isBalanced());
+
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        IOTestUtil.waitUntilStopped(engine, "stop msg");
+        assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
+    }
+
+    public void testLocalBeforeStart()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("EarlyIn");
+
+        MockObserver observer = new MockObserver("Early");
+
+        tstRdr = new MockPushReader("Early", bufMgr);
+        tstRdr.registerComponentObserver(observer);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        LocalChannel local = new LocalChannel();
+        tstRdr.addDataChannel(local, "Early", bufMgr);
+
+        SimpleOutputEngine engine = new SimpleOutputEngine("Early", 0, "test");
+        QueuedOutputChannel outChan =
+            engine.addDataChannel(local, bufMgr, "Early");
+
+        // the sender starts before the reader
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        final int bufLen = 64;
+        final int numRecs = 10;
+
+        for (int i = 0; i < numRecs; i++) {
+            ByteBuffer buf = bufMgr.acquireBuffer(bufLen);
+            buf.putInt(0, bufLen);
+            buf.limit(bufLen);
+            buf.position(0);
+            outChan.receiveByteBuffer(buf);
+        }
+
+        Thread.sleep(100);
+        assertEquals("Records were pushed before the reader started",
+                     0, tstRdr.getReceiveCount());
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        for (int i = 0; i < 200 && tstRdr.getReceiveCount() < numRecs; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("Bad number of records received",
+                     numRecs, tstRdr.getReceiveCount());
+        assertTrue("Reader cache is not balanced: " + bufMgr,
+                   bufMgr.isBalanced());
+
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        IOTestUtil.waitUntilStopped(engine, "stop msg");
+        assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
+    }
+
+    public void testCreditFlowControl()
+        throws Exception
+    {
+        // buffer caching managers
+        MockBufferCache bufMgr = new MockBufferCache("CreditIn");
+        MockBufferCache outMgr = new MockBufferCache("CreditOut");
+
+        MockObserver observer = new MockObserver("Credit");
+
+        tstRdr = new MockPushReader("Credit", bufMgr);
+        tstRdr.registerComponentObserver(observer);
+        tstRdr.setCreditWindow(256, 2);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        tstRdr.startServer(bufMgr);
+
+        SimpleOutputEngine engine =
+            new SimpleOutputEngine("Credit", 0, "test");
+        engine.setCreditFlowControl(true);
+
+        SocketChannel sock =
+            SocketChannel.open(new InetSocketAddress("localhost",
+                                                     tstRdr.getServerPort()));
+        sock.configureBlocking(false);
+
+        QueuedOutputChannel outChan = engine.connect(outMgr, sock, 1);
+
+        Thread.sleep(100);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        final int bufLen = 64;
+        final int numRecs = 50;
+
+        // the window only allows 2 records in flight
+        for (int i = 0; i < numRecs; i++) {
+            ByteBuffer buf = outMgr.acquireBuffer(bufLen);
+            buf.putInt(0, bufLen);
+            buf.limit(bufLen);
+            buf.position(0);
+            outChan.receiveByteBuffer(buf);
+        }
+
+        for (int i = 0; i < 200 && tstRdr.getReceiveCount() < numRecs; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("Bad number of records received",
+                     numRecs, tstRdr.getReceiveCount());
+
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        IOTestUtil.waitUntilStopped(engine, "stop msg");
+        assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
+
+        assertTrue("Reader cache is not balanced: " + bufMgr,
+                   bufMgr.isBalanced());
+        assertTrue("Sender cache is not balanced: " + outMgr,
+                   outMgr.isBalanced());
+    }
+
+    public void testBatchPush()
+        throws Exception
+    {
+        final MockBufferCache bufMgr = new MockBufferCache("Batch");
+
+        final Pipe testPipe = Pipe.open();
+        testPipe.source().configureBlocking(false);
+
+        final ArrayList<Integer> batchSizes = new ArrayList<Integer>();
+
+        MockObserver observer = new MockObserver("Batch");
+
+        tstRdr = new MockPushReader("Batch", bufMgr) {
+                @Override
+                public void pushBuffers(List<ByteBuffer> bufs)
+                    throws IOException
+                {
+                    synchronized (batchSizes) {
+                        batchSizes.add(bufs.size());
+                    }
+                    super.pushBuffers(bufs);
+                }
+            };
+        tstRdr.registerComponentObserver(observer);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        tstRdr.addDataChannel(testPipe.source(), "Batch", bufMgr, 1024);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        // send several records in one write so they arrive in one read
+        final int numRecs = 10;
+        final int recLen = 64;
+
+        ByteBuffer buf = ByteBuffer.allocate(numRecs * recLen);
+        for (int i = 0; i < numRecs; i++) {
+            buf.putInt(i * recLen, recLen);
+        }
+        while (buf.remaining() > 0) {
+            testPipe.sink().write(buf);
+        }
+
+        for (int i = 0; i < 200 && tstRdr.getReceiveCount() < numRecs; i++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("Bad number of records received",
+                     numRecs, tstRdr.getReceiveCount());
+        assertEquals("Bad number of dequeued messages",
+                     (long) numRecs, tstRdr.getDequeuedMessages());
+
+        int maxBatch = 0;
+        synchronized (batchSizes) {
+            assertEquals("Bad number of dequeued batches",
+                         (long) batchSizes.size(),
+                         tstRdr.getDequeuedBatches());
+            for (Integer size : batchSizes) {
+                maxBatch = Math.max(maxBatch, size.intValue());
+            }
+        }
+        assertTrue("Records were not batched: " + batchSizes, maxBatch > 1);
+
+        IOTestUtil.sendStopMsg(testPipe.sink());
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
+
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
+    public void testLargeRecords()
+        throws Exception
+    {
+        final MockBufferCache bufMgr = new MockBufferCache("Large");
+
+        final Pipe testPipe = Pipe.open();
+        testPipe.source().configureBlocking(false);
+
+        final ArrayList<Integer> badLengths = new ArrayList<Integer>();
+
+        MockObserver observer = new MockObserver("Large");
+
+        tstRdr = new MockPushReader("Large", bufMgr) {
+                @Override
+                public void pushBuffer(ByteBuffer bb)
+                    throws IOException
+                {
+                    // each record ends with a copy of its length
+                    final int len = bb.getInt(0);
+                    if (bb.limit() != len || bb.getInt(len - 4) != len) {
+                        badLengths.add(len);
+                    }
+                    super.pushBuffer(bb);
+                }
+            };
+        tstRdr.registerComponentObserver(observer);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        InputChannel chan =
+            tstRdr.addDataChannel(testPipe.source(), "Large", bufMgr, 1024);
+        assertEquals("Bad default threshold",
+                     1024, chan.getDirectReadThreshold());
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        final int[] lens = { 100, 50000, 64, 1024, 200000, 1023, 3000 };
+
+        for (int i = 0; i < lens.length; i++) {
+            ByteBuffer buf = ByteBuffer.allocate(lens[i]);
+            buf.putInt(0, lens[i]);
+            buf.putInt(lens[i] - 4, lens[i]);
+            buf.position(0);
+
+            while (buf.remaining() > 0) {
+                testPipe.sink().write(buf);
+            }
+        }
+
+        for (int i = 0; i < 200 && tstRdr.getReceiveCount() < lens.length;
+             i++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("Bad number of records received",
+                     lens.length, tstRdr.getReceiveCount());
+        assertEquals("Bad records " + badLengths, 0, badLengths.size());
+
+        IOTestUtil.sendStopMsg(testPipe.sink());
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
+
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
     /**
      * Main routine which runs text test in standalone mode.
      *
@@ -0,0 +1,112 @@
+package icecube.daq.io;
+
+import icecube.daq.io.test.LoggingCase;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+public class RecordDiscarderTest
+    extends LoggingCase
+{
+    /**
+     * Construct an instance of this test.
+     *
+     * @param name the name of the test.
+     */
+    public RecordDiscarderTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Create test suite for this class.
+     *
+     * @return the suite of tests declared in this class.
+     */
+    public static Test suite()
+    {
+        return new TestSuite(RecordDiscarderTest.class);
+    }
+
+    public void testSplitRecords()
+    {
+        final int[] lens = { 16, 100, 8, 4 };
+
+        int total = 0;
+        for (int i = 0; i < lens.length; i++) {
+            total += lens[i];
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(total + 20);
+        for (int i = 0; i < lens.length; i++) {
+            data.putInt(data.position(), lens[i]);
+            data.position(data.position() + lens[i]);
+        }
+        // junk after the stop message must be ignored
+        data.putInt(12);
+        data.flip();
+
+        RecordDiscarder discarder = new RecordDiscarder();
+
+        // feed the data in awkward pieces, as a socket might
+        ByteBuffer scratch = ByteBuffer.allocate(7);
+        boolean gotStop = false;
+        while (!gotStop && data.hasRemaining()) {
+            while (scratch.hasRemaining() && data.hasRemaining()) {
+                scratch.put(data.get());
+            }
+
+            scratch.flip();
+            gotStop = discarder.discard(scratch);
+            scratch.compact();
+        }
+
+        assertTrue("Stop message was not found", gotStop);
+        assertEquals("Bad number of discarded records",
+                     3L, discarder.getRecordsDiscarded());
+        assertEquals("Bad number of discarded bytes",
+                     (long) (total - 4), discarder.getBytesDiscarded());
+    }
+
+    public void testBogusLength()
+    {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        buf.putInt(0);
+        buf.putInt(8);
+        buf.putInt(99);
+        buf.putInt(4);
+        buf.flip();
+
+        RecordDiscarder discarder = new RecordDiscarder();
+        assertTrue("Stop message was not found", discarder.discard(buf));
+        assertEquals("Bad number of discarded records",
+                     2L, discarder.getRecordsDiscarded());
+    }
+
+    public void testSkip()
+    {
+        ByteBuffer buf = ByteBuffer.allocate(14);
+        buf.position(10);
+        buf.putInt(4);
+        buf.flip();
+
+        RecordDiscarder discarder = new RecordDiscarder();
+        discarder.skip(10);
+        assertTrue("Stop message was not found", discarder.discard(buf));
+        assertEquals("Bad number of discarded bytes",
+                     10L, discarder.getBytesDiscarded());
+    }
+
+    /**
+     * Main routine which runs text test in standalone mode.
+     *
+     * @param args the arguments with which to execute this method.
+     */
+    public static void main(String[] args)
+    {
+        TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,393 @@
+package icecube.daq.io;
+
+import icecube.daq.io.test.LoggingCase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+class MockTarget
+    implements ReverseConnector.Target
+{
+    private SocketAddress addr;
+    private SocketChannel chan;
+
+    MockTarget(SocketAddress addr)
+    {
+        this.addr = addr;
+    }
+
+    void close()
+        throws IOException
+    {
+        if (chan != null) {
+            chan.close();
+        }
+    }
+
+    @Override
+    public synchronized void connected(SocketChannel chan)
+        throws IOException
+    {
+        this.chan = chan;
+    }
+
+    @Override
+    public SocketAddress getAddress()
+    {
+        return addr;
+    }
+
+    synchronized SocketChannel getChannel()
+    {
+        return chan;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MockTarget[" + addr + "]";
+    }
+}
+
+class FailingTarget
+    extends MockTarget
+{
+    private Throwable thr;
+
+    FailingTarget(SocketAddress addr, Throwable thr)
+    {
+        super(addr);
+
+        this.thr = thr;
+    }
+
+    @Override
+    public void connected(SocketChannel chan)
+        throws IOException
+    {
+        if (thr instanceof Error) {
+            throw (Error) thr;
+        }
+
+        throw (RuntimeException) thr;
+    }
+}
+
+public class ReverseConnectorTest
+    extends LoggingCase
+{
+    private ArrayList<ServerSocketChannel> servers;
+    private ArrayList<MockTarget> targets;
+
+    /**
+     * Construct an instance of this test.
+     *
+     * @param name the name of the test.
+     */
+    public ReverseConnectorTest(String name)
+    {
+        super(name);
+    }
+
+    private MockTarget addTarget(SocketAddress addr)
+    {
+        MockTarget tgt = new MockTarget(addr);
+        targets.add(tgt);
+        return tgt;
+    }
+
+    private ServerSocketChannel listen(int port)
+        throws IOException
+    {
+        ServerSocketChannel ssChan = ServerSocketChannel.open();
+        ssChan.socket().setReuseAddress(true);
+        ssChan.socket().bind(new InetSocketAddress("localhost", port));
+        servers.add(ssChan);
+        return ssChan;
+    }
+
+    /**
+     * Find a port which nothing is listening on.
+     *
+     * @return unused port
+     */
+    private static int findUnusedPort()
+        throws IOException
+    {
+        ServerSocketChannel ssChan = ServerSocketChannel.open();
+        ssChan.socket().setReuseAddress(true);
+        ssChan.socket().bind(new InetSocketAddress("localhost", 0));
+        final int port = ssChan.socket().getLocalPort();
+        ssChan.close();
+        return port;
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        servers = new ArrayList<ServerSocketChannel>();
+        targets = new ArrayList<MockTarget>();
+    }
+
+    /**
+     * Create test suite for this class.
+     *
+     * @return the suite of tests declared in this class.
+     */
+    public static Test suite()
+    {
+        return new TestSuite(ReverseConnectorTest.class);
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        for (MockTarget tgt : targets) {
+            tgt.close();
+        }
+
+        for (ServerSocketChannel ssChan : servers) {
+            ssChan.close();
+        }
+
+        super.tearDown();
+    }
+
+    public void testConcurrent()
+        throws Exception
+    {
+        final int numTargets = 5;
+
+        for (int i = 0; i < numTargets; i++) {
+            ServerSocketChannel ssChan = listen(0);
+            final int port = ssChan.socket().getLocalPort();
+
+            // alternate between resolved and unresolved addresses
+            if ((i & 1) == 0) {
+                addTarget(new InetSocketAddress("localhost", port));
+            } else {
+                addTarget(InetSocketAddress.createUnresolved("localhost",
+                                                             port));
+            }
+        }
+
+        ReverseConnector connector =
+            new ReverseConnector("Concurrent", targets);
+        connector.start().get(10, TimeUnit.SECONDS);
+
+        for (int i = 0; i < numTargets; i++) {
+            SocketChannel chan = targets.get(i).getChannel();
+            assertNotNull("Target#" + i + " was not connected", chan);
+            assertTrue("Target#" + i + " is not connected",
+                       chan.isConnected());
+
+            SocketChannel peer = servers.get(i).accept();
+            assertNotNull("Server#" + i + " saw no connection", peer);
+            peer.close();
+        }
+    }
+
+    public void testRetryRefused()
+        throws Exception
+    {
+        final int port = findUnusedPort();
+
+        MockTarget tgt = addTarget(new InetSocketAddress("localhost", port));
+
+        ReverseConnector connector = new ReverseConnector("Retry", targets);
+        CompletableFuture<Void> future = connector.start();
+
+        // let the first few attempts be refused
+        Thread.sleep(ReverseConnector.INITIAL_BACKOFF_MSEC * 5);
+        assertFalse("Connected before the server was listening",
+                    future.isDone());
+
+        ServerSocketChannel ssChan = listen(port);
+
+        future.get(10, TimeUnit.SECONDS);
+
+        assertNotNull("Target was not connected", tgt.getChannel());
+
+        SocketChannel peer = ssChan.accept();
+        assertNotNull("Server saw no connection", peer);
+        peer.close();
+    }
+
+    public void testMaxAttempts()
+        throws Exception
+    {
+        final int port = findUnusedPort();
+
+        MockTarget good;
+        {
+            ServerSocketChannel ssChan = listen(0);
+            good = addTarget(new InetSocketAddress("localhost",
+                                                   ssChan.socket().
+                                                   getLocalPort()));
+        }
+        MockTarget bad = addTarget(new InetSocketAddress("localhost", port));
+
+        ReverseConnector connector = new ReverseConnector("MaxTry", targets);
+        try {
+            connector.start().get(20, TimeUnit.SECONDS);
+            fail("Connection to unused port " + port + " succeeded");
+        } catch (ExecutionException ee) {
+            assertTrue("Unexpected cause " + ee.getCause(),
+                       ee.getCause() instanceof IOException);
+            assertTrue("Bad message \"" + ee.getCause().getMessage() + "\"",
+                       ee.getCause().getMessage().startsWith("Could not" +
+                                                             " connect " +
+                                                             bad +
+                                                             " (1 of 2"));
+        }
+
+        assertNotNull("Good target was not connected", good.getChannel());
+        assertNull("Bad target was connected", bad.getChannel());
+    }
+
+    public void testConnectTimeout()
+        throws Exception
+    {
+        // a full accept backlog makes later connects hang
+        ServerSocketChannel ssChan = ServerSocketChannel.open();
+        ssChan.socket().bind(new InetSocketAddress("localhost", 0), 1);
+        servers.add(ssChan);
+
+        InetSocketAddress addr =
+            new InetSocketAddress("localhost", ssChan.socket().getLocalPort());
+
+        ArrayList<SocketChannel> fillers = new ArrayList<SocketChannel>();
+        try {
+            SocketChannel hung = null;
+            for (int i = 0; i < 10 && hung == null; i++) {
+                SocketChannel chan = SocketChannel.open();
+                chan.configureBlocking(false);
+                fillers.add(chan);
+                if (!chan.connect(addr)) {
+                    Thread.sleep(50);
+                    if (!chan.finishConnect()) {
+                        hung = chan;
+                    }
+                }
+            }
+
+            if (hung == null) {
+                // this system never lets a connect hang; nothing to test
+                return;
+            }
+
+            MockTarget tgt = addTarget(addr);
+
+            ReverseConnector connector =
+                new ReverseConnector("Timeout", targets);
+            connector.setConnectTimeout(5);
+
+            try {
+                connector.start().get(20, TimeUnit.SECONDS);
+                fail("Connection to full server succeeded");
+            } catch (ExecutionException ee) {
+                assertTrue("Unexpected cause " + ee.getCause() + "/" +
+                           ee.getCause().getCause(),
+                           ee.getCause().getCause() instanceof
+                           SocketTimeoutException);
+            }
+
+            assertNull("Target was connected", tgt.getChannel());
+        } finally {
+            for (SocketChannel chan : fillers) {
+                chan.close();
+            }
+        }
+    }
+
+    private void checkConnectedFailure(Throwable thr)
+        throws Exception
+    {
+        MockTarget good;
+        {
+            ServerSocketChannel ssChan = listen(0);
+            good = addTarget(new InetSocketAddress("localhost",
+                                                   ssChan.socket().
+                                                   getLocalPort()));
+        }
+
+        ServerSocketChannel ssChan = listen(0);
+        MockTarget bad =
+            new FailingTarget(new InetSocketAddress("localhost",
+                                                    ssChan.socket().
+                                                    getLocalPort()), thr);
+        targets.add(bad);
+
+        ReverseConnector connector = new ReverseConnector("Failing", targets);
+        try {
+            connector.start().get(10, TimeUnit.SECONDS);
+            fail("Failed target was connected");
+        } catch (ExecutionException ee) {
+            assertTrue("Unexpected cause " + ee.getCause(),
+                       ee.getCause() instanceof IOException);
+            assertSame("Unexpected cause", thr, ee.getCause().getCause());
+        }
+
+        assertNotNull("Good target was not connected", good.getChannel());
+    }
+
+    public void testConnectedRuntimeException()
+        throws Exception
+    {
+        checkConnectedFailure(new RuntimeException("Not IDLE"));
+    }
+
+    public void testConnectedError()
+        throws Exception
+    {
+        checkConnectedFailure(new Error("Cannot create channel"));
+    }
+
+    public void testStop()
+        throws Exception
+    {
+        final int port = findUnusedPort();
+
+        addTarget(new InetSocketAddress("localhost", port));
+
+        ReverseConnector connector = new ReverseConnector("Stop", targets);
+        CompletableFuture<Void> future = connector.start();
+
+        Thread.sleep(ReverseConnector.INITIAL_BACKOFF_MSEC * 3);
+        connector.stop();
+
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Stopped connector succeeded");
+        } catch (ExecutionException ee) {
+            assertTrue("Bad message \"" + ee.getCause().getMessage() + "\"",
+                       ee.getCause().getMessage().startsWith("Gave up on 1"));
+        }
+    }
+
+    /**
+     * Main routine which runs text test in standalone mode.
+     *
+     * @param args the arguments with which to execute this method.
+     */
+    public static void main(String[] args)
+    {
+        TestRunner.run(suite());
+    }
+}
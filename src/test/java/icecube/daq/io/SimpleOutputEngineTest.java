@@ -713,6 +713,665 @@ public class SimpleOutputEngineTest
         assertTrue("ByteBufferCache is not balanced", cacheMgr.isBalanced());
     }
 
+    public void testMulticast()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("Multicast");
+
+        final int numChans = 3;
+
+        Pipe[] pipes = new Pipe[numChans];
+
+        engine = new SimpleOutputEngine("Multicast", 0, "test");
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        SimpleOutputEngine.MulticastGroup group =
+            engine.createMulticastGroup("MCGroup", cacheMgr);
+        for (int i = 0; i < numChans; i++) {
+            pipes[i] = Pipe.open();
+            pipes[i].sink().configureBlocking(false);
+            pipes[i].source().configureBlocking(true);
+
+            group.addChannel(engine.addDataChannel(pipes[i].sink(), cacheMgr,
+                                                   "MC" + i));
+        }
+        assertEquals("Bad number of group members",
+                     numChans, group.getNumberOfChannels());
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        final int bufLen = 64;
+        final int numSent = 10;
+
+        for (int i = 0; i < numSent; i++) {
+            ByteBuffer testOutBuf = cacheMgr.acquireBuffer(bufLen);
+            testOutBuf.putInt(0, bufLen);
+            testOutBuf.putInt(4, i);
+            testOutBuf.limit(bufLen);
+            testOutBuf.position(0);
+
+            group.receiveByteBuffer(testOutBuf);
+        }
+
+        ByteBuffer testInBuf = ByteBuffer.allocate(bufLen);
+        for (int c = 0; c < numChans; c++) {
+            for (int i = 0; i < numSent; i++) {
+                testInBuf.clear();
+                while (testInBuf.position() < bufLen) {
+                    pipes[c].source().read(testInBuf);
+                }
+
+                assertEquals("Bad length for chan#" + c + " rec#" + i,
+                             bufLen, testInBuf.getInt(0));
+                assertEquals("Bad record for chan#" + c + " rec#" + i,
+                             i, testInBuf.getInt(4));
+            }
+        }
+
+        for (int i = 0; i < 100 && !cacheMgr.isBalanced(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("ByteBufferCache is not balanced: " + cacheMgr,
+                   cacheMgr.isBalanced());
+        assertEquals("Bad number of group records",
+                     numSent, group.getRecordsSent());
+
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(engine, "send last");
+    }
+
+    public void testMulticastRejectsLocal()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("MCLocal");
+
+        engine = new SimpleOutputEngine("MCLocal", 0, "test");
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        SimpleOutputEngine.MulticastGroup group =
+            engine.createMulticastGroup("MCLocal", cacheMgr);
+
+        QueuedOutputChannel localChan =
+            engine.addDataChannel(new LocalChannel(), cacheMgr, "Local");
+        try {
+            group.addChannel(localChan);
+            fail("Multicast group accepted an in-process channel");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+        assertEquals("Bad number of group members",
+                     0, group.getNumberOfChannels());
+    }
+
+    public void testMulticastClosedMember()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("MCClosed");
+
+        final int numChans = 2;
+
+        Pipe[] pipes = new Pipe[numChans];
+
+        engine = new SimpleOutputEngine("MCClosed", 0, "test");
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        SimpleOutputEngine.MulticastGroup group =
+            engine.createMulticastGroup("MCClosed", cacheMgr);
+
+        QueuedOutputChannel[] chans = new QueuedOutputChannel[numChans];
+        for (int i = 0; i < numChans; i++) {
+            pipes[i] = Pipe.open();
+            pipes[i].sink().configureBlocking(false);
+
+            chans[i] = engine.addDataChannel(pipes[i].sink(), cacheMgr,
+                                             "MCClosed" + i);
+            group.addChannel(chans[i]);
+        }
+
+        final int bufLen = 64;
+        final int numSent = 5;
+
+        // nothing is written before the engine starts, so records queue up
+        for (int i = 0; i < numSent; i++) {
+            ByteBuffer testOutBuf = cacheMgr.acquireBuffer(bufLen);
+            testOutBuf.putInt(0, bufLen);
+            testOutBuf.putInt(4, i);
+            testOutBuf.limit(bufLen);
+            testOutBuf.position(0);
+
+            group.receiveByteBuffer(testOutBuf);
+        }
+
+        assertEquals("Bad number of queued records",
+                     numSent, cacheMgr.getCurrentAcquiredBuffers());
+
+        // closing one member must not release records the other still has
+        ((SimpleOutputEngine.SimpleOutputChannel) chans[0]).close();
+        assertEquals("Records released too early",
+                     numSent, cacheMgr.getCurrentAcquiredBuffers());
+
+        // records sent after a member has closed only wait for the others
+        ByteBuffer lateBuf = cacheMgr.acquireBuffer(bufLen);
+        lateBuf.putInt(0, bufLen);
+        lateBuf.limit(bufLen);
+        lateBuf.position(0);
+        group.receiveByteBuffer(lateBuf);
+
+        ((SimpleOutputEngine.SimpleOutputChannel) chans[1]).close();
+        assertTrue("ByteBufferCache is not balanced: " + cacheMgr,
+                   cacheMgr.isBalanced());
+
+        for (int i = 0; i < numChans; i++) {
+            assertLogMessage("Queuing " + bufLen + "-byte buffer after" +
+                             " engine ");
+        }
+        assertNoLogMessages();
+    }
+
+    public void testBurstyOutput()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("Bursty");
+
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        pipe.source().configureBlocking(true);
+
+        engine = new SimpleOutputEngine("Bursty", 0, "test");
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        engine.addDataChannel(pipe.sink(), cacheMgr, "Bursty");
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        QueuedOutputChannel outChan =
+            (QueuedOutputChannel) engine.getChannel();
+
+        final int bufLen = 32;
+        final int burstLen = 5;
+
+        ByteBuffer testInBuf = ByteBuffer.allocate(bufLen);
+        for (int b = 0; b < 4; b++) {
+            for (int i = 0; i < burstLen; i++) {
+                ByteBuffer testOutBuf = cacheMgr.acquireBuffer(bufLen);
+                testOutBuf.putInt(0, bufLen);
+                testOutBuf.putInt(4, (b * burstLen) + i);
+                testOutBuf.limit(bufLen);
+                testOutBuf.position(0);
+
+                outChan.receiveByteBuffer(testOutBuf);
+            }
+
+            for (int i = 0; i < burstLen; i++) {
+                testInBuf.clear();
+                while (testInBuf.position() < bufLen) {
+                    pipe.source().read(testInBuf);
+                }
+
+                assertEquals("Bad record for burst#" + b + " rec#" + i,
+                             (b * burstLen) + i, testInBuf.getInt(4));
+            }
+
+            // let the engine go idle between bursts
+            Thread.sleep(300);
+        }
+
+        assertTrue("ByteBufferCache is not balanced: " + cacheMgr,
+                   cacheMgr.isBalanced());
+
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(engine, "send last");
+    }
+
+    public void testCreditStall()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("Credit");
+
+        Selector sel = Selector.open();
+
+        int port = createServer(sel);
+
+        engine = new SimpleOutputEngine("Credit", 0, "test");
+        engine.setCreditFlowControl(true);
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        SocketChannel sock =
+            SocketChannel.open(new InetSocketAddress("localhost", port));
+        sock.configureBlocking(false);
+
+        QueuedOutputChannel outChan = engine.connect(cacheMgr, sock, 1);
+
+        SocketChannel chan = acceptChannel(sel);
+        chan.configureBlocking(false);
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        final int bufLen = 40;
+        final int numRecs = 5;
+
+        for (int i = 0; i < numRecs; i++) {
+            ByteBuffer testOutBuf = cacheMgr.acquireBuffer(bufLen);
+            testOutBuf.putInt(0, bufLen);
+            testOutBuf.putInt(4, i);
+            testOutBuf.limit(bufLen);
+            testOutBuf.position(0);
+
+            outChan.receiveByteBuffer(testOutBuf);
+        }
+
+        ByteBuffer testInBuf = ByteBuffer.allocate(bufLen * numRecs);
+
+        // nothing should be sent until credit is granted
+        Thread.sleep(100);
+        assertEquals("Records were sent without credit",
+                     0, chan.read(testInBuf));
+
+        ByteBuffer grant = ByteBuffer.allocate(CreditGrant.LENGTH);
+        CreditGrant.put(grant, 2, 1000);
+        grant.flip();
+        chan.write(grant);
+
+        for (int i = 0; i < 100 && testInBuf.position() < bufLen * 2; i++) {
+            Thread.sleep(10);
+            chan.read(testInBuf);
+        }
+        Thread.sleep(100);
+        chan.read(testInBuf);
+        assertEquals("Bad number of bytes sent for 2-record grant",
+                     bufLen * 2, testInBuf.position());
+        assertEquals("Bad second record", 1, testInBuf.getInt(bufLen + 4));
+
+        grant.clear();
+        CreditGrant.put(grant, numRecs, 1000);
+        grant.flip();
+        chan.write(grant);
+
+        for (int i = 0; i < 100 && testInBuf.hasRemaining(); i++) {
+            Thread.sleep(10);
+            chan.read(testInBuf);
+        }
+        assertFalse("Remaining records were not sent",
+                    testInBuf.hasRemaining());
+
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(engine, "send last");
+
+        assertTrue("ByteBufferCache is not balanced: " + cacheMgr,
+                   cacheMgr.isBalanced());
+    }
+
+    public void testSpinSelect()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("Spin");
+
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        pipe.source().configureBlocking(true);
+
+        engine = new SimpleOutputEngine("Spin", 0, "test");
+        engine.setSelectorSpinMicros(500);
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        engine.addDataChannel(pipe.sink(), cacheMgr, "Spin");
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        QueuedOutputChannel outChan =
+            (QueuedOutputChannel) engine.getChannel();
+
+        final int bufLen = 32;
+
+        ByteBuffer testInBuf = ByteBuffer.allocate(bufLen);
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer testOutBuf = cacheMgr.acquireBuffer(bufLen);
+            testOutBuf.putInt(0, bufLen);
+            testOutBuf.putInt(4, i);
+            testOutBuf.limit(bufLen);
+            testOutBuf.position(0);
+
+            outChan.receiveByteBuffer(testOutBuf);
+
+            testInBuf.clear();
+            while (testInBuf.position() < bufLen) {
+                pipe.source().read(testInBuf);
+            }
+
+            assertEquals("Bad record #" + i, i, testInBuf.getInt(4));
+        }
+
+        assertTrue("Selector never spun", engine.getSelectorSpinHits() > 0);
+        assertTrue("Selector never blocked",
+                   engine.getSelectorBlockingWaits() > 0);
+
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(engine, "send last");
+
+        assertTrue("ByteBufferCache is not balanced: " + cacheMgr,
+                   cacheMgr.isBalanced());
+    }
+
+    public void testRateLimit()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("RateLimit");
+
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        pipe.source().configureBlocking(true);
+
+        engine = new SimpleOutputEngine("RateLimit", 0, "test");
+        engine.setChannelRateLimit(20000, 1000);
+        engine.setRateLimit(1000000, 100000);
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        engine.addDataChannel(pipe.sink(), cacheMgr, "RateLimit");
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        QueuedOutputChannel outChan =
+            (QueuedOutputChannel) engine.getChannel();
+
+        final int bufLen = 500;
+        final int numRecs = 20;
+
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < numRecs; i++) {
+            ByteBuffer testOutBuf = cacheMgr.acquireBuffer(bufLen);
+            testOutBuf.putInt(0, bufLen);
+            testOutBuf.putInt(4, i);
+            testOutBuf.limit(bufLen);
+            testOutBuf.position(0);
+
+            outChan.receiveByteBuffer(testOutBuf);
+        }
+
+        ByteBuffer testInBuf = ByteBuffer.allocate(bufLen);
+        for (int i = 0; i < numRecs; i++) {
+            testInBuf.clear();
+            while (testInBuf.position() < bufLen) {
+                pipe.source().read(testInBuf);
+            }
+
+            assertEquals("Bad record #" + i, i, testInBuf.getInt(4));
+        }
+
+        // 10000 bytes less a 1000 byte burst at 20000 bytes/sec is ~450 msec
+        final long elapsed = (System.nanoTime() - startTime) / 1000000L;
+        assertTrue("Records were sent too quickly (" + elapsed + " msec)",
+                   elapsed >= 350);
+
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(engine, "send last");
+
+        assertTrue("ByteBufferCache is not balanced: " + cacheMgr,
+                   cacheMgr.isBalanced());
+    }
+
+    private static ByteBuffer createLaneRecord(int lane, int num)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(12);
+        buf.putInt(0, 12);
+        buf.putInt(4, lane);
+        buf.putInt(8, num);
+        return buf;
+    }
+
+    public void testPriorityLanes()
+        throws Exception
+    {
+        PriorityLaneQueue queue = new PriorityLaneQueue(new int[] { 3, 1 });
+
+        final int numRecs = 6;
+        for (int i = 0; i < numRecs; i++) {
+            queue.add(createLaneRecord(1, i), 1);
+        }
+
+        ByteBuffer stopMsg = ByteBuffer.allocate(4);
+        stopMsg.putInt(0, 4);
+        assertTrue("Couldn't add stop message", queue.addLast(stopMsg));
+        assertFalse("Added second stop message",
+                    queue.addLast(ByteBuffer.allocate(4)));
+
+        for (int i = 0; i < numRecs; i++) {
+            queue.add(createLaneRecord(0, i), 0);
+        }
+
+        assertEquals("Bad queue size", (numRecs * 2) + 1, queue.size());
+
+        // 3 urgent records for every bulk record, in order within each lane
+        final int[] expLanes = new int[] {
+            0, 0, 0, 1, 0, 0, 0, 1, 1, 1, 1, 1,
+        };
+        int[] nextNum = new int[2];
+        for (int i = 0; i < expLanes.length; i++) {
+            ByteBuffer buf = queue.remove();
+            assertNotNull("Missing record #" + i, buf);
+            assertEquals("Bad lane for record #" + i,
+                         expLanes[i], buf.getInt(4));
+            assertEquals("Bad order for record #" + i,
+                         nextNum[expLanes[i]]++, buf.getInt(8));
+        }
+
+        assertSame("Stop message was not sent last", stopMsg, queue.remove());
+        assertTrue("Queue should be empty", queue.isEmpty());
+        assertNull("Removed record from empty queue", queue.remove());
+    }
+
+    public void testSharedReactor()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("Reactor");
+
+        OutputReactor reactor = new OutputReactor("SharedReactor");
+
+        final int numEngines = 3;
+
+        SimpleOutputEngine[] engines = new SimpleOutputEngine[numEngines];
+        Pipe[] pipes = new Pipe[numEngines];
+        QueuedOutputChannel[] chans = new QueuedOutputChannel[numEngines];
+
+        for (int e = 0; e < numEngines; e++) {
+            engines[e] = new SimpleOutputEngine("Reactor", e, "test",
+                                                Integer.MAX_VALUE, reactor);
+            engines[e].start();
+            IOTestUtil.waitUntilStopped(engines[e], "creation");
+
+            pipes[e] = Pipe.open();
+            pipes[e].sink().configureBlocking(false);
+            pipes[e].source().configureBlocking(true);
+
+            chans[e] = engines[e].addDataChannel(pipes[e].sink(), cacheMgr,
+                                                 "Eng" + e);
+        }
+
+        for (int e = 0; e < numEngines; e++) {
+            engines[e].startProcessing();
+            IOTestUtil.waitUntilRunning(engines[e]);
+        }
+        assertEquals("Bad number of engines",
+                     numEngines, reactor.getNumberOfEngines());
+
+        final int bufLen = 40;
+        final int numSent = 10;
+
+        for (int i = 0; i < numSent; i++) {
+            for (int e = 0; e < numEngines; e++) {
+                ByteBuffer testOutBuf = cacheMgr.acquireBuffer(bufLen);
+                testOutBuf.putInt(0, bufLen);
+                testOutBuf.putInt(4, e);
+                testOutBuf.putInt(8, i);
+                testOutBuf.limit(bufLen);
+                testOutBuf.position(0);
+
+                chans[e].receiveByteBuffer(testOutBuf);
+            }
+        }
+
+        ByteBuffer testInBuf = ByteBuffer.allocate(bufLen);
+        for (int e = 0; e < numEngines; e++) {
+            for (int i = 0; i < numSent; i++) {
+                testInBuf.clear();
+                while (testInBuf.position() < bufLen) {
+                    pipes[e].source().read(testInBuf);
+                }
+
+                assertEquals("Bad engine for eng#" + e + " rec#" + i,
+                             e, testInBuf.getInt(4));
+                assertEquals("Bad record for eng#" + e + " rec#" + i,
+                             i, testInBuf.getInt(8));
+            }
+        }
+
+        for (int e = 0; e < numEngines; e++) {
+            for (int i = 0; i < 100 && engines[e].getRecordsSent() < numSent;
+                 i++)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals("Bad number of records sent by engine#" + e,
+                         numSent, engines[e].getRecordsSent());
+        }
+
+        // stopping one engine should not affect the others
+        engines[0].sendLastAndStop();
+        IOTestUtil.waitUntilStopped(engines[0], "send last");
+        assertTrue("Engine#1 should still be running",
+                   engines[1].isRunning());
+
+        for (int e = 1; e < numEngines; e++) {
+            engines[e].sendLastAndStop();
+            IOTestUtil.waitUntilStopped(engines[e], "send last");
+        }
+
+        for (int i = 0; i < 100 && reactor.getNumberOfEngines() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("Reactor should not be servicing any engines",
+                     0, reactor.getNumberOfEngines());
+
+        for (int e = 0; e < numEngines; e++) {
+            engines[e].destroyProcessor();
+        }
+        assertTrue("Reactor should still be running", reactor.isRunning());
+
+        reactor.close();
+
+        assertTrue("ByteBufferCache is not balanced: " + cacheMgr,
+                   cacheMgr.isBalanced());
+    }
+
+    public void testCloseRunningReactor()
+        throws Exception
+    {
+        MockBufferCache cacheMgr = new MockBufferCache("CloseReactor");
+
+        OutputReactor reactor = new OutputReactor("CloseReactor");
+
+        SimpleOutputEngine engine =
+            new SimpleOutputEngine("CloseReactor", 0, "test",
+                                   Integer.MAX_VALUE, reactor);
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        engine.addDataChannel(pipe.sink(), cacheMgr, "Close");
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        Thread reactorThread = null;
+        for (Thread thr : Thread.getAllStackTraces().keySet()) {
+            if (thr.getName().equals("CloseReactor")) {
+                reactorThread = thr;
+                break;
+            }
+        }
+        assertNotNull("Cannot find reactor thread", reactorThread);
+
+        final Throwable[] uncaught = new Throwable[1];
+        reactorThread.setUncaughtExceptionHandler(
+            new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread thr, Throwable ex)
+                {
+                    uncaught[0] = ex;
+                }
+            });
+
+        // close the selector while the engine is still attached
+        reactor.close();
+
+        reactorThread.join(5000);
+        assertFalse("Reactor thread did not exit", reactorThread.isAlive());
+        assertNull("Reactor thread died with " + uncaught[0], uncaught[0]);
+
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    public void testLocalWithoutReader()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("NoReader");
+
+        engine = new SimpleOutputEngine("NoReader", 0, "test");
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        // nothing ever reads from this channel
+        LocalChannel local = new LocalChannel();
+        QueuedOutputChannel outChan =
+            engine.addDataChannel(local, cacheMgr, "NoReader");
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        final int bufLen = 64;
+
+        ByteBuffer testOutBuf = cacheMgr.acquireBuffer(bufLen);
+        testOutBuf.putInt(0, bufLen);
+        testOutBuf.limit(bufLen);
+        testOutBuf.position(0);
+        outChan.receiveByteBuffer(testOutBuf);
+
+        assertEquals("Dropped record was counted",
+                     0L, engine.getRecordsSent());
+        assertTrue("ByteBufferCache is not balanced: " + cacheMgr,
+                   cacheMgr.isBalanced());
+
+        // the stop message must still stop the channel
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(engine, "send last");
+
+        assertLogMessage("No reader attached to ");
+        assertLogMessage("No reader attached to ");
+        assertNoLogMessages();
+    }
+
     /**
      * Main routine which runs text test in standalone mode.
      *
@@ -0,0 +1,250 @@
+package icecube.daq.io;
+
+import icecube.daq.io.test.LoggingCase;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+public class SlabBufferCacheTest
+    extends LoggingCase
+{
+    /**
+     * Construct an instance of this test.
+     *
+     * @param name the name of the test.
+     */
+    public SlabBufferCacheTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Create test suite for this class.
+     *
+     * @return the suite of tests declared in this class.
+     */
+    public static Test suite()
+    {
+        return new TestSuite(SlabBufferCacheTest.class);
+    }
+
+    public void testBadSlab()
+    {
+        try {
+            new SlabBufferCache("BadSlab", 0L, 100);
+            fail("Should not be able to create tiny slabs");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    public void testReuse()
+    {
+        SlabBufferCache cache = new SlabBufferCache("Reuse", 1000L, 4096);
+        assertTrue("Cache should be bounded", cache.isCacheBounded());
+        assertEquals("Bad max bytes", 1000L, cache.getMaxAcquiredBytes());
+
+        ByteBuffer buf = cache.acquireBuffer(100);
+        assertTrue("Buffer should be direct", buf.isDirect());
+        assertEquals("Bad capacity", 128, buf.capacity());
+        assertEquals("Bad limit", 100, buf.limit());
+        assertEquals("Bad position", 0, buf.position());
+
+        assertEquals("Bad number of acquired buffers",
+                     1, cache.getCurrentAcquiredBuffers());
+        assertEquals("Bad number of acquired bytes",
+                     128L, cache.getCurrentAcquiredBytes());
+        assertEquals("Bad number of created buffers",
+                     4096 / 128, cache.getTotalBuffersCreated());
+        assertEquals("Bad number of free bytes",
+                     4096L - 128L, cache.getTotalBytesInCache());
+
+        buf.putInt(0, 12345);
+        cache.returnBuffer(buf);
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+        assertEquals("Bad number of acquired bytes",
+                     0L, cache.getCurrentAcquiredBytes());
+
+        // drain the size class; the first buffer should come back around
+        boolean found = false;
+        ByteBuffer[] bufs = new ByteBuffer[4096 / 128];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = cache.acquireBuffer(128);
+            assertEquals("Bad limit for #" + i, 128, bufs[i].limit());
+            found |= bufs[i] == buf;
+        }
+        assertTrue("Returned buffer was not reused", found);
+        assertEquals("Should not have allocated another slab",
+                     4096 / 128, cache.getTotalBuffersCreated());
+
+        for (int i = 0; i < bufs.length; i++) {
+            cache.returnBuffer(bufs[i]);
+        }
+
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+        assertEquals("Bad number of returned buffers",
+                     bufs.length + 1, cache.getTotalBuffersReturned());
+        assertEquals("Bad number of acquired buffers",
+                     bufs.length + 1, cache.getTotalBuffersAcquired());
+    }
+
+    public void testLarge()
+    {
+        SlabBufferCache cache = new SlabBufferCache("Large", 0L, 4096);
+        assertFalse("Cache should not be bounded", cache.isCacheBounded());
+
+        final int len = 10000;
+
+        ByteBuffer buf = cache.acquireBuffer(len);
+        assertEquals("Bad capacity", len, buf.capacity());
+        assertEquals("Bad number of acquired bytes",
+                     (long) len, cache.getCurrentAcquiredBytes());
+        assertEquals("Large buffer should not be counted as cached",
+                     0L, cache.getTotalBytesInCache());
+
+        cache.returnBuffer(buf);
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+        assertEquals("Bad number of acquired bytes",
+                     0L, cache.getCurrentAcquiredBytes());
+    }
+
+    public void testBadReturns()
+    {
+        SlabBufferCache cache = new SlabBufferCache("BadRet", 0L, 4096);
+
+        ByteBuffer buf = cache.acquireBuffer(128);
+        ByteBuffer large = cache.acquireBuffer(10000);
+
+        // same size class, but not from this cache
+        cache.returnBuffer(ByteBuffer.allocateDirect(128));
+        assertLogMessage("Ignoring 128-byte buffer which did not come from" +
+                         " BadRet");
+
+        // view of a real slot
+        cache.returnBuffer(buf.duplicate());
+        assertLogMessage("Ignoring 128-byte buffer which did not come from" +
+                         " BadRet");
+
+        // oversized buffer which this cache did not create
+        cache.returnBuffer(ByteBuffer.allocateDirect(10000));
+        assertLogMessage("Ignoring 10000-byte buffer which is not currently" +
+                         " acquired from BadRet");
+        assertNoLogMessages();
+
+        assertEquals("Bad returns should not change the counters",
+                     2, cache.getCurrentAcquiredBuffers());
+
+        cache.returnBuffer(buf);
+        cache.returnBuffer(large);
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+
+        // second returns
+        cache.returnBuffer(buf);
+        assertLogMessage("Ignoring second return of 128-byte buffer to" +
+                         " BadRet");
+        cache.returnBuffer(large);
+        assertLogMessage("Ignoring 10000-byte buffer which is not currently" +
+                         " acquired from BadRet");
+        assertNoLogMessages();
+
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+
+        // the slot must only be handed out once
+        ByteBuffer[] bufs = new ByteBuffer[4096 / 128];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = cache.acquireBuffer(128);
+            for (int j = 0; j < i; j++) {
+                assertFalse("Slot handed out twice", bufs[j] == bufs[i]);
+            }
+        }
+        assertEquals("Should not have allocated another slab",
+                     4096 / 128 + 1, cache.getTotalBuffersCreated());
+    }
+
+    public void testReturnByLength()
+    {
+        SlabBufferCache cache = new SlabBufferCache("ByLength", 0L, 4096);
+
+        ByteBuffer buf = cache.acquireBuffer(100);
+        try {
+            cache.returnBuffer(100);
+            fail("Returning a slab buffer by length should fail");
+        } catch (UnsupportedOperationException uoe) {
+            // expected
+        }
+
+        assertEquals("Failed return should not change the counters",
+                     1, cache.getCurrentAcquiredBuffers());
+
+        cache.returnBuffer(buf);
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+    }
+
+    public void testSizeClasses()
+    {
+        SlabBufferCache cache = new SlabBufferCache("Classes");
+
+        final int[] lens = { 0, 1, 64, 65, 128, 129, 1000, 65536 };
+        final int[] caps = { 64, 64, 64, 128, 128, 256, 1024, 65536 };
+
+        for (int i = 0; i < lens.length; i++) {
+            ByteBuffer buf = cache.acquireBuffer(lens[i]);
+            assertEquals("Bad capacity for " + lens[i] + "-byte buffer",
+                         caps[i], buf.capacity());
+            cache.returnBuffer(buf);
+        }
+
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+    }
+
+    public void testThreads()
+        throws Exception
+    {
+        final SlabBufferCache cache = new SlabBufferCache("Threads");
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        ByteBuffer[] held = new ByteBuffer[8];
+                        for (int i = 0; i < 10000; i++) {
+                            final int idx = i % held.length;
+                            if (held[idx] != null) {
+                                cache.returnBuffer(held[idx]);
+                            }
+                            held[idx] =
+                                cache.acquireBuffer(16 + (i * seed) % 2000);
+                        }
+                        for (int i = 0; i < held.length; i++) {
+                            cache.returnBuffer(held[i]);
+                        }
+                    }
+                });
+            threads[t].start();
+        }
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+        assertEquals("Bad number of acquired bytes",
+                     0L, cache.getCurrentAcquiredBytes());
+    }
+
+    /**
+     * Main routine which runs text test in standalone mode.
+     *
+     * @param args the arguments with which to execute this method.
+     */
+    public static void main(String[] args)
+    {
+        TestRunner.run(suite());
+    }
+}
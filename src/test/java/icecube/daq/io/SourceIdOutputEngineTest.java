@@ -0,0 +1,242 @@
+package icecube.daq.io;
+
+import icecube.daq.io.test.IOTestUtil;
+import icecube.daq.io.test.LoggingCase;
+import icecube.daq.io.test.MockBufferCache;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+public class SourceIdOutputEngineTest
+    extends LoggingCase
+{
+    /**
+     * The object being tested.
+     */
+    private SourceIdOutputEngine engine;
+
+    /**
+     * Constructs and instance of this test.
+     *
+     * @param name the name of the test.
+     */
+    public SourceIdOutputEngineTest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Create test suite for this class.
+     *
+     * @return the suite of tests declared in this class.
+     */
+    public static Test suite()
+    {
+        return new TestSuite(SourceIdOutputEngineTest.class);
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        if (engine != null) {
+            if (!engine.isDestroyed()) {
+                if (!engine.isStopped()) {
+                    engine.forcedStopProcessing();
+                }
+
+                engine.destroyProcessor();
+            }
+
+            engine = null;
+        }
+
+        super.tearDown();
+    }
+
+    public void testSourceIdRouting()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("Route");
+
+        final int numChans = 3;
+        final int baseId = 12000;
+        final int idOffset = 8;
+
+        Pipe[] pipes = new Pipe[numChans];
+
+        SourceIdOutputEngine router =
+            new SourceIdOutputEngine("Route", 0, "test", cacheMgr, idOffset);
+        engine = router;
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        // add channels out of order to exercise table growth
+        for (int i = numChans - 1; i >= 0; i--) {
+            pipes[i] = Pipe.open();
+            pipes[i].sink().configureBlocking(false);
+            pipes[i].source().configureBlocking(true);
+
+            router.connect(cacheMgr, pipes[i].sink(), baseId + (i * 2));
+        }
+        assertNull("Unexpected channel for unknown source",
+                   router.getChannel(baseId + 1));
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        final int bufLen = 64;
+        final int numSent = 10;
+
+        for (int i = 0; i < numSent; i++) {
+            for (int c = 0; c < numChans; c++) {
+                ByteBuffer testOutBuf = cacheMgr.acquireBuffer(bufLen);
+                testOutBuf.putInt(0, bufLen);
+                testOutBuf.putInt(4, i);
+                testOutBuf.putInt(idOffset, baseId + (c * 2));
+                testOutBuf.limit(bufLen);
+                testOutBuf.position(0);
+
+                assertTrue("Couldn't route chan#" + c + " rec#" + i,
+                           router.route(testOutBuf));
+            }
+        }
+
+        ByteBuffer badBuf = cacheMgr.acquireBuffer(bufLen);
+        badBuf.putInt(0, bufLen);
+        badBuf.putInt(idOffset, baseId + 1);
+        badBuf.limit(bufLen);
+        badBuf.position(0);
+        assertFalse("Routed record to unknown source", router.route(badBuf));
+
+        ByteBuffer testInBuf = ByteBuffer.allocate(bufLen);
+        for (int c = 0; c < numChans; c++) {
+            for (int i = 0; i < numSent; i++) {
+                testInBuf.clear();
+                while (testInBuf.position() < bufLen) {
+                    pipes[c].source().read(testInBuf);
+                }
+
+                assertEquals("Bad record for chan#" + c + " rec#" + i,
+                             i, testInBuf.getInt(4));
+                assertEquals("Bad source for chan#" + c + " rec#" + i,
+                             baseId + (c * 2), testInBuf.getInt(idOffset));
+            }
+        }
+
+        for (int i = 0; i < 100 && !cacheMgr.isBalanced(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("ByteBufferCache is not balanced: " + cacheMgr,
+                   cacheMgr.isBalanced());
+        assertEquals("Bad number of routed records",
+                     numSent * numChans, router.getRecordsRouted());
+        assertEquals("Bad number of unroutable records",
+                     1, router.getRecordsUnroutable());
+
+        assertEquals("Bad number of log messages",
+                     1, getNumberOfMessages());
+        assertTrue("Bad log message " + getMessage(0),
+                   getMessage(0).toString().startsWith("No channel for "));
+        clearMessages();
+
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(engine, "send last");
+    }
+
+    public void testSparseRoutes()
+        throws Exception
+    {
+        // buffer caching manager
+        MockBufferCache cacheMgr = new MockBufferCache("Sparse");
+
+        final int idOffset = 8;
+        final int[] ids = new int[] {
+            1000, 1001, 1000 + SourceIdOutputEngine.MAX_DENSE_SPAN * 10, 5,
+        };
+
+        Pipe[] pipes = new Pipe[ids.length];
+
+        SourceIdOutputEngine router =
+            new SourceIdOutputEngine("Sparse", 0, "test", cacheMgr,
+                                     idOffset);
+        engine = router;
+        engine.start();
+        IOTestUtil.waitUntilStopped(engine, "creation");
+
+        // the third source ID is too far away for a dense table
+        QueuedOutputChannel[] chans = new QueuedOutputChannel[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            pipes[i] = Pipe.open();
+            pipes[i].sink().configureBlocking(false);
+            pipes[i].source().configureBlocking(true);
+
+            chans[i] = router.connect(cacheMgr, pipes[i].sink(), ids[i]);
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            assertSame("Bad channel for source #" + ids[i],
+                       chans[i], router.getChannel(ids[i]));
+        }
+        assertNull("Unexpected channel for unknown source",
+                   router.getChannel(1002));
+
+        engine.startProcessing();
+        IOTestUtil.waitUntilRunning(engine);
+
+        final int bufLen = 64;
+
+        for (int i = 0; i < ids.length; i++) {
+            ByteBuffer testOutBuf = cacheMgr.acquireBuffer(bufLen);
+            testOutBuf.putInt(0, bufLen);
+            testOutBuf.putInt(4, i);
+            testOutBuf.putInt(idOffset, ids[i]);
+            testOutBuf.limit(bufLen);
+            testOutBuf.position(0);
+
+            assertTrue("Couldn't route to source #" + ids[i],
+                       router.route(testOutBuf));
+        }
+
+        ByteBuffer testInBuf = ByteBuffer.allocate(bufLen);
+        for (int i = 0; i < ids.length; i++) {
+            testInBuf.clear();
+            while (testInBuf.position() < bufLen) {
+                pipes[i].source().read(testInBuf);
+            }
+
+            assertEquals("Bad record for source #" + ids[i],
+                         i, testInBuf.getInt(4));
+            assertEquals("Bad source for chan#" + i,
+                         ids[i], testInBuf.getInt(idOffset));
+        }
+
+        for (int i = 0; i < 100 && !cacheMgr.isBalanced(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("ByteBufferCache is not balanced: " + cacheMgr,
+                   cacheMgr.isBalanced());
+        assertEquals("Bad number of routed records",
+                     (long) ids.length, router.getRecordsRouted());
+        assertEquals("Bad number of unroutable records",
+                     0L, router.getRecordsUnroutable());
+
+        engine.sendLastAndStop();
+        IOTestUtil.waitUntilStopped(engine, "send last");
+    }
+
+    /**
+     * Main routine which runs text test in standalone mode.
+     *
+     * @param args the arguments with which to execute this method.
+     */
+    public static void main(String[] args)
+    {
+        TestRunner.run(suite());
+    }
+}
@@ -16,7 +16,10 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Pipe;
 import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -28,6 +31,8 @@ public class SpliceableInputChannelTest
     class MockParent
         implements LimitedChannelParent
     {
+        private LimitedChannel paused;
+
         @Override
         public void channelError(IOChannel chan, ByteBuffer buf, Exception ex)
         {
@@ -45,6 +50,17 @@ public class SpliceableInputChannelTest
             return "MockParent";
         }
 
+        synchronized LimitedChannel getPaused()
+        {
+            return paused;
+        }
+
+        @Override
+        public synchronized void pauseLimitedChannel(LimitedChannel chan)
+        {
+            paused = chan;
+        }
+
         @Override
         public void watchLimitedChannel(LimitedChannel chan)
         {
@@ -89,6 +105,40 @@ public class SpliceableInputChannelTest
         }
     }
 
+    class RecordingStrandTail
+        extends MockStrandTail
+    {
+        private ArrayList<Spliceable> pushed = new ArrayList<Spliceable>();
+        private volatile int depth;
+
+        synchronized Spliceable get(int idx)
+        {
+            return pushed.get(idx);
+        }
+
+        synchronized int getNumPushed()
+        {
+            return pushed.size();
+        }
+
+        public synchronized StrandTail push(Spliceable spliceable)
+            throws OrderingException, ClosedStrandException
+        {
+            pushed.add(spliceable);
+            return this;
+        }
+
+        void setDepth(int depth)
+        {
+            this.depth = depth;
+        }
+
+        public int size()
+        {
+            return depth;
+        }
+    }
+
     class UnpushableStrandTail
         extends MockStrandTail
     {
@@ -253,6 +303,105 @@ public class SpliceableInputChannelTest
         return new TestSuite(SpliceableInputChannelTest.class);
     }
 
+    private static void pushRecords(IByteBufferCache bufMgr,
+                                    SpliceableInputChannel chan, int num)
+    {
+        for (int i = 0; i < num; i++) {
+            ByteBuffer buf = bufMgr.acquireBuffer(16);
+            buf.putInt(buf.capacity());
+            buf.putInt(1);
+            buf.putLong(i + 1);
+            buf.flip();
+
+            chan.pushPayload(buf);
+        }
+    }
+
+    public void testAdaptiveDepth()
+        throws Exception
+    {
+        MockParent parent = new MockParent();
+
+        IByteBufferCache bufMgr = new MockBufferCache("Adaptive");
+
+        MockFactory factory = new MockFactory(bufMgr);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        SpliceableInputChannel[] chans = new SpliceableInputChannel[2];
+        RecordingStrandTail[] tails = new RecordingStrandTail[chans.length];
+        for (int i = 0; i < chans.length; i++) {
+            chans[i] = new SpliceableInputChannel(parent,
+                                                  Pipe.open().source(),
+                                                  "Adaptive" + i, bufMgr,
+                                                  256, factory, 1000);
+            chans[i].setExecutor(executor);
+
+            tails[i] = new RecordingStrandTail();
+            chans[i].setStrandTail(tails[i]);
+            chans[i].startReading();
+        }
+
+        ArrayList<SpliceableInputChannel> list =
+            new ArrayList<SpliceableInputChannel>();
+        for (int i = 0; i < chans.length; i++) {
+            list.add(chans[i]);
+        }
+
+        final long budget = 8;
+        AdaptiveDepthController ctlr = new AdaptiveDepthController(budget);
+
+        final long second = 1000000000L;
+        ctlr.update(list, second);
+        for (int i = 0; i < chans.length; i++) {
+            assertEquals("Bad initial limit for channel " + i,
+                         1, chans[i].getMaxDepth());
+        }
+
+        // only the first channel sees any input
+        final int numRecs = 20;
+        pushRecords(bufMgr, chans[0], numRecs);
+        waitForPushed(tails[0], numRecs);
+        assertEquals("Bad number of pushed spliceables",
+                     (long) numRecs, chans[0].getSpliceablesPushed());
+
+        ctlr.update(list, 2 * second);
+        assertEquals("Busy channel limit should grow",
+                     3, chans[0].getMaxDepth());
+        assertEquals("Idle channel should keep the floor",
+                     1, chans[1].getMaxDepth());
+
+        // a flood must not push the total past the budget
+        pushRecords(bufMgr, chans[0], numRecs * 10);
+        waitForPushed(tails[0], numRecs * 11);
+        pushRecords(bufMgr, chans[1], numRecs * 10);
+        waitForPushed(tails[1], numRecs * 10);
+
+        ctlr.update(list, 3 * second);
+        long total = 0;
+        for (int i = 0; i < chans.length; i++) {
+            assertTrue("Channel " + i + " lost its floor",
+                       chans[i].getMaxDepth() >= 1);
+            total += chans[i].getMaxDepth();
+        }
+        assertTrue("Limits total " + total + " exceed budget " + budget,
+                   total <= budget);
+
+        for (int i = 0; i < chans.length; i++) {
+            chans[i].notifyOnStop();
+            for (int j = 0; j < 100 && !tails[i].isClosed(); j++) {
+                Thread.sleep(10);
+            }
+
+            for (int j = 0; j < tails[i].getNumPushed() - 1; j++) {
+                ((MockSpliceable) tails[i].get(j)).recycle();
+            }
+        }
+
+        executor.shutdown();
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
     public void testOutOfOrderRecycle()
         throws IOException
     {
@@ -319,6 +468,286 @@ public class SpliceableInputChannelTest
         }
     }
 
+    private static void waitForPushed(RecordingStrandTail tail, int num)
+        throws InterruptedException
+    {
+        for (int i = 0; i < 100 && tail.getNumPushed() < num; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    public void testReorderWindow()
+        throws Exception
+    {
+        MockParent parent = new MockParent();
+
+        Pipe pipe = Pipe.open();
+
+        IByteBufferCache bufMgr = new MockBufferCache("Reorder");
+
+        MockFactory factory = new MockFactory(bufMgr);
+
+        SpliceableInputChannel chan =
+            new SpliceableInputChannel(parent, pipe.source(), "Reorder",
+                                       bufMgr, 256, factory,
+                                       Integer.MAX_VALUE);
+        chan.setReorderWindow(2, 0L);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        chan.setExecutor(executor);
+
+        RecordingStrandTail tail = new RecordingStrandTail();
+        chan.setStrandTail(tail);
+        chan.startReading();
+
+        // '2' and '4' are fixed, the final '2' is too late
+        final long[] times = new long[] { 1, 3, 2, 5, 4, 2 };
+        for (int i = 0; i < times.length; i++) {
+            ByteBuffer buf = bufMgr.acquireBuffer(16);
+            buf.putInt(buf.capacity());
+            buf.putInt(1);
+            buf.putLong(times[i]);
+            buf.flip();
+
+            chan.pushPayload(buf);
+        }
+
+        waitForPushed(tail, 3);
+        assertEquals("Window should hold the newest payloads",
+                     3, tail.getNumPushed());
+
+        chan.notifyOnStop();
+        for (int i = 0; i < 100 && !tail.isClosed(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("Strand tail was not closed", tail.isClosed());
+
+        final int numGood = 5;
+        assertEquals("Bad number of pushed spliceables",
+                     numGood + 1, tail.getNumPushed());
+        for (int i = 0; i < numGood; i++) {
+            MockSpliceable spl = (MockSpliceable) tail.get(i);
+            assertEquals("Bad spliceable #" + i, i + 1, spl.getUTCTime());
+            spl.recycle();
+        }
+        assertEquals("Last entry should be LAST_POSSIBLE_SPLICEABLE",
+                     SpliceableFactory.LAST_POSSIBLE_SPLICEABLE,
+                     tail.get(numGood));
+
+        assertEquals("Bad number of reordered payloads",
+                     2L, chan.getReordered());
+        assertEquals("Bad number of late payloads",
+                     1L, chan.getLateDropped());
+
+        executor.shutdown();
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
+    public void testQuietReorder()
+        throws Exception
+    {
+        MockParent parent = new MockParent();
+
+        Pipe pipe = Pipe.open();
+
+        IByteBufferCache bufMgr = new MockBufferCache("Quiet");
+
+        MockFactory factory = new MockFactory(bufMgr);
+
+        SpliceableInputChannel chan =
+            new SpliceableInputChannel(parent, pipe.source(), "Quiet",
+                                       bufMgr, 256, factory,
+                                       Integer.MAX_VALUE);
+        chan.setReorderWindow(4, 0L);
+
+        RecordingStrandTail tail = new RecordingStrandTail();
+        chan.setStrandTail(tail);
+        chan.startReading();
+
+        // a trickle of payloads never fills the window
+        final long[] times = new long[] { 3, 1 };
+        for (int i = 0; i < times.length; i++) {
+            ByteBuffer buf = bufMgr.acquireBuffer(16);
+            buf.putInt(buf.capacity());
+            buf.putInt(1);
+            buf.putLong(times[i]);
+            buf.flip();
+
+            chan.pushPayload(buf);
+        }
+
+        Thread.sleep(50);
+        chan.checkReorderIdle(System.nanoTime());
+        Thread.sleep(50);
+        assertEquals("Window should still hold recent payloads",
+                     0, tail.getNumPushed());
+
+        Thread.sleep(SpliceableInputChannel.REORDER_IDLE_NANOS / 1000000L);
+        chan.checkReorderIdle(System.nanoTime());
+
+        waitForPushed(tail, times.length);
+        assertEquals("Idle window was not flushed",
+                     times.length, tail.getNumPushed());
+        for (int i = 0; i < times.length; i++) {
+            MockSpliceable spl = (MockSpliceable) tail.get(i);
+            assertEquals("Bad spliceable #" + i, i * 2 + 1, spl.getUTCTime());
+            spl.recycle();
+        }
+
+        chan.notifyOnStop();
+        for (int i = 0; i < 100 && !tail.isClosed(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("Strand tail was not closed", tail.isClosed());
+
+        assertEquals("Bad number of reordered payloads",
+                     1L, chan.getReordered());
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
+    public void testUndecodable()
+        throws Exception
+    {
+        MockParent parent = new MockParent();
+
+        Pipe pipe = Pipe.open();
+
+        IByteBufferCache bufMgr = new MockBufferCache("Undecodable");
+
+        // refuse to decode payloads with a bogus type
+        MockFactory factory = new MockFactory(bufMgr) {
+                @Override
+                public Spliceable createSpliceable(ByteBuffer buf)
+                {
+                    if (buf.getInt(4) != 1) {
+                        return null;
+                    }
+
+                    return super.createSpliceable(buf);
+                }
+            };
+
+        SpliceableInputChannel chan =
+            new SpliceableInputChannel(parent, pipe.source(), "Undecodable",
+                                       bufMgr, 256, factory,
+                                       Integer.MAX_VALUE);
+        chan.setDecodeOffSelector(true);
+
+        RecordingStrandTail tail = new RecordingStrandTail();
+        chan.setStrandTail(tail);
+        chan.startReading();
+
+        final int[] types = new int[] { 1, 99, 1 };
+        for (int i = 0; i < types.length; i++) {
+            ByteBuffer buf = bufMgr.acquireBuffer(16);
+            buf.putInt(buf.capacity());
+            buf.putInt(types[i]);
+            buf.putLong(i + 1);
+            buf.flip();
+
+            chan.pushPayload(buf);
+        }
+
+        waitForPushed(tail, 2);
+        assertEquals("Bad number of pushed spliceables",
+                     2, tail.getNumPushed());
+        for (int i = 0; i < 2; i++) {
+            ((MockSpliceable) tail.get(i)).recycle();
+        }
+
+        chan.notifyOnStop();
+        for (int i = 0; i < 100 && !tail.isClosed(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("Strand tail was not closed", tail.isClosed());
+
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+
+        assertLogMessage("Couldn't use buffer (limit 16, capacity 16)" +
+                         " to create payload (length 16, type 99)");
+        assertNoLogMessages();
+    }
+
+    public void testSharedWorker()
+        throws Exception
+    {
+        MockParent parent = new MockParent();
+
+        Pipe pipe = Pipe.open();
+
+        IByteBufferCache bufMgr = new MockBufferCache("Shared");
+
+        MockFactory factory = new MockFactory(bufMgr);
+
+        SpliceableInputChannel chan =
+            new SpliceableInputChannel(parent, pipe.source(), "Shared",
+                                       bufMgr, 256, factory, 2);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        chan.setExecutor(executor);
+
+        RecordingStrandTail tail = new RecordingStrandTail();
+        chan.setStrandTail(tail);
+        chan.startReading();
+
+        final int numRecs = 5;
+
+        for (int i = 0; i < numRecs; i++) {
+            if (i == 3) {
+                // put the channel over its limit
+                tail.setDepth(5);
+            }
+
+            ByteBuffer buf = bufMgr.acquireBuffer(16);
+            buf.putInt(buf.capacity());
+            buf.putInt(1);
+            buf.putLong(i + 1);
+            buf.flip();
+
+            chan.pushPayload(buf);
+
+            if (i == 2) {
+                waitForPushed(tail, 3);
+                assertEquals("Bad number of pushed spliceables",
+                             3, tail.getNumPushed());
+            }
+        }
+
+        for (int i = 0; i < 100 && parent.getPaused() == null; i++) {
+            Thread.sleep(10);
+        }
+        assertSame("Channel was not paused", chan, parent.getPaused());
+        assertEquals("Limited channel should not push",
+                     3, tail.getNumPushed());
+
+        tail.setDepth(0);
+        chan.wakeChannel();
+
+        waitForPushed(tail, numRecs);
+        assertEquals("Bad number of pushed spliceables",
+                     numRecs, tail.getNumPushed());
+
+        chan.notifyOnStop();
+        for (int i = 0; i < 100 && !tail.isClosed(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("Strand tail was not closed", tail.isClosed());
+        assertEquals("Bad number of pushed spliceables",
+                     numRecs + 1, tail.getNumPushed());
+
+        for (int i = 0; i < numRecs; i++) {
+            MockSpliceable spl = (MockSpliceable) tail.get(i);
+            assertEquals("Bad spliceable #" + i, i + 1, spl.getUTCTime());
+            spl.recycle();
+        }
+        assertEquals("Last entry should be LAST_POSSIBLE_SPLICEABLE",
+                     SpliceableFactory.LAST_POSSIBLE_SPLICEABLE,
+                     tail.get(numRecs));
+
+        executor.shutdown();
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
     /**
      * Main routine which runs text test in standalone mode.
      *
@@ -9,6 +9,7 @@ import icecube.daq.io.test.MockSpliceableFactory;
 import icecube.daq.io.test.MockSplicer;
 import icecube.daq.io.test.MockStrandTail;
 import icecube.daq.payload.IByteBufferCache;
+import icecube.daq.splicer.Spliceable;
 import icecube.daq.splicer.Splicer;
 
 import java.net.InetSocketAddress;
@@ -18,12 +19,49 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.HashSet;
 import java.util.Iterator;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
 import junit.textui.TestRunner;
 
+class MockLimitedChannel
+    implements LimitedChannel
+{
+    private volatile boolean underLimit;
+    private volatile long wakeTime;
+
+    long getWakeTime()
+    {
+        return wakeTime;
+    }
+
+    @Override
+    public boolean isOverLimit()
+    {
+        return !underLimit;
+    }
+
+    @Override
+    public boolean isUnderLimit()
+    {
+        return underLimit;
+    }
+
+    void setUnderLimit(boolean val)
+    {
+        underLimit = val;
+    }
+
+    @Override
+    public synchronized void wakeChannel()
+    {
+        wakeTime = System.nanoTime();
+        notify();
+    }
+}
+
 public class SpliceableStreamReaderTest
     extends LoggingCase
 {
@@ -209,6 +247,135 @@ public class SpliceableStreamReaderTest
         assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
     }
 
+    public void testDecodeOffSelector()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("Decode");
+
+        Pipe testPipe = Pipe.open();
+        Pipe.SinkChannel sinkChannel = testPipe.sink();
+        sinkChannel.configureBlocking(false);
+
+        Pipe.SourceChannel sourceChannel = testPipe.source();
+        sourceChannel.configureBlocking(false);
+
+        MockSplicer splicer = new MockSplicer();
+
+        final HashSet<String> decodeThreads = new HashSet<String>();
+        MockSpliceableFactory factory = new MockSpliceableFactory() {
+                @Override
+                public Spliceable createSpliceable(ByteBuffer bBuf)
+                {
+                    synchronized (decodeThreads) {
+                        decodeThreads.add(Thread.currentThread().getName());
+                    }
+                    return super.createSpliceable(bBuf);
+                }
+            };
+
+        MockObserver observer = new MockObserver("Decode");
+
+        tstRdr = new SpliceableStreamReader("Decode", splicer, factory);
+        tstRdr.registerComponentObserver(observer);
+        tstRdr.setDecodeOffSelector(true);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        tstRdr.addDataChannel(sourceChannel, "DecodeChan", bufMgr, 1024);
+
+        Thread.sleep(100);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        final int bufLen = 64;
+
+        for (int i = 0; i < INPUT_OUTPUT_LOOP_CNT; i++) {
+            ByteBuffer testBuf = ByteBuffer.allocate(bufLen);
+            testBuf.putInt(0, bufLen);
+            testBuf.position(0);
+            while (testBuf.remaining() > 0) {
+                sinkChannel.write(testBuf);
+            }
+        }
+
+        for (int i = 0; i < 100 &&
+                 tstRdr.getTotalStrandDepth() < INPUT_OUTPUT_LOOP_CNT; i++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("Bad number of spliceables",
+                     INPUT_OUTPUT_LOOP_CNT, tstRdr.getTotalStrandDepth());
+
+        synchronized (decodeThreads) {
+            assertEquals("Bad decode threads " + decodeThreads,
+                         1, decodeThreads.size());
+            assertFalse("Decoded on selector thread",
+                        decodeThreads.contains("DecodeThread"));
+        }
+
+        IOTestUtil.sendStopMsg(sinkChannel);
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
+
+        // strand also holds the final LAST_POSSIBLE_SPLICEABLE, which is
+        // pushed after the reader stops
+        for (int i = 0; i < 100 &&
+                 tstRdr.getTotalStrandDepth() <= INPUT_OUTPUT_LOOP_CNT; i++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("Bad number of harvested spliceables",
+                     INPUT_OUTPUT_LOOP_CNT + 1,
+                     harvestStrands(splicer, bufMgr));
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
+    public void testLimitRelease()
+        throws Exception
+    {
+        MockSplicer splicer = new MockSplicer();
+        MockSpliceableFactory factory = new MockSpliceableFactory();
+
+        tstRdr = new SpliceableStreamReader("Limit", splicer, factory);
+
+        // reader thread is never started, so only the monitor can wake
+        final MockLimitedChannel chan = new MockLimitedChannel();
+        tstRdr.pauseLimitedChannel(chan);
+
+        Thread.sleep(20);
+        assertEquals("Limited channel was woken early",
+                     0L, chan.getWakeTime());
+
+        final long released = System.nanoTime();
+        chan.setUnderLimit(true);
+
+        for (int i = 0; i < 100 && chan.getWakeTime() == 0L; i++) {
+            Thread.sleep(1);
+        }
+        assertTrue("Limited channel was not woken", chan.getWakeTime() != 0L);
+        assertTrue("Limited channel took " +
+                   (chan.getWakeTime() - released) / 1000L +
+                   " usec to wake",
+                   chan.getWakeTime() - released < 100000000L);
+
+        // a blocked waiter must see a release which happens right away
+        final MockLimitedChannel blocked = new MockLimitedChannel();
+        Thread waiter = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    tstRdr.watchLimitedChannel(blocked);
+                }
+            });
+        waiter.start();
+        blocked.setUnderLimit(true);
+
+        waiter.join(1000);
+        assertFalse("Waiting channel was not released", waiter.isAlive());
+    }
+
     public void testMultiOutputInput()
         throws Exception
     {
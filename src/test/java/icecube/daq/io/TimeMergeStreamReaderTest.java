@@ -0,0 +1,301 @@
+package icecube.daq.io;
+
+import icecube.daq.io.test.IOTestUtil;
+import icecube.daq.io.test.LoggingCase;
+import icecube.daq.io.test.MockBufferCache;
+import icecube.daq.io.test.MockObserver;
+import icecube.daq.payload.IByteBufferCache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+class MockMergeReader
+    extends TimeMergeStreamReader
+{
+    private IByteBufferCache bufMgr;
+    private ArrayList<Long> times = new ArrayList<Long>();
+    private boolean gotStop;
+
+    MockMergeReader(String name, IByteBufferCache bufMgr)
+        throws IOException
+    {
+        super(name);
+
+        this.bufMgr = bufMgr;
+    }
+
+    synchronized ArrayList<Long> getTimes()
+    {
+        return new ArrayList<Long>(times);
+    }
+
+    synchronized boolean gotStop()
+    {
+        return gotStop;
+    }
+
+    @Override
+    public void pushBuffer(ByteBuffer bb)
+        throws IOException
+    {
+        synchronized (this) {
+            times.add(bb.getLong(8));
+        }
+        bufMgr.returnBuffer(bb);
+    }
+
+    @Override
+    public synchronized void sendStop()
+    {
+        gotStop = true;
+    }
+}
+
+public class TimeMergeStreamReaderTest
+    extends LoggingCase
+{
+    private MockMergeReader tstRdr;
+
+    /**
+     * Construct an instance of this test.
+     *
+     * @param name the name of the test.
+     */
+    public TimeMergeStreamReaderTest(String name)
+    {
+        super(name);
+    }
+
+    private static void sendPayloads(WritableByteChannel sink, long[] times)
+        throws IOException
+    {
+        final int len = 16;
+
+        ByteBuffer buf = ByteBuffer.allocate(len * times.length);
+        for (int i = 0; i < times.length; i++) {
+            buf.putInt(len);
+            buf.putInt(1);
+            buf.putLong(times[i]);
+        }
+        buf.flip();
+
+        while (buf.remaining() > 0) {
+            sink.write(buf);
+        }
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        tstRdr = null;
+    }
+
+    /**
+     * Create test suite for this class.
+     *
+     * @return the suite of tests declared in this class.
+     */
+    public static Test suite()
+    {
+        return new TestSuite(TimeMergeStreamReaderTest.class);
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        if (tstRdr != null) {
+            tstRdr.destroyProcessor();
+        }
+
+        super.tearDown();
+    }
+
+    private void waitForTimes(int num)
+        throws InterruptedException
+    {
+        for (int i = 0; i < 200 && tstRdr.getTimes().size() < num; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    public void testMerge()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("Merge");
+
+        MockObserver observer = new MockObserver("Merge");
+
+        tstRdr = new MockMergeReader("Merge", bufMgr);
+        tstRdr.registerComponentObserver(observer);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        Pipe[] pipes = new Pipe[2];
+        for (int i = 0; i < pipes.length; i++) {
+            pipes[i] = Pipe.open();
+            pipes[i].source().configureBlocking(false);
+            tstRdr.addDataChannel(pipes[i].source(), "Merge", bufMgr, 1024);
+        }
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        sendPayloads(pipes[0].sink(), new long[] { 1, 4, 5 });
+        Thread.sleep(100);
+        assertEquals("Nothing should be merged until all channels report",
+                     0, tstRdr.getTimes().size());
+
+        sendPayloads(pipes[1].sink(), new long[] { 2, 3, 6, 7 });
+        waitForTimes(5);
+        assertEquals("Bad merged payloads", "[1, 2, 3, 4, 5]",
+                     tstRdr.getTimes().toString());
+
+        IOTestUtil.sendStopMsg(pipes[0].sink());
+        waitForTimes(7);
+        assertEquals("Stopped channel should not hold up merge",
+                     "[1, 2, 3, 4, 5, 6, 7]", tstRdr.getTimes().toString());
+        assertFalse("Stop sent too soon", tstRdr.gotStop());
+
+        IOTestUtil.sendStopMsg(pipes[1].sink());
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        for (int i = 0; i < 100 && !tstRdr.gotStop(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("Stop was not sent", tstRdr.gotStop());
+        assertTrue("Observer didn't see sinkStop.", observer.gotSinkStop());
+
+        assertEquals("Bad number of dequeued messages",
+                     7L, tstRdr.getDequeuedMessages());
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
+    public void testBackpressure()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("Backpressure");
+
+        tstRdr = new MockMergeReader("Backpressure", bufMgr);
+        tstRdr.setMaxQueued(2);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        Pipe busy = Pipe.open();
+        busy.source().configureBlocking(false);
+        tstRdr.addDataChannel(busy.source(), "Busy", bufMgr, 1024);
+
+        Pipe quiet = Pipe.open();
+        quiet.source().configureBlocking(false);
+        tstRdr.addDataChannel(quiet.source(), "Quiet", bufMgr, 1024);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        // send one record at a time so the full queue stops the reads
+        final int numBusy = 6;
+        for (int i = 0; i < numBusy; i++) {
+            sendPayloads(busy.sink(), new long[] { i * 2 + 1 });
+            Thread.sleep(20);
+        }
+        assertEquals("Full channel should stop reading",
+                     2, tstRdr.getNumQueued());
+
+        sendPayloads(quiet.sink(), new long[] { 2, 4, 6, 8, 10, 12 });
+        IOTestUtil.sendStopMsg(busy.sink());
+        IOTestUtil.sendStopMsg(quiet.sink());
+
+        waitForTimes(numBusy * 2);
+        assertEquals("Bad merged payloads",
+                     "[1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12]",
+                     tstRdr.getTimes().toString());
+
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        for (int i = 0; i < 100 && !tstRdr.gotStop(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("Stop was not sent", tstRdr.gotStop());
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+    }
+
+    public void testKilledSender()
+        throws Exception
+    {
+        MockBufferCache bufMgr = new MockBufferCache("Killed");
+
+        tstRdr = new MockMergeReader("Killed", bufMgr);
+
+        tstRdr.start();
+        IOTestUtil.waitUntilStopped(tstRdr, "creation");
+
+        Pipe live = Pipe.open();
+        live.source().configureBlocking(false);
+        tstRdr.addDataChannel(live.source(), "Live", bufMgr, 1024);
+
+        ServerSocketChannel ssChan = ServerSocketChannel.open();
+        ssChan.socket().bind(new InetSocketAddress("localhost", 0));
+
+        SocketChannel sender =
+            SocketChannel.open(new InetSocketAddress("localhost",
+                                                     ssChan.socket().
+                                                     getLocalPort()));
+        SocketChannel receiver = ssChan.accept();
+        ssChan.close();
+
+        receiver.configureBlocking(false);
+        tstRdr.addDataChannel(receiver, "Doomed", bufMgr, 1024);
+
+        tstRdr.startProcessing();
+        IOTestUtil.waitUntilRunning(tstRdr);
+
+        sendPayloads(sender, new long[] { 1, 3 });
+        sendPayloads(live.sink(), new long[] { 2, 4, 5, 6 });
+        waitForTimes(3);
+        assertEquals("Bad merged payloads", "[1, 2, 3]",
+                     tstRdr.getTimes().toString());
+
+        // reset the connection without sending a stop message
+        sender.setOption(StandardSocketOptions.SO_LINGER, 0);
+        sender.close();
+
+        waitForTimes(6);
+        assertEquals("Dropped channel should not hold up merge",
+                     "[1, 2, 3, 4, 5, 6]", tstRdr.getTimes().toString());
+
+        IOTestUtil.sendStopMsg(live.sink());
+        IOTestUtil.waitUntilStopped(tstRdr, "stop msg");
+        for (int i = 0; i < 100 && !tstRdr.gotStop(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("Stop was not sent", tstRdr.gotStop());
+        assertTrue("Cache is not balanced: " + bufMgr, bufMgr.isBalanced());
+
+        assertLogMessage("Closed Killed socket channel, 1 channels remain");
+        assertNoLogMessages();
+    }
+
+    /**
+     * Main routine which runs text test in standalone mode.
+     *
+     * @param args the arguments with which to execute this method.
+     */
+    public static void main(String[] args)
+    {
+        TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,197 @@
+package icecube.daq.io;
+
+import icecube.daq.io.test.LoggingCase;
+import icecube.daq.io.test.MockBufferCache;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+public class TrackingBufferCacheTest
+    extends LoggingCase
+{
+    /**
+     * Construct an instance of this test.
+     *
+     * @param name the name of the test.
+     */
+    public TrackingBufferCacheTest(String name)
+    {
+        super(name);
+    }
+
+    private static ByteBuffer leakyAcquire(TrackingBufferCache cache)
+    {
+        return cache.acquireBuffer(100);
+    }
+
+    /**
+     * Create test suite for this class.
+     *
+     * @return the suite of tests declared in this class.
+     */
+    public static Test suite()
+    {
+        return new TestSuite(TrackingBufferCacheTest.class);
+    }
+
+    public void testBins()
+    {
+        assertEquals("Bad bin for 0ns", 0, TrackingBufferCache.getBin(0L));
+        assertEquals("Bad bin for 1us", 1, TrackingBufferCache.getBin(1000L));
+        assertEquals("Bad bin for 3us", 2, TrackingBufferCache.getBin(3000L));
+        assertEquals("Bad bin for huge time", TrackingBufferCache.NUM_BINS - 1,
+                     TrackingBufferCache.getBin(Long.MAX_VALUE));
+    }
+
+    public void testDisabled()
+    {
+        MockBufferCache delegate = new MockBufferCache("Disabled");
+        TrackingBufferCache cache = new TrackingBufferCache(delegate, 0);
+
+        ByteBuffer buf = cache.acquireBuffer(100);
+        assertEquals("Nothing should be tracked",
+                     0, cache.getNumOutstanding());
+
+        cache.returnBuffer(buf);
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+        assertEquals("Should not have any sites",
+                     0, cache.getResidencyHistograms().size());
+    }
+
+    public void testTracking()
+        throws Exception
+    {
+        MockBufferCache delegate = new MockBufferCache("Tracking");
+        TrackingBufferCache cache = new TrackingBufferCache(delegate, 1);
+
+        ByteBuffer leaked = leakyAcquire(cache);
+        ByteBuffer other = cache.acquireBuffer(200);
+        assertEquals("Bad number of outstanding samples",
+                     2, cache.getNumOutstanding());
+        assertEquals("Delegate should see acquisitions",
+                     2, cache.getCurrentAcquiredBuffers());
+
+        cache.returnBuffer(other);
+        assertEquals("Bad number of outstanding samples",
+                     1, cache.getNumOutstanding());
+
+        Thread.sleep(20);
+
+        HashMap<String, Integer> outstanding = cache.getOutstanding(10L);
+        assertEquals("Bad number of outstanding sites",
+                     1, outstanding.size());
+        String site = outstanding.keySet().iterator().next();
+        assertTrue("Bad site " + site, site.contains(".leakyAcquire:"));
+
+        assertEquals("Recent buffers should not be reported",
+                     0, cache.getOutstanding(60000L).size());
+
+        String report = cache.getReport(10L);
+        assertTrue("Report does not name leaking site: " + report,
+                   report.contains("leakyAcquire"));
+
+        long total = 0;
+        for (long[] hist : cache.getResidencyHistograms().values()) {
+            for (int i = 0; i < hist.length; i++) {
+                total += hist[i];
+            }
+        }
+        assertEquals("Bad number of residency samples", 1L, total);
+
+        cache.returnBuffer(leaked);
+        assertEquals("Bad number of outstanding samples",
+                     0, cache.getNumOutstanding());
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+    }
+
+    public void testReturnByLength()
+    {
+        MockBufferCache delegate = new MockBufferCache("ByLength");
+        TrackingBufferCache cache = new TrackingBufferCache(delegate, 1);
+        cache.setTrackingLimits(3, 60000L);
+
+        for (int i = 0; i < 5; i++) {
+            cache.acquireBuffer(100);
+            cache.returnBuffer(100);
+        }
+
+        assertEquals("Outstanding samples should be capped",
+                     3, cache.getNumOutstanding());
+        assertEquals("Bad number of evicted samples",
+                     2L, cache.getNumEvicted());
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+
+        String report = cache.getReport(0L);
+        assertTrue("Report does not show evictions: " + report,
+                   report.contains("2 evicted"));
+    }
+
+    public void testReturnView()
+    {
+        MockBufferCache delegate = new MockBufferCache("View");
+        TrackingBufferCache cache = new TrackingBufferCache(delegate, 1);
+        cache.setTrackingLimits(1, 60000L);
+
+        ByteBuffer buf = cache.acquireBuffer(100);
+        cache.returnBuffer(buf.duplicate());
+        assertEquals("View should not match the sample",
+                     1, cache.getNumOutstanding());
+        assertEquals("Nothing should be evicted yet",
+                     0L, cache.getNumEvicted());
+
+        ByteBuffer next = cache.acquireBuffer(100);
+        assertEquals("Unmatched sample should be evicted",
+                     1, cache.getNumOutstanding());
+        assertEquals("Bad number of evicted samples",
+                     1L, cache.getNumEvicted());
+
+        cache.returnBuffer(next);
+        assertEquals("Bad number of outstanding samples",
+                     0, cache.getNumOutstanding());
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+    }
+
+    public void testMaxAge()
+        throws Exception
+    {
+        MockBufferCache delegate = new MockBufferCache("MaxAge");
+        TrackingBufferCache cache = new TrackingBufferCache(delegate, 1);
+        cache.setTrackingLimits(100, 10L);
+
+        ByteBuffer old = cache.acquireBuffer(100);
+        assertEquals("Bad number of outstanding samples",
+                     1, cache.getNumOutstanding());
+
+        Thread.sleep(30);
+
+        ByteBuffer young = cache.acquireBuffer(100);
+        assertEquals("Old sample should have been dropped",
+                     1, cache.getNumOutstanding());
+        assertEquals("Bad number of evicted samples",
+                     1L, cache.getNumEvicted());
+
+        Thread.sleep(30);
+        assertEquals("Report should drop expired samples",
+                     0, cache.getOutstanding(0L).size());
+        assertEquals("Bad number of evicted samples",
+                     2L, cache.getNumEvicted());
+
+        cache.returnBuffer(old);
+        cache.returnBuffer(young);
+        assertTrue("Cache is not balanced: " + cache, cache.isBalanced());
+    }
+
+    /**
+     * Main routine which runs text test in standalone mode.
+     *
+     * @param args the arguments with which to execute this method.
+     */
+    public static void main(String[] args)
+    {
+        TestRunner.run(suite());
+    }
+}